@@ -0,0 +1,100 @@
+package cn.apisium.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the circulation operations and lookups on an in-memory library
+ * <p>
+ * The library has {@code items} items, a tenth as many users and loans on a fifth of the items. The state is
+ * mutated by the benchmarks, so they are meant to run on one thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CirculationBenchmark {
+    @Param({ "10000", "1000000" })
+    public int items;
+
+    private Management management;
+    private String[] barcodes, userIds, loanBarcodes, loanUserIds;
+    private int[] renews;
+    private int freeCursor, loanCursor, lookupCursor;
+
+    @Setup
+    public void setup() {
+        final int users = Math.max(1, items / 10);
+        management = TestData.management(users, items, items / 5);
+        barcodes = new String[items];
+        for (int i = 0; i < items; i++) barcodes[i] = TestData.barcode(i);
+        userIds = new String[users];
+        for (int i = 0; i < users; i++) userIds[i] = TestData.userId(i);
+        final List<Loan> loans = management.getLoans();
+        loanBarcodes = new String[loans.size()];
+        loanUserIds = new String[loans.size()];
+        renews = new int[loans.size()];
+        for (int i = 0; i < loans.size(); i++) {
+            loanBarcodes[i] = loans.get(i).getBarcode();
+            loanUserIds[i] = loans.get(i).getUserId();
+            renews[i] = loans.get(i).getNumRenews();
+        }
+        freeCursor = loanCursor = lookupCursor = 0;
+    }
+
+    /**
+     * Lend an item that is not on loan and take it back
+     */
+    @Benchmark
+    public void createAndReturnLoan() {
+        final int i = items / 5 + freeCursor;
+        if (++freeCursor == items - items / 5) freeCursor = 0;
+        final String userId = userIds[i % userIds.length];
+        management.createLoan(barcodes[i], userId);
+        management.returnItem(barcodes[i], userId);
+    }
+
+    /**
+     * Renew a loan; as a loan can only be renewed three times, every fourth call returns and lends the item again
+     */
+    @Benchmark
+    public void renewLoan() {
+        final int i = loanCursor;
+        if (++loanCursor == loanBarcodes.length) loanCursor = 0;
+        if (renews[i] == 3) {
+            management.returnItem(loanBarcodes[i], loanUserIds[i]);
+            management.createLoan(loanBarcodes[i], loanUserIds[i]);
+            renews[i] = 0;
+        } else {
+            management.renewLoan(loanBarcodes[i], loanUserIds[i]);
+            renews[i]++;
+        }
+    }
+
+    @Benchmark
+    public Item getItem() {
+        // Stride through the barcodes so consecutive calls do not hit neighbouring entries
+        lookupCursor = (lookupCursor + 7_919) % items;
+        return management.getItem(barcodes[lookupCursor]);
+    }
+
+    @Benchmark
+    public User getUser() {
+        lookupCursor = (lookupCursor + 7_919) % items;
+        return management.getUser(userIds[lookupCursor % userIds.length]);
+    }
+}
@@ -0,0 +1,51 @@
+package cn.apisium.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of the fines job with its number of threads
+ * <p>
+ * The library has {@code items} items, all on loan to a hundredth as many users, and is assessed a year from now
+ * so that every loan is overdue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class FinesBenchmark {
+    @Param({ "10000000" })
+    public int items;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private Management management;
+    private LocalDate asOf;
+
+    @Setup
+    public void setup() {
+        final int users = Math.max(1, items / 100);
+        management = new Management(TestData.users(users), TestData.items(items), TestData.loans(items, users));
+        asOf = LocalDate.now().plusYears(1);
+    }
+
+    @Benchmark
+    public FinesReport assessFines() {
+        return management.assessFines(asOf, threads);
+    }
+}
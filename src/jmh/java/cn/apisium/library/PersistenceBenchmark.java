@@ -0,0 +1,115 @@
+package cn.apisium.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cold start and save of a library stored in a temporary directory
+ * <p>
+ * The directory holds both the CSV files and a snapshot of {@code items} items, a tenth as many users and loans
+ * on a fifth of the items, and each run loads or saves the {@code format} ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark {
+    @Param({ "10000", "1000000" })
+    public int items;
+
+    @Param({ "CSV", "SNAPSHOT" })
+    public Management.Format format;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("library-jmh");
+        final int users = Math.max(1, items / 10);
+        Snapshot.write(directory.resolve(Snapshot.FILE), TestData.users(users), TestData.items(items),
+                TestData.loans(items / 5, users));
+        try (var management = new Management(directory, Management.Format.SNAPSHOT)) {
+            management.exportCsv();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void collect() {
+        System.gc(); // start each run from a clean heap, so it does not pay for the previous one's garbage
+    }
+
+    /**
+     * Read the data and replay the journal
+     */
+    @Benchmark
+    public Management load() throws IOException {
+        try (var management = new Management(directory, format)) {
+            return management;
+        }
+    }
+
+    /**
+     * Write all data in the benchmark's format, each collection changed since the previous save
+     */
+    @Benchmark
+    public void save(Opened opened) {
+        opened.management.save();
+    }
+
+    /**
+     * A library loaded from the directory, for the save benchmark
+     * Saves only write the collections that changed, so each invocation first adds a user, an item and a loan.
+     */
+    @State(Scope.Benchmark)
+    public static class Opened {
+        private Management management;
+        private int added;
+
+        @Setup(Level.Trial)
+        public void open(PersistenceBenchmark benchmark) throws IOException {
+            management = new Management(benchmark.directory, benchmark.format);
+        }
+
+        @Setup(Level.Invocation)
+        public void change() {
+            final var user = new User();
+            user.setUserId("JMH" + added);
+            management.addUser(user);
+            management.addItem(Item.of("JMH" + added, null, "Benchmark", "Book", null, null));
+            management.createLoan("JMH" + added, user.getUserId());
+            added++;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            management.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cn.apisium.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cold start and CSV export of a {@link ShardedManagement} as the number of shards grows
+ * <p>
+ * The directory holds {@code items} items spread over {@code shards} shards, a tenth as many users and loans on a
+ * fifth of the items. With one shard the files are read and written much as by a plain {@link Management}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ShardingBenchmark {
+    @Param({ "1000000" })
+    public int items;
+
+    @Param({ "1", "2", "4", "8" })
+    public int shards;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("library-jmh");
+        final int users = Math.max(1, items / 10);
+        try (var library = new ShardedManagement(directory, shards, Management.Format.CSV)) {
+            TestData.users(users).forEach(library::addUser);
+            TestData.items(items).forEach(library::addItem);
+            final var requests = new ArrayList<LoanRequest>();
+            for (var loan : TestData.loans(items / 5, users)) {
+                requests.add(new LoanRequest(loan.getBarcode(), loan.getUserId()));
+            }
+            library.createLoans(requests, false);
+            library.save();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void collect() {
+        System.gc();
+    }
+
+    /**
+     * Read the CSV files of every shard, in parallel
+     */
+    @Benchmark
+    public ShardedManagement load() throws IOException {
+        try (var library = new ShardedManagement(directory, shards, Management.Format.CSV)) {
+            return library;
+        }
+    }
+
+    /**
+     * Write the CSV files of every shard, in parallel
+     */
+    @Benchmark
+    public void save(Opened opened) throws IOException {
+        opened.library.exportCsv();
+    }
+
+    /**
+     * A library loaded from the directory, for the save benchmark
+     */
+    @State(Scope.Benchmark)
+    public static class Opened {
+        private ShardedManagement library;
+
+        @Setup(Level.Trial)
+        public void open(ShardingBenchmark benchmark) throws IOException {
+            library = new ShardedManagement(benchmark.directory, benchmark.shards, Management.Format.CSV);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            library.close();
+        }
+    }
+}
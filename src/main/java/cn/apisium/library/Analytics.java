@@ -0,0 +1,352 @@
+package cn.apisium.library;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circulation aggregates, counted as loans are created, renewed and returned
+ * <p>
+ * Counters are {@link LongAdder}s kept per item type, with the loans and returns of every month in an array of twelve
+ * per year, and per author, so counting takes no lock and allocates nothing once a type, author and year have been
+ * seen. Queries sum the counters they need, and the authors are only ranked when the top ones are asked for, keeping
+ * the best {@code limit} in a bounded heap. Counts read while loans are made may be a moment apart. The counters
+ * start from the loans that are loaded, whose types and authors are those of the items in the catalog, and from the
+ * counts the loan history keeps of every segment, taken with the types and authors the items had when returned.
+ */
+public final class Analytics {
+    /**
+     * Number of loans of an author
+     */
+    public record AuthorCount(String author, long loans) { }
+
+    private static final Comparator<AuthorCount> BY_LOANS = Comparator.comparingLong(AuthorCount::loans).reversed()
+            .thenComparing(AuthorCount::author);
+
+    private final Counters all = new Counters();
+    private final Map<String, Counters> types = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> authors = new ConcurrentHashMap<>();
+
+    /**
+     * Count a new loan
+     * @param type item type, or null if unknown
+     * @param author item author, or null if unknown
+     * @param issueDay epoch day the loan was created, or {@link Loan#NO_DATE}
+     */
+    void loaned(String type, String author, long issueDay) {
+        final LocalDate day = dayOf(issueDay);
+        all.loaned(day);
+        if (type != null) countersOf(type).loaned(day);
+        if (author != null) loansOf(author).increment();
+    }
+
+    /**
+     * Count a renewal
+     * @param type item type, or null if unknown
+     * @param numRenews number of times the loan was renewed, this one included
+     */
+    void renewed(String type, int numRenews) {
+        all.renewed(numRenews);
+        if (type != null) countersOf(type).renewed(numRenews);
+    }
+
+    /**
+     * Count a return
+     * @param type item type, or null if unknown
+     * @param returnDay epoch day the item was returned
+     */
+    void returned(String type, long returnDay) {
+        final LocalDate day = dayOf(returnDay);
+        all.returned(day);
+        if (type != null) countersOf(type).returned(day);
+    }
+
+    /**
+     * Count a loan that was made before the counters started
+     * @param type item type, or null if unknown
+     * @param author item author, or null if unknown
+     * @param issueDay epoch day the loan was created, or {@link Loan#NO_DATE}
+     * @param numRenews number of times the loan was renewed
+     * @param returnDay epoch day the item was returned, or {@link Loan#NO_DATE} if it is still on loan
+     */
+    void seed(String type, String author, long issueDay, int numRenews, long returnDay) {
+        loaned(type, author, issueDay);
+        for (int i = 1; i <= numRenews; i++) renewed(type, i);
+        if (returnDay != Loan.NO_DATE) returned(type, returnDay);
+    }
+
+    /**
+     * Write the counters, to be added to others by {@link #read}
+     * @param out output
+     * @throws IOException if an I/O error occurs
+     */
+    void write(DataOutput out) throws IOException {
+        all.write(out);
+        final var types = Map.copyOf(this.types);
+        out.writeInt(types.size());
+        for (var entry : types.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().write(out);
+        }
+        final var authors = Map.copyOf(this.authors);
+        out.writeInt(authors.size());
+        for (var entry : authors.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().sum());
+        }
+    }
+
+    /**
+     * Add counters written by {@link #write}
+     * @param in input
+     * @throws IOException if an I/O error occurs
+     */
+    void read(DataInput in) throws IOException {
+        all.read(in);
+        for (int i = in.readInt(); i > 0; i--) countersOf(in.readUTF()).read(in);
+        for (int i = in.readInt(); i > 0; i--) loansOf(in.readUTF()).add(in.readLong());
+    }
+
+    /**
+     * Get the number of loans created
+     * @param type item type, or null for all types
+     * @return number of loans
+     */
+    public long getLoans(String type) {
+        final Counters counters = type == null ? all : types.get(type);
+        return counters == null ? 0 : counters.loans.sum();
+    }
+
+    /**
+     * Get the number of loans created in a month
+     * @param type item type, or null for all types
+     * @param month month
+     * @return number of loans
+     */
+    public long getLoans(String type, YearMonth month) {
+        final Counters counters = type == null ? all : types.get(type);
+        return counters == null ? 0 : counters.loansByMonth.get(month);
+    }
+
+    /**
+     * Get the number of items returned in a month
+     * @param type item type, or null for all types
+     * @param month month
+     * @return number of returns
+     */
+    public long getReturns(String type, YearMonth month) {
+        final Counters counters = type == null ? all : types.get(type);
+        return counters == null ? 0 : counters.returnsByMonth.get(month);
+    }
+
+    /**
+     * Get the loans created in every month
+     * @param type item type, or null for all types
+     * @return number of loans by month, from the first month with loans to the last one
+     */
+    public Map<YearMonth, Long> getLoansByMonth(String type) {
+        final var result = new LinkedHashMap<YearMonth, Long>();
+        final Counters counters = type == null ? all : types.get(type);
+        if (counters == null) return result;
+        final Map<YearMonth, Long> months = counters.loansByMonth.all();
+        if (months.isEmpty()) return result;
+        final YearMonth last = months.keySet().stream().max(Comparator.naturalOrder()).orElseThrow();
+        for (YearMonth month = months.keySet().stream().min(Comparator.naturalOrder()).orElseThrow();
+             !month.isAfter(last); month = month.plusMonths(1)) {
+            result.put(month, months.getOrDefault(month, 0L));
+        }
+        return result;
+    }
+
+    /**
+     * Get the authors with the most loans
+     * @param limit maximum number of authors
+     * @return authors by number of loans, most first, then by name
+     */
+    public List<AuthorCount> getTopAuthors(int limit) {
+        if (limit <= 0) return List.of();
+        // The head is the author to drop first
+        final var best = new PriorityQueue<AuthorCount>(limit + 1, BY_LOANS.reversed());
+        authors.forEach((author, loans) -> {
+            best.add(new AuthorCount(author, loans.sum()));
+            if (best.size() > limit) best.poll();
+        });
+        final var result = new ArrayList<>(best);
+        result.sort(BY_LOANS);
+        return result;
+    }
+
+    /**
+     * Get the share of loans renewed at least once
+     * @param type item type, or null for all types
+     * @return renewed loans over loans, 0 if there are none
+     */
+    public double getRenewalRate(String type) {
+        final Counters counters = type == null ? all : types.get(type);
+        if (counters == null) return 0;
+        final long loans = counters.loans.sum();
+        return loans == 0 ? 0 : (double) counters.renewedLoans.sum() / loans;
+    }
+
+    /**
+     * Get the average number of renewals of a loan
+     * @param type item type, or null for all types
+     * @return renewals over loans, 0 if there are none
+     */
+    public double getRenewalsPerLoan(String type) {
+        final Counters counters = type == null ? all : types.get(type);
+        if (counters == null) return 0;
+        final long loans = counters.loans.sum();
+        return loans == 0 ? 0 : (double) counters.renewals.sum() / loans;
+    }
+
+    /**
+     * @return item types with loans
+     */
+    public List<String> getTypes() {
+        return types.keySet().stream().sorted().toList();
+    }
+
+    @Override
+    public String toString() {
+        final var sb = new StringBuilder(String.format("%d loans, %.1f%% renewed", getLoans(null),
+                getRenewalRate(null) * 100));
+        for (String type : getTypes()) {
+            sb.append(System.lineSeparator()).append(String.format("  %s: %d loans, %.1f%% renewed", type,
+                    getLoans(type), getRenewalRate(type) * 100));
+        }
+        for (AuthorCount count : getTopAuthors(10)) {
+            sb.append(System.lineSeparator()).append("  ").append(count.author()).append(": ").append(count.loans());
+        }
+        return sb.toString();
+    }
+
+    private Counters countersOf(String type) {
+        final Counters counters = types.get(type);
+        return counters == null ? types.computeIfAbsent(type, it -> new Counters()) : counters;
+    }
+
+    private LongAdder loansOf(String author) {
+        final LongAdder loans = authors.get(author);
+        return loans == null ? authors.computeIfAbsent(author, it -> new LongAdder()) : loans;
+    }
+
+    /**
+     * @return the day, or null if unknown
+     */
+    private static LocalDate dayOf(long day) {
+        return day == Loan.NO_DATE ? null : LocalDate.ofEpochDay(day);
+    }
+
+    /**
+     * Counters of one type, or of all of them
+     */
+    private static final class Counters {
+        private final LongAdder loans = new LongAdder(), renewals = new LongAdder(), renewedLoans = new LongAdder();
+        private final Months loansByMonth = new Months(), returnsByMonth = new Months();
+
+        void loaned(LocalDate day) {
+            loans.increment();
+            if (day != null) loansByMonth.increment(day);
+        }
+
+        void renewed(int numRenews) {
+            renewals.increment();
+            if (numRenews == 1) renewedLoans.increment();
+        }
+
+        void returned(LocalDate day) {
+            if (day != null) returnsByMonth.increment(day);
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(loans.sum());
+            out.writeLong(renewals.sum());
+            out.writeLong(renewedLoans.sum());
+            loansByMonth.write(out);
+            returnsByMonth.write(out);
+        }
+
+        void read(DataInput in) throws IOException {
+            loans.add(in.readLong());
+            renewals.add(in.readLong());
+            renewedLoans.add(in.readLong());
+            loansByMonth.read(in);
+            returnsByMonth.read(in);
+        }
+    }
+
+    /**
+     * Counters of every month, twelve to a year
+     */
+    private static final class Months {
+        private final Map<Integer, LongAdder[]> years = new ConcurrentHashMap<>();
+        /**
+         * Year counted last, which nearly every count is for, looked up without boxing it
+         */
+        private volatile Year latest;
+
+        void increment(LocalDate day) {
+            monthsOf(day.getYear())[day.getMonthValue() - 1].increment();
+        }
+
+        long get(YearMonth month) {
+            final LongAdder[] months = years.get(month.getYear());
+            return months == null ? 0 : months[month.getMonthValue() - 1].sum();
+        }
+
+        /**
+         * @return counts of the months with any
+         */
+        Map<YearMonth, Long> all() {
+            final var result = new LinkedHashMap<YearMonth, Long>();
+            years.forEach((year, months) -> {
+                for (int i = 0; i < months.length; i++) {
+                    final long count = months[i].sum();
+                    if (count != 0) result.put(YearMonth.of(year, i + 1), count);
+                }
+            });
+            return result;
+        }
+
+        void write(DataOutput out) throws IOException {
+            final var years = Map.copyOf(this.years);
+            out.writeInt(years.size());
+            for (var entry : years.entrySet()) {
+                out.writeInt(entry.getKey());
+                for (LongAdder month : entry.getValue()) out.writeLong(month.sum());
+            }
+        }
+
+        void read(DataInput in) throws IOException {
+            for (int i = in.readInt(); i > 0; i--) {
+                final LongAdder[] months = monthsOf(in.readInt());
+                for (LongAdder month : months) month.add(in.readLong());
+            }
+        }
+
+        private LongAdder[] monthsOf(int year) {
+            final Year cached = latest;
+            if (cached != null && cached.year == year) return cached.months;
+            final LongAdder[] months = years.computeIfAbsent(year, it -> {
+                final var adders = new LongAdder[12];
+                for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+                return adders;
+            });
+            latest = new Year(year, months);
+            return months;
+        }
+
+        private record Year(int year, LongAdder[] months) { }
+    }
+}
@@ -0,0 +1,34 @@
+package cn.apisium.library;
+
+import java.util.List;
+
+/**
+ * Outcome of a batch of circulation operations
+ *
+ * @param applied number of requests applied
+ * @param failures requests that could not be applied, in request order
+ */
+public record BatchResult(int applied, List<Failure> failures) {
+    /**
+     * A request that could not be applied
+     *
+     * @param index position of the request in the batch
+     * @param request request
+     * @param message reason
+     */
+    public record Failure(int index, LoanRequest request, String message) {
+        @Override
+        public String toString() {
+            return String.format("#%d (%s, %s): %s", index, request.barcode(), request.userId(), message);
+        }
+    }
+
+    public boolean succeeded() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return applied + " applied, " + failures.size() + " failed";
+    }
+}
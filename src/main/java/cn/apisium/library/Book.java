@@ -8,6 +8,10 @@ public final class Book extends Item {
         super(other);
     }
 
+    public Book(String barcode, String author, String title, String type, String year, String isbn) {
+        super(barcode, author, title, type, year, isbn);
+    }
+
     @Override
     public int getRenewTime() {
         return 2; // two weeks
@@ -17,4 +21,9 @@ public final class Book extends Item {
     public int getBorrowTime() {
         return 4; // four weeks
     }
+
+    @Override
+    public int getFinePerDay() {
+        return 10; // ten cents a day
+    }
 }
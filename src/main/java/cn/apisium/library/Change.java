@@ -0,0 +1,23 @@
+package cn.apisium.library;
+
+/**
+ * A single mutation of the library data
+ * <p>
+ * Changes carry absolute values (dates, renew counts), so applying the same change twice leaves the data as
+ * applying it once.
+ */
+public sealed interface Change {
+    record LoanCreated(String barcode, String userId, long issueDay, long dueDay) implements Change { }
+
+    record LoanRenewed(String barcode, String userId, long dueDay, int numRenews) implements Change { }
+
+    record ItemReturned(String barcode, String userId) implements Change { }
+
+    record ItemAdded(Item item) implements Change { }
+
+    record ItemRemoved(String barcode) implements Change { }
+
+    record UserAdded(User user) implements Change { }
+
+    record UserRemoved(String userId) implements Change { }
+}
@@ -0,0 +1,259 @@
+package cn.apisium.library;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stream of the changes made to a library, in batches
+ * <p>
+ * Circulation only adds each change to a bounded queue, and does nothing at all while there are no subscribers.
+ * A background thread drains the queue every {@code lingerMillis} into batches of up to {@code maxBatch} changes
+ * and offers them to the subscribers, each of which buffers up to {@code subscriberBuffer} batches. Nothing ever
+ * waits for a subscriber: changes that find the queue or a subscriber's buffer full are dropped and counted, so a
+ * slow subscriber loses changes rather than stalling the desk. Changes to one item or user arrive in the order they
+ * were made.
+ * <p>
+ * A subscriber is never left silently out of sync: once it has missed changes, it receives the batches it still
+ * has buffered, which all came before the gap, then its subscription is cancelled and it gets an
+ * {@link IllegalStateException} through {@code onError} instead of any later batch or {@code onComplete}, so it knows
+ * to rebuild its state from the library and subscribe again.
+ */
+public final class ChangeStream implements Flow.Publisher<List<Change>>, Closeable {
+    private final BlockingQueue<Change> pending;
+    private final int maxBatch;
+    private final long lingerMillis;
+    private final ExecutorService executor;
+    private final SubmissionPublisher<Batch> publisher;
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final LongAdder published = new LongAdder(), dropped = new LongAdder();
+    private volatile boolean active, closed;
+    /**
+     * Whether changes were dropped from the queue since the last batch, which every subscriber then missed
+     */
+    private final AtomicBoolean lost = new AtomicBoolean();
+    private Thread batcher;
+    private long sequence;
+
+    /**
+     * @param capacity number of changes queued for batching before further ones are dropped
+     * @param maxBatch most changes in a batch
+     * @param lingerMillis time between two drains of the queue
+     * @param subscriberBuffer number of batches buffered for each subscriber before further ones are dropped
+     */
+    ChangeStream(int capacity, int maxBatch, long lingerMillis, int subscriberBuffer) {
+        pending = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.lingerMillis = Math.max(1, lingerMillis);
+        final var count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, "library-changes-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher = new SubmissionPublisher<>(executor, subscriberBuffer);
+    }
+
+    /**
+     * Subscribe to the batches of changes made from now on
+     * @param subscriber subscriber, called on a thread of the stream
+     */
+    @Override
+    public synchronized void subscribe(Flow.Subscriber<? super List<Change>> subscriber) {
+        final var follower = new Follower(subscriber);
+        followers.add(follower);
+        publisher.subscribe(follower);
+        if (closed) return;
+        active = true;
+        if (batcher == null) {
+            batcher = new Thread(this::run, "library-changes");
+            batcher.setDaemon(true);
+            batcher.start();
+        }
+    }
+
+    /**
+     * Queue a change that was just made, dropping it if the queue is full
+     */
+    void publish(Change change) {
+        if (active && !pending.offer(change)) drop();
+    }
+
+    void publish(List<Change> changes) {
+        if (!active) return;
+        for (Change change : changes) if (!pending.offer(change)) drop();
+    }
+
+    private void drop() {
+        dropped.increment();
+        lost.set(true);
+    }
+
+    /**
+     * @return number of changes offered to the subscribers
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return number of changes dropped because the queue was full, plus those each lagging subscriber missed
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of subscribers that have neither cancelled nor been completed or failed
+     */
+    public int getSubscriberCount() {
+        return followers.size();
+    }
+
+    /**
+     * Deliver the queued changes, then complete every subscriber
+     */
+    @Override
+    public void close() {
+        final Thread batcher;
+        synchronized (this) {
+            closed = true;
+            batcher = this.batcher;
+        }
+        if (batcher != null) {
+            batcher.interrupt();
+            try {
+                batcher.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        active = false;
+        publisher.close();
+        executor.shutdown();
+    }
+
+    /**
+     * Drain the queue every {@code lingerMillis} rather than waiting on it, so queueing a change never has to wake
+     * this thread up
+     */
+    private void run() {
+        final var batch = new ArrayList<Change>(maxBatch);
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(lingerMillis);
+            } catch (InterruptedException e) {
+                if (closed) break;
+            }
+            while (pending.drainTo(batch, maxBatch) > 0) offer(batch);
+            deactivateIfUnsubscribed();
+        }
+        while (pending.drainTo(batch, maxBatch) > 0) offer(batch);
+        // No batch follows the changes dropped last, so the subscribers learn of them instead of completing
+        if (lost.getAndSet(false)) for (Follower follower : followers) follower.missed(sequence);
+    }
+
+    /**
+     * Stop queueing once the last subscriber is gone, unless one subscribes meanwhile
+     */
+    private synchronized void deactivateIfUnsubscribed() {
+        if (pending.isEmpty() && !publisher.hasSubscribers()) active = false;
+    }
+
+    private void offer(List<Change> batch) {
+        final var next = new Batch(sequence++, List.copyOf(batch));
+        batch.clear();
+        // Every subscriber missed what the queue dropped before this batch
+        if (lost.getAndSet(false)) for (Follower follower : followers) follower.missed(next.sequence);
+        publisher.offer(next, (subscriber, it) -> {
+            dropped.add(it.changes.size());
+            ((Follower) subscriber).missed(it.sequence);
+            return false;
+        });
+        published.add(next.changes.size());
+    }
+
+    /**
+     * Changes offered together, numbered in order
+     */
+    private record Batch(long sequence, List<Change> changes) { }
+
+    /**
+     * Subscriber of the publisher that hands the batches to a subscriber of the stream, until the first gap
+     */
+    private final class Follower implements Flow.Subscriber<Batch> {
+        private final Flow.Subscriber<? super List<Change>> subscriber;
+        /**
+         * Sequence of the first batch missed, or of the first one after changes were missed
+         */
+        private volatile long gap = Long.MAX_VALUE;
+        private Flow.Subscription subscription;
+        private boolean failed;
+
+        Follower(Flow.Subscriber<? super List<Change>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        synchronized void missed(long sequence) {
+            if (sequence < gap) gap = sequence;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            // Cancelling stops the stream following the subscriber, not only the publisher
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    followers.remove(Follower.this);
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(Batch batch) {
+            if (failed) return;
+            if (batch.sequence >= gap) fail();
+            else subscriber.onNext(batch.changes);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            followers.remove(this);
+            if (!failed) subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            followers.remove(this);
+            if (failed) return;
+            if (gap != Long.MAX_VALUE) fail();
+            else subscriber.onComplete();
+        }
+
+        private void fail() {
+            failed = true;
+            followers.remove(this);
+            subscription.cancel();
+            subscriber.onError(new IllegalStateException("Changes were dropped, resubscribe!"));
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package cn.apisium.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writer of the items, loans and loan history to a compressed, column oriented file, for offline analysis
+ * <p>
+ * A table is written in groups of rows. Each group holds every column separately deflated, after its compressed
+ * length, so a reader can skip the columns it does not need, and the values of a column, alike and side by side,
+ * compress far better than rows do. Text is written as a presence flag and modified UTF-8, days and counts as
+ * longs.
+ * <p>
+ * Layout: magic, version, then for each table its name, column count, column names and kinds ({@code 'S'} for text,
+ * {@code 'L'} for numbers), its groups as row count and columns, and a row count of 0 to end it. The file is written
+ * to a temporary file, which {@link #commit()} syncs and renames over the target; closed without a commit, as when
+ * writing failed, the temporary file is deleted and the previous export left in place.
+ */
+final class ColumnarExport implements Closeable {
+    static final String ITEMS = "items", LOANS = "loans", HISTORY = "history";
+    private static final int MAGIC = 0x4C434F4C, VERSION = 1;
+
+    private final Path file, temp;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final int groupRows;
+    private boolean committed;
+
+    /**
+     * @param file file to write
+     * @param groupRows number of rows of a group, at most
+     * @throws IOException if an I/O error occurs
+     */
+    ColumnarExport(Path file, int groupRows) throws IOException {
+        this.file = file;
+        this.groupRows = Math.max(1, groupRows);
+        temp = file.resolveSibling(file.getFileName() + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Write the items table
+     * @param items items
+     * @throws IOException if an I/O error occurs
+     */
+    void items(Iterable<Item> items) throws IOException {
+        try (var table = new Table(ITEMS, "SSSSSS", "Barcode", "Author/Artist", "Title", "Type", "Year", "ISBN")) {
+            for (Item item : items) {
+                table.add(item.getBarcode(), item.getAuthor(), item.getTitle(), item.getType(), item.getYear(),
+                        item.getIsbn());
+            }
+        }
+    }
+
+    /**
+     * Write the loans table
+     * @param loans loans
+     * @throws IOException if an I/O error occurs
+     */
+    void loans(Iterable<Loan> loans) throws IOException {
+        try (var table = new Table(LOANS, "SSLLL", "Barcode", "User_id", "Issue_Day", "Due_Day", "Num_Renews")) {
+            for (Loan loan : loans) {
+                table.add(loan.getBarcode(), loan.getUserId(), loan.getIssueDay(), loan.getDueDay(),
+                        (long) loan.getNumRenews());
+            }
+        }
+    }
+
+    /**
+     * Write the loan history table
+     * @param history returned loans
+     * @throws IOException if an I/O error occurs
+     */
+    void history(Iterable<ReturnedLoan> history) throws IOException {
+        try (var table = new Table(HISTORY, "SSLLLL", "Barcode", "User_id", "Issue_Day", "Due_Day", "Return_Day",
+                "Num_Renews")) {
+            for (ReturnedLoan loan : history) {
+                table.add(loan.barcode(), loan.userId(), loan.issueDay(), loan.dueDay(), loan.returnDay(),
+                        (long) loan.numRenews());
+            }
+        }
+    }
+
+    /**
+     * Sync the file and move it into place, once every table is written
+     * @throws IOException if an I/O error occurs
+     */
+    void commit() throws IOException {
+        try (channel) {
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Delete the file unless it was committed
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) return;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Read one column of a table, skipping the other columns of every group without inflating them
+     * @param file exported file
+     * @param table table name
+     * @param column column name
+     * @return values, as String or Long
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if there is no such table or column
+     */
+    static List<Object> readColumn(Path file, String table, String column) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a column export: " + file);
+            while (true) {
+                final String name = in.readUTF();
+                final int columns = in.readInt();
+                final var names = new ArrayList<String>(columns);
+                for (int i = 0; i < columns; i++) names.add(in.readUTF());
+                final String kinds = in.readUTF();
+                final int index = name.equals(table) ? names.indexOf(column) : -1;
+                if (name.equals(table) && index < 0) throw new IllegalArgumentException("No such column!");
+                final var values = new ArrayList<Object>();
+                for (int rows = in.readInt(); rows > 0; rows = in.readInt()) {
+                    for (int i = 0; i < columns; i++) {
+                        final byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        if (i == index) inflate(bytes, rows, kinds.charAt(i), values);
+                    }
+                }
+                if (name.equals(table)) return values;
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("No such table!");
+        }
+    }
+
+    private static void inflate(byte[] bytes, int rows, char kind, List<Object> values) throws IOException {
+        try (var in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+            for (int i = 0; i < rows; i++) {
+                if (kind == 'L') values.add(in.readLong());
+                else values.add(in.readBoolean() ? in.readUTF() : null);
+            }
+        }
+    }
+
+    /**
+     * A table being written, one group of rows at a time
+     */
+    private final class Table implements Closeable {
+        private final String kinds;
+        private final ByteArrayOutputStream[] buffers;
+        private final DeflaterOutputStream[] deflated;
+        private final DataOutputStream[] columns;
+        private final Deflater[] deflaters;
+        private int rows;
+
+        Table(String name, String kinds, String... names) throws IOException {
+            this.kinds = kinds;
+            out.writeUTF(name);
+            out.writeInt(names.length);
+            for (String column : names) out.writeUTF(column);
+            out.writeUTF(kinds);
+            buffers = new ByteArrayOutputStream[names.length];
+            deflated = new DeflaterOutputStream[names.length];
+            columns = new DataOutputStream[names.length];
+            deflaters = new Deflater[names.length];
+            for (int i = 0; i < names.length; i++) {
+                buffers[i] = new ByteArrayOutputStream(1 << 16);
+                deflaters[i] = new Deflater(Deflater.BEST_SPEED);
+                deflated[i] = new DeflaterOutputStream(buffers[i], deflaters[i], 1 << 16);
+                columns[i] = new DataOutputStream(new BufferedOutputStream(deflated[i], 1 << 13));
+            }
+        }
+
+        void add(Object... values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (kinds.charAt(i) == 'L') columns[i].writeLong((Long) values[i]);
+                else {
+                    columns[i].writeBoolean(values[i] != null);
+                    if (values[i] != null) columns[i].writeUTF((String) values[i]);
+                }
+            }
+            if (++rows == groupRows) flush();
+        }
+
+        /**
+         * Write the group of rows added so far
+         */
+        private void flush() throws IOException {
+            if (rows == 0) return;
+            out.writeInt(rows);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].flush();
+                deflated[i].finish();
+                out.writeInt(buffers[i].size());
+                buffers[i].writeTo(out);
+                buffers[i].reset();
+                deflaters[i].reset();
+            }
+            rows = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                out.writeInt(0);
+            } finally {
+                for (Deflater deflater : deflaters) deflater.end();
+            }
+        }
+    }
+}
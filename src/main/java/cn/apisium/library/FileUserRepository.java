@@ -0,0 +1,283 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Users in an indexed scratch file, behind a cache of the recently used ones
+ * <p>
+ * Each user gets an ordinal, like the items of {@link ItemCatalog}. The heap only holds the address and user ID
+ * hash of every ordinal and an open addressing table of ordinals, about 20 bytes a user; the users themselves are
+ * records of a {@link RecordFile}, read through an {@link LruCache} of {@code cacheSize} users. Users are listed in
+ * ordinal order, with the ordinal as cursor.
+ */
+final class FileUserRepository implements UserRepository {
+    private static final int USER_ID = 0, FIRST_NAME = 1, LAST_NAME = 2, EMAIL = 3, FIELDS = 4;
+    private static final int EMPTY = -1, DELETED = -2, NONE = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LruCache<String, User> cache;
+    private Records records = new RecordFile(FIELDS, 0);
+    private long[] addresses = new long[16];
+    private int[] hashes = new int[16], table = new int[32], free = new int[16];
+    private int size, used, freeCount, occupied;
+
+    /**
+     * @param cacheSize number of users cached
+     */
+    FileUserRepository(int cacheSize) {
+        cache = new LruCache<>(cacheSize);
+        Arrays.fill(addresses, -1);
+        Arrays.fill(table, EMPTY);
+    }
+
+    @Override
+    public User get(String userId) {
+        final User cached = cache.get(userId);
+        if (cached != null) return cached;
+        lock.readLock().lock();
+        try {
+            final int ordinal = find(userId);
+            if (ordinal == NONE) return null;
+            final User user = materialize(ordinal);
+            // Cached under the read lock, so a concurrent put cannot be overwritten by this older copy
+            cache.put(userId, user);
+            return user;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public User put(User user) {
+        lock.writeLock().lock();
+        try {
+            final int hash = user.getUserId().hashCode();
+            int ordinal = find(user.getUserId());
+            User previous = null;
+            if (ordinal == NONE) {
+                ordinal = freeCount > 0 ? free[--freeCount] : used++;
+                if (ordinal >= addresses.length) {
+                    final int length = addresses.length;
+                    addresses = Arrays.copyOf(addresses, length + (length >> 1));
+                    Arrays.fill(addresses, length, addresses.length, -1);
+                    hashes = Arrays.copyOf(hashes, addresses.length);
+                }
+                if ((occupied + 1) * 2L > table.length) {
+                    rehash((size + 1) * 4L > table.length ? table.length * 2 : table.length);
+                }
+                insert(hash, ordinal);
+                size++;
+            } else {
+                previous = materialize(ordinal);
+                records.free(addresses[ordinal], FIELDS);
+            }
+            addresses[ordinal] = records.append(user.getUserId(), user.getFirstName(), user.getLastName(),
+                    user.getEmail());
+            hashes[ordinal] = hash;
+            cache.put(user.getUserId(), user);
+            compactIfNeeded();
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public User remove(String userId) {
+        lock.writeLock().lock();
+        try {
+            final int slot = findSlot(userId);
+            if (slot == NONE) return null;
+            final int ordinal = table[slot];
+            final User previous = materialize(ordinal);
+            table[slot] = DELETED;
+            records.free(addresses[ordinal], FIELDS);
+            addresses[ordinal] = -1;
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = ordinal;
+            size--;
+            cache.remove(userId);
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String userId) {
+        if (cache.get(userId) != null) return true;
+        lock.readLock().lock();
+        try {
+            return find(userId) != NONE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Page<User> page(String cursor, int limit, Predicate<? super User> filter) {
+        final int from;
+        try {
+            from = cursor == null ? 0 : Integer.parseInt(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor!");
+        }
+        if (from < 0) throw new IllegalArgumentException("Invalid cursor!");
+        final var iterator = new Cursor(from);
+        return Page.of(iterator, limit, filter, it -> Integer.toString(iterator.after));
+    }
+
+    /**
+     * Iterate over the users without filling the cache with them
+     */
+    @Override
+    public Iterator<User> iterator() {
+        return new Cursor(0);
+    }
+
+    @Override
+    public LruCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Delete the scratch file
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            records.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private User materialize(int ordinal) {
+        final long address = addresses[ordinal];
+        final var user = new User();
+        user.setUserId(records.read(address, USER_ID));
+        user.setFirstName(records.read(address, FIRST_NAME));
+        user.setLastName(records.read(address, LAST_NAME));
+        user.setEmail(records.read(address, EMAIL));
+        return user;
+    }
+
+    private int find(String userId) {
+        final int slot = findSlot(userId);
+        return slot == NONE ? NONE : table[slot];
+    }
+
+    private int findSlot(String userId) {
+        final int hash = userId.hashCode(), mask = table.length - 1;
+        for (int slot = spread(hash) & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            final int ordinal = table[slot];
+            if (ordinal == EMPTY) return NONE;
+            if (ordinal != DELETED && hashes[ordinal] == hash
+                    && userId.equals(records.read(addresses[ordinal], USER_ID))) return slot;
+        }
+        return NONE;
+    }
+
+    private void insert(int hash, int ordinal) {
+        final int mask = table.length - 1;
+        int slot = spread(hash) & mask;
+        while (table[slot] >= 0) slot = (slot + 1) & mask;
+        if (table[slot] == EMPTY) occupied++;
+        table[slot] = ordinal;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        occupied = 0;
+        for (int ordinal = 0; ordinal < used; ordinal++) if (addresses[ordinal] >= 0) insert(hashes[ordinal], ordinal);
+    }
+
+    /**
+     * Copy the live users to a new file once most of the file is replaced or removed ones
+     */
+    private void compactIfNeeded() {
+        if (records.garbage() < 1 << 20 || records.garbage() * 2 < records.used()) return;
+        final var compacted = new RecordFile(FIELDS, 0);
+        for (int ordinal = 0; ordinal < used; ordinal++) {
+            final long address = addresses[ordinal];
+            if (address < 0) continue;
+            addresses[ordinal] = compacted.append(records.read(address, USER_ID), records.read(address, FIRST_NAME),
+                    records.read(address, LAST_NAME), records.read(address, EMAIL));
+        }
+        try {
+            records.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            records = compacted;
+        }
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Users from an ordinal on, each read under the read lock
+     */
+    private final class Cursor implements Iterator<User> {
+        /**
+         * Ordinal after the last user returned
+         */
+        private int after;
+        private int position;
+        private User next;
+
+        Cursor(int position) {
+            this.after = this.position = position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) return true;
+            lock.readLock().lock();
+            try {
+                while (position < used) {
+                    if (addresses[position++] >= 0) {
+                        next = materialize(position - 1);
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public User next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final User user = next;
+            next = null;
+            after = position;
+            return user;
+        }
+    }
+}
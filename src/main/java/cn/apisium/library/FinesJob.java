@@ -0,0 +1,126 @@
+package cn.apisium.library;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Fork/join job assessing the overdue days and fines of every user
+ * <p>
+ * The loan table is walked through its spliterators, split in halves until a slice holds at most {@value #LEAF}
+ * loans. Each slice sums its overdue loans into a map of its own, and the maps are merged as the tasks join, the
+ * smaller into the larger, so the workers never share mutable state. Loans are read as they are while circulation
+ * goes on; the report is as of the moment each loan is read.
+ */
+final class FinesJob {
+    private static final int LEAF = 16_384;
+    private static final int LOANS = 0, DAYS = 1, FINE = 2;
+
+    /**
+     * Loans to assess, with the items they refer to
+     * @param loans loans, split by the job
+     * @param isBook whether the item of a barcode is a book, to pick its fine rate
+     */
+    record Part(Spliterator<Loan> loans, Predicate<String> isBook) { }
+
+    private FinesJob() { }
+
+    /**
+     * Assess the fines of the loans overdue on a day
+     * @param parts loans, of one library or of each shard
+     * @param asOf day to assess
+     * @param parallelism number of worker threads
+     * @return report, users sorted by user ID
+     */
+    static FinesReport run(List<Part> parts, LocalDate asOf, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive!");
+        final long start = System.nanoTime(), today = asOf.toEpochDay();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final Map<String, long[]> totals;
+        try {
+            totals = pool.invoke(new RecursiveTask<>() {
+                @Override
+                protected Map<String, long[]> compute() {
+                    final var tasks = new ArrayList<Slice>(parts.size());
+                    for (Part part : parts) tasks.add(new Slice(part.loans(), part.isBook(), today));
+                    invokeAll(tasks);
+                    Map<String, long[]> result = new HashMap<>();
+                    for (Slice task : tasks) result = merge(result, task.join());
+                    return result;
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        final var users = new ArrayList<FinesReport.UserFine>(totals.size());
+        long loans = 0, days = 0, fine = 0;
+        for (var entry : totals.entrySet()) {
+            final long[] total = entry.getValue();
+            users.add(new FinesReport.UserFine(entry.getKey(), (int) total[LOANS], total[DAYS], total[FINE]));
+            loans += total[LOANS];
+            days += total[DAYS];
+            fine += total[FINE];
+        }
+        users.sort(FinesReport.UserFine.BY_USER_ID);
+        return new FinesReport(asOf, loans, days, fine, users, System.nanoTime() - start);
+    }
+
+    private static Map<String, long[]> merge(Map<String, long[]> a, Map<String, long[]> b) {
+        if (a.size() < b.size()) {
+            final Map<String, long[]> swap = a;
+            a = b;
+            b = swap;
+        }
+        for (var entry : b.entrySet()) {
+            final long[] from = entry.getValue(), to = a.putIfAbsent(entry.getKey(), from);
+            if (to == null) continue;
+            to[LOANS] += from[LOANS];
+            to[DAYS] += from[DAYS];
+            to[FINE] += from[FINE];
+        }
+        return a;
+    }
+
+    private static final class Slice extends RecursiveTask<Map<String, long[]>> {
+        private static final long serialVersionUID = 1L;
+        private final Spliterator<Loan> loans;
+        private final Predicate<String> isBook;
+        private final long today;
+
+        Slice(Spliterator<Loan> loans, Predicate<String> isBook, long today) {
+            this.loans = loans;
+            this.isBook = isBook;
+            this.today = today;
+        }
+
+        @Override
+        protected Map<String, long[]> compute() {
+            final var forked = new ArrayList<Slice>();
+            Spliterator<Loan> half;
+            while (loans.estimateSize() > LEAF && (half = loans.trySplit()) != null) {
+                final var task = new Slice(half, isBook, today);
+                task.fork();
+                forked.add(task);
+            }
+            Map<String, long[]> result = new HashMap<>();
+            final Map<String, long[]> totals = result;
+            loans.forEachRemaining(loan -> {
+                final long due = loan.getDueDay();
+                if (due == Loan.NO_DATE || due >= today) return;
+                final long days = today - due;
+                final long[] total = totals.computeIfAbsent(loan.getUserId(), it -> new long[3]);
+                total[LOANS]++;
+                total[DAYS] += days;
+                total[FINE] += days * Item.finePerDay(isBook.test(loan.getBarcode()));
+            });
+            for (int i = forked.size() - 1; i >= 0; i--) result = merge(result, forked.get(i).join());
+            return result;
+        }
+    }
+}
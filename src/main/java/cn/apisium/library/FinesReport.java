@@ -0,0 +1,68 @@
+package cn.apisium.library;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overdue loans and fines of every user, as assessed by {@link Library#assessFines(LocalDate, int)}
+ *
+ * @param asOf day assessed
+ * @param overdueLoans number of overdue loans
+ * @param overdueDays overdue days of all loans
+ * @param fineCents fines of all users, in cents
+ * @param users users with overdue loans, by user ID
+ * @param nanos time the assessment took
+ */
+public record FinesReport(LocalDate asOf, long overdueLoans, long overdueDays, long fineCents, List<UserFine> users,
+                          long nanos) {
+    private static final CsvSchema schema = CsvSchema.builder().addColumn("User_id").addColumn("Overdue_Loans")
+            .addColumn("Overdue_Days").addColumn("Fine").build().withHeader();
+
+    /**
+     * Overdue loans and fine of one user
+     *
+     * @param userId user ID
+     * @param overdueLoans number of overdue loans
+     * @param overdueDays overdue days of all the user's loans
+     * @param fineCents fine, in cents
+     */
+    public record UserFine(String userId, int overdueLoans, long overdueDays, long fineCents) {
+        static final Comparator<UserFine> BY_USER_ID = Comparator.comparing(UserFine::userId);
+    }
+
+    /**
+     * Write the users to a CSV file, one row at a time
+     * @param file report file
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(Path file) throws IOException {
+        try (var out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+             SequenceWriter writer = new CsvMapper().writer(schema).writeValues(out)) {
+            for (UserFine user : users) {
+                writer.write(Arrays.asList(user.userId(), user.overdueLoans(), user.overdueDays(),
+                        formatCents(user.fineCents())));
+            }
+        }
+    }
+
+    static String formatCents(long cents) {
+        return String.format("%d.%02d", cents / 100, cents % 100);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d overdue loans of %d users, %d days, fines %s, assessed in %d ms", asOf,
+                overdueLoans, users.size(), overdueDays, formatCents(fineCents), TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+}
@@ -0,0 +1,31 @@
+package cn.apisium.library;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of {@link Library#importItems(java.nio.file.Path, java.nio.file.Path, int)}
+ *
+ * @param rows number of rows read, without the header and blank lines
+ * @param imported number of items added
+ * @param reasons number of rows rejected, by reason
+ * @param nanos time the import took
+ */
+public record ImportReport(long rows, long imported, Map<String, Long> reasons, long nanos) {
+    public long rejected() {
+        return rows - imported;
+    }
+
+    public double rowsPerSecond() {
+        return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder(String.format("%d rows, %d imported, %d rejected in %d ms (%.0f rows/s)", rows,
+                imported, rejected(), TimeUnit.NANOSECONDS.toMillis(nanos), rowsPerSecond()));
+        reasons.forEach((reason, count) -> sb.append(System.lineSeparator()).append("  ").append(reason)
+                .append(": ").append(count));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package cn.apisium.library;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loans in a concurrent hash map
+ */
+final class InMemoryLoanRepository implements LoanRepository {
+    private final Map<String, Loan> loans;
+
+    InMemoryLoanRepository(int expectedSize) {
+        loans = new ConcurrentHashMap<>(expectedSize);
+    }
+
+    @Override
+    public Loan get(String barcode) {
+        return loans.get(barcode);
+    }
+
+    @Override
+    public Loan put(Loan loan) {
+        return loans.put(loan.getBarcode(), loan);
+    }
+
+    @Override
+    public Loan remove(String barcode) {
+        return loans.remove(barcode);
+    }
+
+    @Override
+    public boolean remove(String barcode, Loan loan) {
+        return loans.remove(barcode, loan);
+    }
+
+    @Override
+    public boolean contains(String barcode) {
+        return loans.containsKey(barcode);
+    }
+
+    @Override
+    public int size() {
+        return loans.size();
+    }
+
+    @Override
+    public Collection<Loan> values() {
+        return loans.values();
+    }
+}
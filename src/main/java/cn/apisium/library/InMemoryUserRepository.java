@@ -0,0 +1,49 @@
+package cn.apisium.library;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Users in a sorted concurrent map, listed by user ID
+ */
+final class InMemoryUserRepository implements UserRepository {
+    private final NavigableMap<String, User> users = new ConcurrentSkipListMap<>();
+
+    @Override
+    public User get(String userId) {
+        return users.get(userId);
+    }
+
+    @Override
+    public User put(User user) {
+        return users.put(user.getUserId(), user);
+    }
+
+    @Override
+    public User remove(String userId) {
+        return users.remove(userId);
+    }
+
+    @Override
+    public boolean contains(String userId) {
+        return users.containsKey(userId);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public Page<User> page(String cursor, int limit, Predicate<? super User> filter) {
+        return Page.of((cursor == null ? users : users.tailMap(cursor, false)).values().iterator(), limit, filter,
+                User::getUserId);
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return users.values().iterator();
+    }
+}
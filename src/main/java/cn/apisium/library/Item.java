@@ -1,5 +1,6 @@
 package cn.apisium.library;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
@@ -42,6 +43,15 @@ public sealed class Item permits Book, Multimedia {
         setIsbn(in.nextLine());
     }
 
+    protected Item(String barcode, String author, String title, String type, String year, String isbn) {
+        this.barcode = barcode;
+        this.author = author;
+        this.title = title;
+        this.type = type;
+        this.year = year;
+        this.isbn = isbn;
+    }
+
     protected Item(Item other) {
         this.barcode = other.barcode;
         this.author = other.author;
@@ -51,6 +61,29 @@ public sealed class Item permits Book, Multimedia {
         this.isbn = other.isbn;
     }
 
+    /**
+     * Create a book or a multimedia item depending on its type
+     * This is also how items are deserialized, so each row is allocated only once.
+     *
+     * @return {@link Book} if the type is "Book", {@link Multimedia} otherwise
+     */
+    @JsonCreator
+    public static Item of(@JsonProperty("Barcode") String barcode, @JsonProperty("Author/Artist") String author,
+                          @JsonProperty("Title") String title, @JsonProperty("Type") String type,
+                          @JsonProperty("Year") String year, @JsonProperty("ISBN") String isbn) {
+        return "Book".equals(type) ? new Book(barcode, author, title, type, year, isbn)
+                : new Multimedia(barcode, author, title, type, year, isbn);
+    }
+
+    /**
+     * Convert a plain item into a book or a multimedia item
+     * @param item item
+     * @return the item itself if it already is one of them
+     */
+    public static Item of(Item item) {
+        return item instanceof Book || item instanceof Multimedia ? item : item.isBook() ? new Book(item) : new Multimedia(item);
+    }
+
     public String getBarcode() {
         return barcode;
     }
@@ -118,14 +151,27 @@ public sealed class Item permits Book, Multimedia {
      * @return renew time in weeks
      */
     @JsonIgnore
-    public int getRenewTime() { return isBook() ? 2 : 1; }
+    public int getRenewTime() { return renewTime(isBook()); }
 
     /**
      * Get borrow allowed time
      * @return borrow allowed time in weeks
      */
     @JsonIgnore
-    public int getBorrowTime() { return isBook() ? 4 : 1; }
+    public int getBorrowTime() { return borrowTime(isBook()); }
+
+    /**
+     * Get the fine for each day the item is overdue
+     * @return fine in cents
+     */
+    @JsonIgnore
+    public int getFinePerDay() { return finePerDay(isBook()); }
+
+    static int renewTime(boolean book) { return book ? 2 : 1; }
+
+    static int borrowTime(boolean book) { return book ? 4 : 1; }
+
+    static int finePerDay(boolean book) { return book ? 10 : 50; }
 
     @Override
     public String toString() {
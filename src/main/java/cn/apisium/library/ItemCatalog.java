@@ -0,0 +1,854 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+
+/**
+ * Compact, column oriented store of items
+ * <p>
+ * Every item gets a dense ordinal. Barcodes, titles and ISBNs are kept in columns indexed by it, while the
+ * low-cardinality author, type and year columns are dictionary encoded into int arrays. Barcodes are found through
+ * an open addressing hash table of ordinals, and {@link Book} / {@link Multimedia} objects are only created when an
+ * item is read. Ordinals of removed items are reused.
+ * <p>
+ * The barcode, title and ISBN strings are most of the objects the garbage collector has to trace. With
+ * {@link Storage#DIRECT} or {@link Storage#MAPPED} they are kept outside the heap in a {@link RecordArena} instead,
+ * leaving the catalog with a handful of primitive arrays whatever its size, and with {@link Storage#FILE} in a
+ * {@link RecordFile} behind a cache of the recently read items.
+ * <p>
+ * Availability is kept as bitsets over the ordinals: one of the ordinals in use, one per type, and one of the items
+ * on loan. Counts and listings of available items by type are bit operations over them, 64 items per word.
+ */
+final class ItemCatalog implements ItemRepository {
+    private static final int EMPTY = -1, DELETED = -2, NONE = -1, ANY = -2;
+
+    /**
+     * Where the barcode, title and ISBN strings are kept
+     */
+    enum Storage {
+        /** String arrays on the heap */
+        HEAP,
+        /** Direct memory, outside the heap */
+        DIRECT,
+        /** A memory-mapped scratch file, which the OS can page out */
+        MAPPED,
+        /** A scratch file read with positional reads, behind a cache */
+        FILE
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final Dictionary authors = new Dictionary(), types = new Dictionary(), years = new Dictionary();
+    private final Columns columns;
+    private int bookType = NONE;
+    private int[] authorIds, typeIds, yearIds;
+    private int[] table, free = new int[16];
+    private long[] present;
+    private long[][] typeBits = new long[0][];
+    /**
+     * Changed without the write lock, by whoever holds the item's barcode lock in {@link Management}
+     */
+    private AtomicLongArray onLoan;
+    private int size, used, freeCount, occupied;
+
+    ItemCatalog(int expectedSize) {
+        this(expectedSize, Storage.HEAP);
+    }
+
+    ItemCatalog(int expectedSize, Storage storage) {
+        this(expectedSize, storage, 10_000);
+    }
+
+    /**
+     * @param expectedSize number of items expected
+     * @param storage where the strings are kept
+     * @param cacheSize number of items cached with {@link Storage#FILE}
+     */
+    ItemCatalog(int expectedSize, Storage storage, int cacheSize) {
+        final int capacity = Math.max(16, expectedSize);
+        columns = switch (storage) {
+            case HEAP -> new HeapColumns(capacity);
+            case DIRECT, MAPPED -> new ArenaColumns(capacity,
+                    bytes -> new RecordArena(storage == Storage.MAPPED, bytes));
+            case FILE -> new ArenaColumns(capacity, bytes -> new RecordFile(ArenaColumns.FIELDS, cacheSize));
+        };
+        authorIds = new int[capacity];
+        typeIds = new int[capacity];
+        yearIds = new int[capacity];
+        present = new long[words(capacity)];
+        onLoan = new AtomicLongArray(present.length);
+        table = new int[tableSizeFor(capacity)];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Get an item
+     * @param barcode item barcode
+     * @return a new {@link Book} or {@link Multimedia} holding the item, or null if there is none
+     */
+    @Override
+    public Item get(String barcode) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final Item item = materialize(find(barcode));
+                if (lock.validate(stamp)) return item;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            return materialize(find(barcode));
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    @Override
+    public boolean contains(String barcode) {
+        return ordinal(barcode) != NONE;
+    }
+
+    /**
+     * Get the ordinal of an item
+     * @param barcode item barcode
+     * @return ordinal, -1 if there is no such item
+     */
+    int ordinal(String barcode) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final int ordinal = find(barcode);
+                if (lock.validate(stamp)) return ordinal;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            return find(barcode);
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /**
+     * Get an item by ordinal
+     * <p>
+     * Ordinals of removed items are reused, so the item may not be the one the ordinal was taken from.
+     * @param ordinal item ordinal
+     * @return a new {@link Book} or {@link Multimedia} holding the item, or null if there is none
+     */
+    Item get(int ordinal) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final Item item = materialize(ordinal);
+                if (lock.validate(stamp)) return item;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            return materialize(ordinal);
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /**
+     * Add or replace an item
+     * @param item item
+     * @return the replaced item, or null
+     */
+    @Override
+    public Item put(Item item) {
+        final long stamp = lock.writeLock();
+        try {
+            int ordinal = find(item.getBarcode());
+            final Item previous = materialize(ordinal);
+            if (ordinal == NONE) {
+                ordinal = freeCount > 0 ? free[--freeCount] : used++;
+                if (ordinal >= authorIds.length) grow();
+                insert(item.getBarcode(), ordinal);
+                present[ordinal >>> 6] |= 1L << ordinal;
+                size++;
+            } else if (typeIds[ordinal] != NONE) typeBits[typeIds[ordinal]][ordinal >>> 6] &= ~(1L << ordinal);
+            columns.set(ordinal, item.getBarcode(), item.getTitle(), item.getIsbn());
+            authorIds[ordinal] = authors.encode(item.getAuthor());
+            typeIds[ordinal] = types.encode(item.getType());
+            yearIds[ordinal] = years.encode(item.getYear());
+            if (bookType == NONE && "Book".equals(item.getType())) bookType = typeIds[ordinal];
+            if (typeIds[ordinal] != NONE) typeBitsOf(typeIds[ordinal])[ordinal >>> 6] |= 1L << ordinal;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove an item
+     * @param barcode item barcode
+     * @return the removed item, or null if there was none
+     */
+    @Override
+    public Item remove(String barcode) {
+        final long stamp = lock.writeLock();
+        try {
+            final int slot = findSlot(barcode);
+            if (slot < 0) return null;
+            final int ordinal = table[slot];
+            final Item item = materialize(ordinal);
+            table[slot] = DELETED;
+            columns.clear(ordinal);
+            present[ordinal >>> 6] &= ~(1L << ordinal);
+            if (typeIds[ordinal] != NONE) typeBits[typeIds[ordinal]][ordinal >>> 6] &= ~(1L << ordinal);
+            onLoan.accumulateAndGet(ordinal >>> 6, ~(1L << ordinal), (word, mask) -> word & mask);
+            if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+            free[freeCount++] = ordinal;
+            size--;
+            return item;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the loan period of an item without creating it
+     * @param barcode item barcode
+     * @return weeks, as {@link Item#getBorrowTime()}, or -1 if there is no such item
+     */
+    int borrowTime(String barcode) {
+        final int type = typeOf(barcode);
+        return type == NONE ? -1 : Item.borrowTime(type == bookType);
+    }
+
+    /**
+     * Check whether an item is a book without creating it, as {@link Item#isBook()}
+     * @param barcode item barcode
+     * @return whether there is such an item and it is a book
+     */
+    boolean isBook(String barcode) {
+        final int type = typeOf(barcode);
+        return type != NONE && type == bookType;
+    }
+
+    /**
+     * Get the renewal period of an item without creating it
+     * @param barcode item barcode
+     * @return weeks, as {@link Item#getRenewTime()}, or -1 if there is no such item
+     */
+    int renewTime(String barcode) {
+        final int type = typeOf(barcode);
+        return type == NONE ? -1 : Item.renewTime(type == bookType);
+    }
+
+    /**
+     * Get the type of an item without creating it
+     * @param barcode item barcode
+     * @return type, or null if there is no such item
+     */
+    String type(String barcode) {
+        final long stamp = lock.readLock();
+        try {
+            final int ordinal = find(barcode);
+            return ordinal == NONE ? null : types.decode(typeIds[ordinal]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the author or artist of an item without creating it
+     * @param barcode item barcode
+     * @return author, or null if there is no such item
+     */
+    String author(String barcode) {
+        final long stamp = lock.readLock();
+        try {
+            final int ordinal = find(barcode);
+            return ordinal == NONE ? null : authors.decode(authorIds[ordinal]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public LruCache.Stats cacheStats() {
+        return columns.cacheStats();
+    }
+
+    /**
+     * @return bytes of records outside the heap, live or not, 0 for {@link Storage#HEAP}
+     */
+    long offHeapBytes() {
+        final long stamp = lock.readLock();
+        try {
+            return columns.offHeapBytes();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Release the scratch file of {@link Storage#MAPPED} or {@link Storage#FILE}
+     */
+    void close() {
+        columns.close();
+    }
+
+    /**
+     * Check whether an item is on loan
+     * @param barcode item barcode
+     * @return whether the item is marked on loan, false if there is no such item
+     */
+    boolean isOnLoan(String barcode) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final boolean result = isOnLoan(find(barcode));
+                if (lock.validate(stamp)) return result;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            return isOnLoan(find(barcode));
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /**
+     * Mark an item as on loan or available, doing nothing if there is no such item
+     * <p>
+     * Callers serialize the changes of each item, so setting the bit is idempotent: if the bitset was swapped by
+     * a concurrent {@link #put(Item)} in the meantime, the bit is simply set again under the read lock.
+     * @param barcode item barcode
+     * @param onLoan whether the item is on loan
+     */
+    void setOnLoan(String barcode, boolean onLoan) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                setOnLoan(find(barcode), onLoan);
+                if (lock.validate(stamp)) return;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            setOnLoan(find(barcode), onLoan);
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /**
+     * Count the items that are not on loan
+     * @param type item type, or null for all types
+     */
+    int countAvailable(String type) {
+        return count(type, true);
+    }
+
+    /**
+     * Count the items that are on loan
+     * @param type item type, or null for all types
+     */
+    int countOnLoan(String type) {
+        return count(type, false);
+    }
+
+    /**
+     * Iterate over the items that are not on loan, in ordinal order, starting at an ordinal
+     * Items lent or returned during the iteration may or may not be seen.
+     * @param type item type, or null for all types
+     * @param from first ordinal, as returned by {@link Cursor#position()}
+     */
+    Cursor available(String type, int from) {
+        final long stamp = lock.readLock();
+        try {
+            return new Cursor(from, type == null ? ANY : types.lookup(type), true);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Iterate over the items, creating each one as it is reached
+     * Items added or removed during the iteration may or may not be seen.
+     */
+    @Override
+    public Cursor iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate over the items in ordinal order, starting at an ordinal
+     * @param from first ordinal, as returned by {@link Cursor#position()}
+     */
+    Cursor iterator(int from) {
+        return new Cursor(from, ANY, false);
+    }
+
+    /**
+     * Iterator that can tell where it is, to continue from there later
+     */
+    final class Cursor implements Iterator<Item> {
+        private final int typeId;
+        private final boolean availableOnly;
+        private int ordinal;
+        private Item next;
+
+        private Cursor(int ordinal, int typeId, boolean availableOnly) {
+            this.ordinal = Math.max(0, ordinal);
+            this.typeId = typeId;
+            this.availableOnly = availableOnly;
+        }
+
+        /**
+         * Get the ordinal the iteration continues from
+         * @return ordinal following the last item returned
+         */
+        int position() {
+            return next == null ? ordinal : ordinal - 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                final long stamp = lock.readLock();
+                try {
+                    final int found = availableOnly ? nextAvailable(typeId, ordinal) : ordinal;
+                    if (found == NONE || found >= used) return false;
+                    ordinal = found;
+                    next = materialize(ordinal++);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Item item = next;
+            next = null;
+            return item;
+        }
+    }
+
+    /**
+     * @return type id of an item, {@link #NONE} if there is no such item
+     */
+    private int typeOf(String barcode) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final int ordinal = find(barcode);
+                final int type = ordinal == NONE ? NONE : typeIds[ordinal];
+                if (lock.validate(stamp)) return type;
+            } catch (RuntimeException ignored) {
+                // Arrays were swapped while reading, retry under the lock
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            final int ordinal = find(barcode);
+            return ordinal == NONE ? NONE : typeIds[ordinal];
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    private boolean isOnLoan(int ordinal) {
+        return ordinal != NONE && (onLoan.get(ordinal >>> 6) & 1L << ordinal) != 0;
+    }
+
+    private void setOnLoan(int ordinal, boolean value) {
+        if (ordinal == NONE) return;
+        if (value) onLoan.accumulateAndGet(ordinal >>> 6, 1L << ordinal, (word, bit) -> word | bit);
+        else onLoan.accumulateAndGet(ordinal >>> 6, ~(1L << ordinal), (word, mask) -> word & mask);
+    }
+
+    private int count(String type, boolean available) {
+        final long stamp = lock.readLock();
+        try {
+            final long[] bits = bitsOf(type == null ? ANY : types.lookup(type));
+            if (bits == null) return 0;
+            int count = 0;
+            for (int i = 0; i < bits.length; i++) {
+                final long lent = onLoan.get(i);
+                count += Long.bitCount(bits[i] & (available ? ~lent : lent));
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Find the next available item of a type, called with the read lock held
+     * @return its ordinal, -1 if there is none
+     */
+    private int nextAvailable(int typeId, int from) {
+        final long[] bits = bitsOf(typeId);
+        if (bits == null) return NONE;
+        for (int i = from >>> 6; i < bits.length; i++) {
+            long word = bits[i] & ~onLoan.get(i);
+            if (i == from >>> 6) word &= -1L << from;
+            if (word != 0) return (i << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return NONE;
+    }
+
+    /**
+     * @return bitset of the items of a type, of all items for {@link #ANY}, or null if there are none
+     */
+    private long[] bitsOf(int typeId) {
+        if (typeId == ANY) return present;
+        return typeId == NONE || typeId >= typeBits.length ? null : typeBits[typeId];
+    }
+
+    private long[] typeBitsOf(int typeId) {
+        if (typeId >= typeBits.length) typeBits = Arrays.copyOf(typeBits, typeId + 1);
+        if (typeBits[typeId] == null) typeBits[typeId] = new long[present.length];
+        return typeBits[typeId];
+    }
+
+    private Item materialize(int ordinal) {
+        if (ordinal == NONE) return null;
+        final String barcode = columns.barcode(ordinal);
+        if (barcode == null) return null;
+        return Item.of(barcode, authors.decode(authorIds[ordinal]), columns.title(ordinal),
+                types.decode(typeIds[ordinal]), years.decode(yearIds[ordinal]), columns.isbn(ordinal));
+    }
+
+    private int find(String barcode) {
+        final int slot = findSlot(barcode);
+        return slot < 0 ? NONE : table[slot];
+    }
+
+    private int findSlot(String barcode) {
+        final int[] table = this.table;
+        final int mask = table.length - 1;
+        for (int slot = hash(barcode.hashCode()) & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            final int ordinal = table[slot];
+            if (ordinal == EMPTY) return -1;
+            if (ordinal != DELETED && columns.hasBarcode(ordinal, barcode)) return slot;
+        }
+        return -1;
+    }
+
+    private void insert(String barcode, int ordinal) {
+        // Keep at least half of the slots empty; rehashing also clears the slots of removed items
+        if ((occupied + 1) * 2L > table.length) rehash((size + 1) * 4L > table.length ? table.length * 2 : table.length);
+        final int mask = table.length - 1;
+        int slot = hash(barcode.hashCode()) & mask;
+        while (table[slot] >= 0) slot = (slot + 1) & mask;
+        if (table[slot] == EMPTY) occupied++;
+        table[slot] = ordinal;
+    }
+
+    private void rehash(int length) {
+        // Filled before it is published, as optimistic readers may pick it up at any time
+        final int[] table = new int[length];
+        Arrays.fill(table, EMPTY);
+        occupied = 0;
+        final int mask = length - 1;
+        for (int ordinal : this.table) {
+            if (ordinal < 0) continue;
+            int slot = hash(columns.barcodeHash(ordinal)) & mask;
+            while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+            table[slot] = ordinal;
+            occupied++;
+        }
+        this.table = table;
+    }
+
+    private void grow() {
+        final int capacity = authorIds.length + (authorIds.length >> 1);
+        columns.grow(capacity);
+        authorIds = Arrays.copyOf(authorIds, capacity);
+        typeIds = Arrays.copyOf(typeIds, capacity);
+        yearIds = Arrays.copyOf(yearIds, capacity);
+        final int words = words(capacity);
+        if (words == present.length) return;
+        present = Arrays.copyOf(present, words);
+        for (int i = 0; i < typeBits.length; i++) {
+            if (typeBits[i] != null) typeBits[i] = Arrays.copyOf(typeBits[i], words);
+        }
+        final var onLoan = new AtomicLongArray(words);
+        for (int i = 0; i < this.onLoan.length(); i++) onLoan.set(i, this.onLoan.get(i));
+        this.onLoan = onLoan;
+    }
+
+    private static int hash(int barcodeHash) {
+        final int hash = barcodeHash * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int words(int capacity) {
+        return (capacity + 63) >>> 6;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+    }
+
+    /**
+     * Barcode, title and ISBN of every ordinal, changed under the write lock
+     */
+    private interface Columns {
+        void set(int ordinal, String barcode, String title, String isbn);
+
+        void clear(int ordinal);
+
+        /**
+         * @return barcode, null if the ordinal is not in use
+         */
+        String barcode(int ordinal);
+
+        String title(int ordinal);
+
+        String isbn(int ordinal);
+
+        boolean hasBarcode(int ordinal, String barcode);
+
+        /**
+         * @return {@link String#hashCode()} of the barcode of an ordinal in use
+         */
+        int barcodeHash(int ordinal);
+
+        void grow(int capacity);
+
+        default long offHeapBytes() {
+            return 0;
+        }
+
+        default LruCache.Stats cacheStats() {
+            return LruCache.Stats.NONE;
+        }
+
+        default void close() { }
+    }
+
+    private static final class HeapColumns implements Columns {
+        private String[] barcodes, titles, isbns;
+
+        HeapColumns(int capacity) {
+            barcodes = new String[capacity];
+            titles = new String[capacity];
+            isbns = new String[capacity];
+        }
+
+        @Override
+        public void set(int ordinal, String barcode, String title, String isbn) {
+            barcodes[ordinal] = barcode;
+            titles[ordinal] = title;
+            isbns[ordinal] = isbn;
+        }
+
+        @Override
+        public void clear(int ordinal) {
+            barcodes[ordinal] = titles[ordinal] = isbns[ordinal] = null;
+        }
+
+        @Override
+        public String barcode(int ordinal) {
+            return barcodes[ordinal];
+        }
+
+        @Override
+        public String title(int ordinal) {
+            return titles[ordinal];
+        }
+
+        @Override
+        public String isbn(int ordinal) {
+            return isbns[ordinal];
+        }
+
+        @Override
+        public boolean hasBarcode(int ordinal, String barcode) {
+            return barcode.equals(barcodes[ordinal]);
+        }
+
+        @Override
+        public int barcodeHash(int ordinal) {
+            return barcodes[ordinal].hashCode();
+        }
+
+        @Override
+        public void grow(int capacity) {
+            barcodes = Arrays.copyOf(barcodes, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            isbns = Arrays.copyOf(isbns, capacity);
+        }
+    }
+
+    /**
+     * Records of (barcode, title, ISBN) in a store, with the address and barcode hash of every ordinal
+     * Comparing barcodes checks the hash first, so a lookup decodes nothing and encodes its key about once.
+     */
+    private static final class ArenaColumns implements Columns {
+        private static final int BARCODE = 0, TITLE = 1, ISBN = 2, FIELDS = 3, RECORD_BYTES = 64;
+        private static final long COMPACT_AFTER = 1 << 20;
+
+        /**
+         * Creates a store for about as many bytes of records
+         */
+        private final LongFunction<Records> factory;
+        private Records arena;
+        private long[] addresses;
+        private int[] hashes;
+
+        ArenaColumns(int capacity, LongFunction<Records> factory) {
+            this.factory = factory;
+            arena = factory.apply((long) capacity * RECORD_BYTES);
+            addresses = new long[capacity];
+            Arrays.fill(addresses, -1);
+            hashes = new int[capacity];
+        }
+
+        @Override
+        public void set(int ordinal, String barcode, String title, String isbn) {
+            if (addresses[ordinal] >= 0) arena.free(addresses[ordinal], FIELDS);
+            if (arena.garbage() > COMPACT_AFTER && arena.garbage() * 2 > arena.used()) compact();
+            addresses[ordinal] = arena.append(barcode, title, isbn);
+            hashes[ordinal] = barcode.hashCode();
+        }
+
+        @Override
+        public void clear(int ordinal) {
+            if (addresses[ordinal] < 0) return;
+            arena.free(addresses[ordinal], FIELDS);
+            addresses[ordinal] = -1;
+        }
+
+        @Override
+        public String barcode(int ordinal) {
+            final long address = addresses[ordinal];
+            return address < 0 ? null : arena.read(address, BARCODE);
+        }
+
+        @Override
+        public String title(int ordinal) {
+            return arena.read(addresses[ordinal], TITLE);
+        }
+
+        @Override
+        public String isbn(int ordinal) {
+            return arena.read(addresses[ordinal], ISBN);
+        }
+
+        @Override
+        public boolean hasBarcode(int ordinal, String barcode) {
+            final long address = addresses[ordinal];
+            return address >= 0 && hashes[ordinal] == barcode.hashCode()
+                    && arena.matches(address, BARCODE, barcode.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int barcodeHash(int ordinal) {
+            return hashes[ordinal];
+        }
+
+        @Override
+        public void grow(int capacity) {
+            final int length = addresses.length;
+            addresses = Arrays.copyOf(addresses, capacity);
+            Arrays.fill(addresses, length, capacity, -1);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+
+        @Override
+        public long offHeapBytes() {
+            return arena.used();
+        }
+
+        @Override
+        public LruCache.Stats cacheStats() {
+            return arena.cacheStats();
+        }
+
+        @Override
+        public void close() {
+            try {
+                arena.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Copy the live records to a new arena, published only once complete as optimistic readers may still be
+         * reading the old one
+         */
+        private void compact() {
+            final Records compacted = factory.apply(arena.used() - arena.garbage());
+            final long[] addresses = this.addresses.clone();
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] < 0) continue;
+                final long address = addresses[i];
+                addresses[i] = compacted.append(arena.read(address, BARCODE), arena.read(address, TITLE),
+                        arena.read(address, ISBN));
+            }
+            final Records old = arena;
+            arena = compacted;
+            this.addresses = addresses;
+            try {
+                old.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Maps repeated strings to small ids, never forgetting them
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final ArrayList<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            if (value == null) return NONE;
+            return ids.computeIfAbsent(value, it -> {
+                values.add(it);
+                return values.size() - 1;
+            });
+        }
+
+        /**
+         * @return id of a value, -1 if it was never encoded
+         */
+        int lookup(String value) {
+            final Integer id = ids.get(value);
+            return id == null ? NONE : id;
+        }
+
+        String decode(int id) {
+            return id == NONE ? null : values.get(id);
+        }
+    }
+}
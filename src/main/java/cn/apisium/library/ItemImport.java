@@ -0,0 +1,409 @@
+package cn.apisium.library;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Year;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Import of a large items CSV file, parsed in parallel and merged in file order
+ * <p>
+ * The file is cut at line breaks into chunks of about {@code chunkBytes}, each read and parsed by a worker, with at
+ * most two chunks per worker in flight, so memory stays bounded however large the file is. Rows are validated as
+ * they are parsed. The chunks are then merged in file order, in batches of {@value #BATCH} items, so of duplicate
+ * rows the first one is kept: rows whose barcode is taken, by an item of the library or an earlier row, or whose
+ * ISBN was on an earlier row that was imported, are rejected like invalid ones. Rejected rows are written to a CSV
+ * file with their line and reason. Fields must not contain line breaks.
+ * <p>
+ * Only the set of ISBNs seen grows with the file, by 8 to 16 bytes per ISBN.
+ */
+final class ItemImport {
+    private static final int BATCH = 1024;
+    private static final String[] COLUMNS = { "Barcode", "Author/Artist", "Title", "Type", "Year", "ISBN" };
+    private static final int BARCODE = 0, AUTHOR = 1, TITLE = 2, TYPE = 3, YEAR = 4, ISBN = 5;
+    private static final CsvSchema rejectSchema = CsvSchema.builder().addColumn("Line").addColumn("Reason")
+            .addColumn("Row").build().withHeader();
+
+    private final Set<String> types;
+    private final int chunkBytes, parallelism, maxYear = Year.now().getValue() + 1;
+
+    /**
+     * @param types valid item types, or empty for any type
+     * @param chunkBytes size of the chunks parsed by the workers
+     * @param parallelism number of worker threads
+     */
+    ItemImport(Set<String> types, int chunkBytes, int parallelism) {
+        if (chunkBytes < 1) throw new IllegalArgumentException("Chunk size must be positive!");
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive!");
+        this.types = types;
+        this.chunkBytes = chunkBytes;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Import the items of a file
+     * @param file CSV file with a header row naming the columns of ITEMS.csv, in any order
+     * @param rejects file to write the rejected rows to, or null not to write them
+     * @param merge adds a batch of items, returning the indexes of those not added as their barcode is taken
+     * @return report
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the file has no Barcode column
+     */
+    ImportReport run(Path file, Path rejects, Function<List<Item>, BitSet> merge) throws IOException {
+        final long start = System.nanoTime();
+        final var count = new AtomicInteger();
+        final ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            var thread = new Thread(r, "library-import-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             var out = rejects == null ? null : new BufferedOutputStream(Files.newOutputStream(rejects), 1 << 16);
+             SequenceWriter writer = out == null ? null : new CsvMapper().writer(rejectSchema).writeValues(out)) {
+            final long size = channel.size();
+            long position = lineEnd(channel, 0, size);
+            final Header header = header(read(channel, 0, position));
+            final var merger = new Merger(merge, writer);
+            final var pending = new ArrayDeque<Future<Chunk>>();
+            while (position < size || !pending.isEmpty()) {
+                while (position < size && pending.size() < parallelism * 2) {
+                    final long from = position, to = lineEnd(channel, Math.min(size, from + chunkBytes) - 1, size);
+                    pending.add(workers.submit(() -> parse(read(channel, from, to), header)));
+                    position = to;
+                }
+                merger.merge(await(pending.remove()));
+            }
+            return new ImportReport(merger.rows, merger.imported, merger.reasons, System.nanoTime() - start);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Columns of the file
+     * @param columns index of each of {@link #COLUMNS} in a row, -1 if the file does not have it
+     * @param width number of fields of a row
+     */
+    private record Header(int[] columns, int width) {
+        String field(String[] fields, int column) {
+            return columns[column] < 0 ? null : fields[columns[column]];
+        }
+    }
+
+    /**
+     * A valid row, not yet checked for duplicates
+     * @param line index of its line in the chunk
+     * @param isbn ISBN key, 0 if it has none
+     */
+    private record Parsed(int line, Item item, long isbn, String row) { }
+
+    private record Reject(int line, String reason, String row) { }
+
+    private static final class Chunk {
+        private final List<Parsed> items = new ArrayList<>();
+        private final List<Reject> rejects = new ArrayList<>();
+        private int lines, rows;
+    }
+
+    private Header header(byte[] bytes) {
+        String line = new String(bytes, StandardCharsets.UTF_8).strip();
+        if (line.startsWith("\uFEFF")) line = line.substring(1);
+        final String[] names = split(line);
+        final int[] columns = new int[COLUMNS.length];
+        Arrays.fill(columns, -1);
+        for (int i = 0; names != null && i < names.length; i++) {
+            for (int column = 0; column < COLUMNS.length; column++) {
+                if (COLUMNS[column].equals(names[i])) columns[column] = i;
+            }
+        }
+        if (columns[BARCODE] < 0) throw new IllegalArgumentException("Missing Barcode column!");
+        return new Header(columns, names.length);
+    }
+
+    private Chunk parse(byte[] bytes, Header header) {
+        final var chunk = new Chunk();
+        for (int from = 0; from < bytes.length; chunk.lines++) {
+            int to = from;
+            while (to < bytes.length && bytes[to] != '\n') to++;
+            final int end = to > from && bytes[to - 1] == '\r' ? to - 1 : to;
+            if (end > from) {
+                chunk.rows++;
+                validate(chunk, chunk.lines, new String(bytes, from, end - from, StandardCharsets.UTF_8), header);
+            }
+            from = to + 1;
+        }
+        return chunk;
+    }
+
+    private void validate(Chunk chunk, int line, String row, Header header) {
+        final String[] fields = split(row);
+        final String reason;
+        if (fields == null) reason = "Malformed row";
+        else if (fields.length != header.width()) reason = "Wrong number of fields";
+        else {
+            final String barcode = header.field(fields, BARCODE), type = header.field(fields, TYPE),
+                    year = header.field(fields, YEAR), isbn = header.field(fields, ISBN);
+            final long isbnKey = isbn == null || isbn.isEmpty() ? 0 : isbnKey(isbn);
+            if (barcode.isBlank()) reason = "Missing barcode";
+            else if (type == null || type.isBlank() || !types.isEmpty() && !types.contains(type)) {
+                reason = "Unknown type";
+            }
+            else if (year != null && !year.isEmpty() && !isYear(year)) reason = "Invalid year";
+            else if (isbn != null && !isbn.isEmpty() && isbnKey == 0) reason = "Invalid ISBN";
+            else {
+                final Item item = Item.of(barcode, header.field(fields, AUTHOR), header.field(fields, TITLE), type,
+                        year, isbn);
+                chunk.items.add(new Parsed(line, item, isbnKey, row));
+                return;
+            }
+        }
+        chunk.rejects.add(new Reject(line, reason, row));
+    }
+
+    private boolean isYear(String year) {
+        if (year.length() > 4) return false;
+        for (int i = 0; i < year.length(); i++) if (year.charAt(i) < '0' || year.charAt(i) > '9') return false;
+        return Integer.parseInt(year) <= maxYear;
+    }
+
+    /**
+     * Check an ISBN-10 or ISBN-13, ignoring hyphens and spaces
+     * @return the first 12 digits of its ISBN-13 form as a number, the same for both forms, or 0 if it is invalid
+     */
+    static long isbnKey(String isbn) {
+        final int[] digits = new int[13];
+        int count = 0;
+        for (int i = 0; i < isbn.length(); i++) {
+            final char c = isbn.charAt(i);
+            if (c == '-' || c == ' ') continue;
+            if (count == digits.length) return 0;
+            if (c >= '0' && c <= '9') digits[count++] = c - '0';
+            else if ((c == 'X' || c == 'x') && count == 9) digits[count++] = 10;
+            else return 0;
+        }
+        long key = 0;
+        int sum = 0;
+        if (count == 10) {
+            for (int i = 0; i < 10; i++) sum += (10 - i) * digits[i];
+            if (sum % 11 != 0) return 0;
+            key = 978;
+            for (int i = 0; i < 9; i++) key = key * 10 + digits[i];
+            return key;
+        }
+        if (count != 13) return 0;
+        for (int i = 0; i < 13; i++) {
+            if (digits[i] == 10) return 0;
+            sum += digits[i] * (i % 2 == 0 ? 1 : 3);
+        }
+        if (sum % 10 != 0) return 0;
+        for (int i = 0; i < 12; i++) key = key * 10 + digits[i];
+        final long prefix = key / 1_000_000_000L;
+        return prefix == 978 || prefix == 979 ? key : 0;
+    }
+
+    /**
+     * Split a CSV line into its fields, unquoting them
+     * @return fields, or null if a quote is not closed
+     */
+    static String[] split(String line) {
+        final var fields = new ArrayList<String>(COLUMNS.length);
+        final var field = new StringBuilder();
+        for (int i = 0; ; i++) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                for (i++; ; i++) {
+                    final int quote = line.indexOf('"', i);
+                    if (quote < 0) return null;
+                    field.append(line, i, quote);
+                    i = quote + 1;
+                    if (i == line.length() || line.charAt(i) != '"') break;
+                    field.append('"');
+                }
+                if (i < line.length() && line.charAt(i) != ',') return null;
+            } else {
+                final int comma = line.indexOf(',', i);
+                final int end = comma < 0 ? line.length() : comma;
+                field.append(line, i, end);
+                i = end;
+            }
+            fields.add(field.toString());
+            if (i >= line.length()) return fields.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * @return position after the first line break at or after a position, or the size of the file
+     */
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        final var buffer = ByteBuffer.allocate(4096);
+        while (position < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if (read < 0) break;
+            for (int i = 0; i < read; i++) if (buffer.get(i) == '\n') return position + i + 1;
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte[] read(FileChannel channel, long from, long to) throws IOException {
+        final var buffer = ByteBuffer.allocate(Math.toIntExact(to - from));
+        while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) { }
+        return buffer.array();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while importing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Merges the chunks in file order, on the calling thread
+     */
+    private static final class Merger {
+        private final Function<List<Item>, BitSet> merge;
+        private final SequenceWriter writer;
+        /**
+         * ISBNs of the rows imported, and of the rows of the batch being built, which may still be rejected
+         */
+        private final LongSet isbns = new LongSet(), batchIsbns = new LongSet();
+        private final Map<String, Long> reasons = new TreeMap<>();
+        private final List<Item> batch = new ArrayList<>(BATCH);
+        private final List<Parsed> parsed = new ArrayList<>(BATCH);
+        /**
+         * Lines before the chunk being merged, the header included
+         */
+        private long line = 1;
+        private long rows, imported;
+
+        Merger(Function<List<Item>, BitSet> merge, SequenceWriter writer) {
+            this.merge = merge;
+            this.writer = writer;
+        }
+
+        void merge(Chunk chunk) throws IOException {
+            final var rejects = new ArrayList<>(chunk.rejects);
+            for (Parsed row : chunk.items) {
+                if (row.isbn() != 0) {
+                    // Settle whether the earlier row of the batch with this ISBN gets in before judging this one
+                    if (batchIsbns.contains(row.isbn())) flush(rejects);
+                    if (isbns.contains(row.isbn())) {
+                        rejects.add(new Reject(row.line(), "Duplicate ISBN", row.row()));
+                        continue;
+                    }
+                    batchIsbns.add(row.isbn());
+                }
+                batch.add(row.item());
+                parsed.add(row);
+                if (batch.size() == BATCH) flush(rejects);
+            }
+            flush(rejects);
+            rejects.sort(Comparator.comparingInt(Reject::line));
+            for (Reject reject : rejects) {
+                reasons.merge(reject.reason(), 1L, Long::sum);
+                if (writer == null) continue;
+                writer.write(Arrays.asList(line + reject.line() + 1, reject.reason(), reject.row()));
+            }
+            line += chunk.lines;
+            rows += chunk.rows;
+        }
+
+        private void flush(List<Reject> rejects) {
+            if (batch.isEmpty()) return;
+            final BitSet taken = merge.apply(batch);
+            for (int i = 0; i < parsed.size(); i++) {
+                final Parsed row = parsed.get(i);
+                if (taken.get(i)) rejects.add(new Reject(row.line(), "Barcode taken", row.row()));
+                else if (row.isbn() != 0) isbns.add(row.isbn());
+            }
+            imported += batch.size() - taken.cardinality();
+            batch.clear();
+            parsed.clear();
+            batchIsbns.clear();
+        }
+    }
+
+    /**
+     * Open addressing set of non-zero longs
+     */
+    private static final class LongSet {
+        private long[] keys = new long[1024];
+        private int size;
+
+        /**
+         * @return whether the key was not in the set yet
+         */
+        boolean add(long key) {
+            if ((size + 1) * 2L > keys.length) {
+                final long[] old = keys;
+                keys = new long[old.length * 2];
+                for (long it : old) if (it != 0) insert(it);
+            }
+            if (!insert(key)) return false;
+            size++;
+            return true;
+        }
+
+        boolean contains(long key) {
+            final int mask = keys.length - 1;
+            for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return true;
+                if (keys[slot] == 0) return false;
+            }
+        }
+
+        void clear() {
+            if (size == 0) return;
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+
+        private boolean insert(long key) {
+            final int mask = keys.length - 1;
+            for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return false;
+                if (keys[slot] == 0) {
+                    keys[slot] = key;
+                    return true;
+                }
+            }
+        }
+
+        private static int slotOf(long key, int mask) {
+            return (int) (key * 0x9E3779B97F4A7C15L >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package cn.apisium.library;
+
+/**
+ * Store of the items of a library, keyed by barcode
+ * <p>
+ * {@link ItemCatalog} is the implementation: it keeps the item ordinals, hash index and availability in memory,
+ * and the barcode, title and ISBN strings on the heap, outside it, or in a file behind a cache, as its
+ * {@link ItemCatalog.Storage} says. All methods are safe to call from multiple threads.
+ */
+interface ItemRepository extends Iterable<Item> {
+    /**
+     * @return a copy of the item, or null if there is none
+     */
+    Item get(String barcode);
+
+    /**
+     * Add or replace an item
+     * @return the item replaced, or null
+     */
+    Item put(Item item);
+
+    /**
+     * @return the item removed, or null if there was none
+     */
+    Item remove(String barcode);
+
+    boolean contains(String barcode);
+
+    int size();
+
+    /**
+     * @return counts of the cache in front of the stored items, {@link LruCache.Stats#NONE} if there is none
+     */
+    LruCache.Stats cacheStats();
+}
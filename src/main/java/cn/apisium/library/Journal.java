@@ -0,0 +1,351 @@
+package cn.apisium.library;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Append-only write-ahead journal of changes
+ * <p>
+ * Every change is one tab separated line. Lines are buffered and written in groups of {@code groupCommit}
+ * records, and the file is forced to disk at most every {@code syncMillis} milliseconds; a background flusher
+ * writes and forces whatever is left every {@code syncMillis}, so nothing stays in memory or unsynced longer than
+ * that. With a {@code syncMillis} of zero there is no flusher: every append is written and forced before it
+ * returns.
+ */
+final class Journal implements Closeable {
+    static final String FILE = "JOURNAL.log", ROTATED_FILE = "JOURNAL.log.1";
+    private static final String NULL = "\\N";
+
+    private final Path file, rotatedFile;
+    private final int groupCommit;
+    private final long syncNanos;
+    private final ScheduledExecutorService flusher;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    private final StringBuilder line = new StringBuilder(128);
+    private FileChannel channel;
+    private int pending;
+    private long records, lastSync = System.nanoTime();
+    private boolean unsynced;
+
+    /**
+     * Open the journal in a directory, appending to an existing one after its last complete record
+     * @param directory data directory
+     * @param groupCommit number of records buffered before they are written
+     * @param syncMillis longest time written records may stay unsynced, 0 to sync on every write
+     * @throws IOException if an I/O error occurs
+     */
+    Journal(Path directory, int groupCommit, long syncMillis) throws IOException {
+        this.file = directory.resolve(FILE);
+        this.rotatedFile = directory.resolve(ROTATED_FILE);
+        this.groupCommit = Math.max(1, groupCommit);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        // A record cut short by a crash was skipped by the replay, and must not be continued by the next one
+        dropTornRecord(rotatedFile);
+        dropTornRecord(file);
+        channel = open(file);
+        if (syncMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "library-journal");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else flusher = null;
+    }
+
+    /**
+     * Append a change
+     * @param change change
+     */
+    synchronized void append(Change change) {
+        write(change);
+        records++;
+        pending++;
+        commitIfNeeded();
+    }
+
+    /**
+     * Append changes as one group
+     * @param changes changes, in order
+     */
+    synchronized void append(List<Change> changes) {
+        for (Change change : changes) write(change);
+        records += changes.size();
+        pending += changes.size();
+        commitIfNeeded();
+    }
+
+    /**
+     * Get the number of records appended since the journal was opened or last rotated
+     * @return records
+     */
+    synchronized long records() {
+        return records;
+    }
+
+    /**
+     * Move the current records aside and start an empty journal
+     * <p>
+     * Records rotated earlier but never {@link #dropRotated() dropped} are kept in front of the new ones.
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void rotate() throws IOException {
+        flush(true);
+        channel.close();
+        if (Files.exists(rotatedFile)) {
+            try (var out = FileChannel.open(rotatedFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 var in = FileChannel.open(file, StandardOpenOption.READ)) {
+                in.transferTo(0, in.size(), out);
+                out.force(true);
+            }
+            Files.delete(file);
+        } else Files.move(file, rotatedFile, StandardCopyOption.ATOMIC_MOVE);
+        channel = open(file);
+        records = 0;
+    }
+
+    /**
+     * Delete the rotated records once they are part of a saved snapshot
+     * @throws IOException if an I/O error occurs
+     */
+    void dropRotated() throws IOException {
+        Files.deleteIfExists(rotatedFile);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) flusher.shutdown();
+        flush(true);
+        channel.close();
+    }
+
+    /**
+     * Replay the rotated and the current journal of a directory
+     * <p>
+     * A trailing record that was only partially written before a crash is ignored, and dropped when the journal is
+     * opened again. A record with the wrong number of fields is corrupted.
+     * @param directory data directory
+     * @param consumer receives the changes in order
+     * @return number of replayed records
+     * @throws IOException if an I/O error occurs
+     */
+    static long replay(Path directory, Consumer<Change> consumer) throws IOException {
+        return replayFile(directory.resolve(ROTATED_FILE), consumer) + replayFile(directory.resolve(FILE), consumer);
+    }
+
+    private static long replayFile(Path file, Consumer<Change> consumer) throws IOException {
+        if (!Files.exists(file)) return 0;
+        long count = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            var bytes = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    bytes.write(b);
+                    continue;
+                }
+                Change change;
+                try {
+                    change = decode(bytes.toString(StandardCharsets.UTF_8));
+                } catch (RuntimeException e) {
+                    throw new IOException("Corrupted journal record " + (count + 1) + " in " + file, e);
+                }
+                consumer.accept(change);
+                bytes.reset();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void write(Change change) {
+        line.setLength(0);
+        encode(change, line);
+        buffer.writeBytes(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a full group, forcing it if the last sync is too old, or write and force every append without a flusher
+     */
+    private void commitIfNeeded() {
+        if (syncNanos > 0 && pending < groupCommit) return;
+        try {
+            flush(syncNanos == 0 || System.nanoTime() - lastSync >= syncNanos);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushQuietly() {
+        synchronized (this) {
+            if (pending == 0 && !unsynced) return;
+            try {
+                flush(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flush(boolean force) throws IOException {
+        if (pending > 0) {
+            var bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) channel.write(bytes);
+            buffer.reset();
+            pending = 0;
+            unsynced = true;
+        }
+        if (force && unsynced) {
+            channel.force(false);
+            unsynced = false;
+            lastSync = System.nanoTime();
+        }
+    }
+
+    /**
+     * Truncate a journal file after its last line break
+     */
+    private static void dropTornRecord(Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final var bytes = ByteBuffer.allocate(8192);
+            long end = channel.size();
+            while (end > 0) {
+                final long start = Math.max(0, end - bytes.capacity());
+                bytes.clear().limit((int) (end - start));
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, start + bytes.position()) < 0) throw new IOException("Journal shrank");
+                }
+                int i = bytes.limit() - 1;
+                while (i >= 0 && bytes.get(i) != '\n') i--;
+                if (i >= 0) {
+                    end = start + i + 1;
+                    break;
+                }
+                end = start;
+            }
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(false);
+            }
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static void encode(Change change, StringBuilder out) {
+        if (change instanceof Change.LoanCreated it) {
+            fields(out, 'L', it.barcode(), it.userId(), Loan.formatDay(it.issueDay()), Loan.formatDay(it.dueDay()));
+        } else if (change instanceof Change.LoanRenewed it) {
+            fields(out, 'R', it.barcode(), it.userId(), Loan.formatDay(it.dueDay()), Integer.toString(it.numRenews()));
+        } else if (change instanceof Change.ItemReturned it) {
+            fields(out, 'T', it.barcode(), it.userId());
+        } else if (change instanceof Change.ItemAdded it) {
+            var item = it.item();
+            fields(out, 'I', item.getBarcode(), item.getAuthor(), item.getTitle(), item.getType(), item.getYear(),
+                    item.getIsbn());
+        } else if (change instanceof Change.ItemRemoved it) {
+            fields(out, 'i', it.barcode());
+        } else if (change instanceof Change.UserAdded it) {
+            var user = it.user();
+            fields(out, 'U', user.getUserId(), user.getFirstName(), user.getLastName(), user.getEmail());
+        } else if (change instanceof Change.UserRemoved it) {
+            fields(out, 'u', it.userId());
+        }
+    }
+
+    static Change decode(String line) {
+        var fields = split(line);
+        final int expected = switch (fields[0]) {
+            case "i", "u" -> 2;
+            case "T" -> 3;
+            case "L", "R", "U" -> 5;
+            case "I" -> 7;
+            default -> throw new IllegalArgumentException("Unknown journal record: " + line);
+        };
+        if (fields.length != expected) throw new IllegalArgumentException("Wrong number of fields: " + line);
+        return switch (line.charAt(0)) {
+            case 'L' -> new Change.LoanCreated(fields[1], fields[2], Loan.parseDay(fields[3]), Loan.parseDay(fields[4]));
+            case 'R' -> new Change.LoanRenewed(fields[1], fields[2], Loan.parseDay(fields[3]), Integer.parseInt(fields[4]));
+            case 'T' -> new Change.ItemReturned(fields[1], fields[2]);
+            case 'I' -> new Change.ItemAdded(Item.of(fields[1], fields[2], fields[3], fields[4], fields[5], fields[6]));
+            case 'i' -> new Change.ItemRemoved(fields[1]);
+            case 'U' -> {
+                var user = new User();
+                user.setUserId(fields[1]);
+                user.setFirstName(fields[2]);
+                user.setLastName(fields[3]);
+                user.setEmail(fields[4]);
+                yield new Change.UserAdded(user);
+            }
+            case 'u' -> new Change.UserRemoved(fields[1]);
+            default -> throw new IllegalArgumentException("Unknown journal record: " + line);
+        };
+    }
+
+    private static void fields(StringBuilder out, char type, String... fields) {
+        out.append(type);
+        for (var field : fields) {
+            out.append('\t');
+            if (field == null) {
+                out.append(NULL);
+                continue;
+            }
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                switch (c) {
+                    case '\\' -> out.append("\\\\");
+                    case '\t' -> out.append("\\t");
+                    case '\n' -> out.append("\\n");
+                    case '\r' -> out.append("\\r");
+                    default -> out.append(c);
+                }
+            }
+        }
+    }
+
+    private static String[] split(String line) {
+        var fields = new ArrayList<String>(8);
+        var field = new StringBuilder();
+        boolean escaped = false, isNull = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (escaped) {
+                escaped = false;
+                switch (c) {
+                    case 't' -> field.append('\t');
+                    case 'n' -> field.append('\n');
+                    case 'r' -> field.append('\r');
+                    case 'N' -> isNull = true;
+                    default -> field.append(c);
+                }
+            } else if (c == '\\') escaped = true;
+            else if (c == '\t') {
+                fields.add(isNull ? null : field.toString());
+                field.setLength(0);
+                isNull = false;
+            } else field.append(c);
+        }
+        fields.add(isNull ? null : field.toString());
+        return fields.toArray(String[]::new);
+    }
+}
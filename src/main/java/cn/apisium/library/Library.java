@@ -0,0 +1,347 @@
+package cn.apisium.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Operations of a library, kept in one {@link Management} or spread over the shards of a {@link ShardedManagement}
+ * <p>
+ * All operations are safe to call from multiple threads. Failed operations throw an
+ * {@link IllegalArgumentException} whose message tells why.
+ */
+public interface Library extends Closeable {
+    /**
+     * Open the library in a directory, sharded if the directory already is or {@code library.shards} is above 1
+     * @param directory data directory
+     * @param format format to read, or null to read the snapshot if there is one and the CSV files otherwise
+     * @return the library
+     * @throws IOException if an I/O error occurs
+     */
+    static Library open(Path directory, Management.Format format) throws IOException {
+        final int shards = Integer.getInteger("library.shards", 0);
+        if (shards > 1 || Files.exists(directory.resolve(ShardedManagement.FILE))) {
+            return new ShardedManagement(directory, shards, format);
+        }
+        return new Management(directory, format);
+    }
+
+    /**
+     * Create a new loan
+     * @param barcode item barcode
+     * @param userId user ID
+     * @throws IllegalArgumentException if the item is not found, the user is not found, the item is already on loan
+     *                                  or the user has reached the loan limit
+     */
+    void createLoan(String barcode, String userId) throws IllegalArgumentException;
+
+    /**
+     * Renew a loan
+     * @param barcode item barcode
+     * @param userId user ID
+     * @throws IllegalArgumentException if the item is not found or the user is not found
+     */
+    void renewLoan(String barcode, String userId) throws IllegalArgumentException;
+
+    /**
+     * Return a loan
+     * @param barcode item barcode
+     * @param userId user ID
+     * @throws IllegalArgumentException if the item is not found or the user is not found
+     */
+    void returnItem(String barcode, String userId) throws IllegalArgumentException;
+
+    /**
+     * Create loans in one go
+     * @param requests items and the users borrowing them
+     * @param atomic whether to create none of the loans if any of them cannot be created
+     * @return number of loans created and the requests that failed
+     */
+    BatchResult createLoans(List<LoanRequest> requests, boolean atomic);
+
+    /**
+     * Renew loans in one go
+     * @param requests items and the users holding them
+     * @param atomic whether to renew none of the loans if any of them cannot be renewed
+     * @return number of loans renewed and the requests that failed
+     */
+    BatchResult renewLoans(List<LoanRequest> requests, boolean atomic);
+
+    /**
+     * Return items in one go
+     * @param requests items and the users holding them
+     * @param atomic whether to return none of the items if any of them cannot be returned
+     * @return number of items returned and the requests that failed
+     */
+    BatchResult returnItems(List<LoanRequest> requests, boolean atomic);
+
+    /**
+     * Save the data changed since the last save in the current {@link #getFormat() format}
+     */
+    void save();
+
+    /**
+     * Write all data to the CSV files, whatever the storage format is
+     * @throws IOException if an I/O error occurs
+     */
+    void exportCsv() throws IOException;
+
+    /**
+     * Write the items, loans and loan history to a compressed, column oriented file, for offline analysis
+     * @param file file to write
+     * @throws IOException if an I/O error occurs
+     */
+    void exportColumns(Path file) throws IOException;
+
+    Management.Format getFormat();
+
+    void setFormat(Management.Format format);
+
+    /**
+     * Get how often the data is saved in the background
+     * @return interval, zero if not saved periodically
+     */
+    Duration getSaveInterval();
+
+    /**
+     * Save in the background at a fixed interval
+     * @param interval time from the end of one save to the start of the next, zero or null to stop
+     */
+    void setSaveInterval(Duration interval);
+
+    /**
+     * Get how long loading the data took
+     * @return load report, empty if not loaded from files
+     */
+    LoadReport getLoadReport();
+
+    /**
+     * Get the operation counters and latencies
+     * @return metrics, to read or to {@link Metrics#register(String) publish over JMX}
+     */
+    Metrics getMetrics();
+
+    /**
+     * Get the circulation aggregates, counted as loans are created, renewed and returned
+     * @return loans by item type and month, most borrowed authors and renewal rates
+     */
+    Analytics getAnalytics();
+
+    /**
+     * Get the stream of changes, to follow every loan, item and user mutation as it is made
+     * <p>
+     * Subscribers receive batches of changes without ever slowing circulation down; one that falls behind misses
+     * changes, counted by {@link ChangeStream#getDropped()}.
+     * @return publisher of batches of changes
+     */
+    ChangeStream getChanges();
+
+    /**
+     * Get a user
+     * @param userId user ID
+     * @return user, or null if there is none
+     */
+    User getUser(String userId);
+
+    /**
+     * Get an item
+     * @param barcode item barcode
+     * @return a copy of the item, or null if there is none
+     */
+    Item getItem(String barcode);
+
+    /**
+     * Get the loans of a user
+     * @param userId user ID
+     * @return loans the user currently has
+     */
+    List<Loan> getLoansForUser(String userId);
+
+    /**
+     * Get the number of loans a user has
+     * @param userId user ID
+     * @return number of loans
+     */
+    int getLoanCount(String userId);
+
+    int getLoanLimit();
+
+    /**
+     * Set the number of loans a user may have at once
+     * @param loanLimit loan limit
+     */
+    void setLoanLimit(int loanLimit);
+
+    /**
+     * Search items by the words of their title and author
+     * @param query query, e.g. "gabe en"
+     * @param limit maximum number of results
+     * @return matching items
+     */
+    List<Item> search(String query, int limit);
+
+    /**
+     * Get all loans
+     * @return an unmodifiable copy of the loans
+     */
+    List<Loan> getLoans();
+
+    default Page<Item> listItems(String cursor, int limit) {
+        return listItems(cursor, limit, null);
+    }
+
+    /**
+     * List items in catalog order
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of items
+     */
+    Page<Item> listItems(String cursor, int limit, Predicate<? super Item> filter);
+
+    /**
+     * List the items that are not on loan, in catalog order
+     * @param type item type, such as "Book", or null for all types
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @return page of items
+     */
+    Page<Item> listAvailableItems(String type, String cursor, int limit);
+
+    /**
+     * Check whether an item can be lent
+     * @param barcode item barcode
+     * @return whether the item exists and is not on loan
+     */
+    boolean isAvailable(String barcode);
+
+    /**
+     * Count the items that are not on loan
+     * @param type item type, or null for all types
+     */
+    int countAvailable(String type);
+
+    /**
+     * Count the items that are on loan
+     * @param type item type, or null for all types
+     */
+    int countOnLoan(String type);
+
+    default Page<User> listUsers(String cursor, int limit) {
+        return listUsers(cursor, limit, null);
+    }
+
+    /**
+     * List users, by user ID, or in the order they were added with {@code -Dlibrary.users.store=file}
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of users
+     */
+    Page<User> listUsers(String cursor, int limit, Predicate<? super User> filter);
+
+    default Page<Loan> listLoans(String cursor, int limit) {
+        return listLoans(cursor, limit, null);
+    }
+
+    /**
+     * List loans by due date, then barcode
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of loans
+     */
+    Page<Loan> listLoans(String cursor, int limit, Predicate<? super Loan> filter);
+
+    /**
+     * Get the loans that are overdue
+     * @param asOf date to check against
+     * @return loans due before the date, earliest due first
+     */
+    List<Loan> getOverdueLoans(LocalDate asOf);
+
+    /**
+     * Get the loans that fall due soon
+     * @param from first day
+     * @param days number of days after the first day to include
+     * @return loans due from {@code from} to {@code from + days} inclusive, earliest due first
+     */
+    List<Loan> getLoansDueWithin(LocalDate from, int days);
+
+    /**
+     * Find returned loans in the loan history
+     * @param barcode item barcode, or null for all items
+     * @param userId user ID, or null for all users
+     * @param from first day the loans may have run on, or null for no limit
+     * @param to last day the loans may have run on, or null for no limit
+     * @return loans that ran on any day of the range, by day of return, then barcode
+     */
+    List<ReturnedLoan> getLoanHistory(String barcode, String userId, LocalDate from, LocalDate to);
+
+    /**
+     * Assess the overdue days and fines of every user, at the daily rate of each item type
+     * @param asOf day to assess
+     * @param parallelism number of worker threads
+     * @return fines of the users with overdue loans
+     * @see Item#getFinePerDay()
+     */
+    FinesReport assessFines(LocalDate asOf, int parallelism);
+
+    /**
+     * Import the items of a large CSV file in parallel, adding only the valid rows whose barcode and ISBN are new
+     * @param file CSV file with the columns of ITEMS.csv
+     * @param rejects file to write the rejected rows to, with their line and reason, or null not to write them
+     * @param parallelism number of worker threads
+     * @return numbers of rows read, imported and rejected by reason
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the file has no Barcode column
+     */
+    ImportReport importItems(Path file, Path rejects, int parallelism) throws IOException;
+
+    /**
+     * Add or replace a user
+     * @param user user
+     */
+    void addUser(User user);
+
+    default void removeUser(String userId) throws IllegalArgumentException {
+        removeUser(userId, false);
+    }
+
+    /**
+     * Remove a user
+     * @param userId user ID
+     * @param returnLoans whether to return the user's loans first instead of refusing to remove the user
+     * @throws IllegalArgumentException if the user is not found or still has loans
+     */
+    void removeUser(String userId, boolean returnLoans) throws IllegalArgumentException;
+
+    /**
+     * Add or replace an item
+     * @param item item
+     */
+    void addItem(Item item);
+
+    default void removeItem(String barcode) throws IllegalArgumentException {
+        removeItem(barcode, false);
+    }
+
+    /**
+     * Remove an item
+     * @param barcode item barcode
+     * @param returnLoan whether to return the item first if it is on loan instead of refusing to remove it
+     * @throws IllegalArgumentException if the item is not found or is on loan
+     */
+    void removeItem(String barcode, boolean returnLoan) throws IllegalArgumentException;
+
+    void viewItems();
+
+    void viewLoans();
+
+    void viewUsers();
+}
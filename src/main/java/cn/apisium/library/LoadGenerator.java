@@ -0,0 +1,206 @@
+package cn.apisium.library;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link Server} with a mix of lookups, listings, searches and loan round trips, and reports the
+ * throughput and latency seen by the clients
+ * <p>
+ * The items and users used are sampled from the first pages of the listings. Every loan created is returned
+ * again, and each client thread lends its own share of the sampled items, so the run leaves the data as it was.
+ */
+public final class LoadGenerator {
+    private static final int SAMPLE = 1000;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final URI base;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+
+    /**
+     * @param base address of the server, such as {@code http://127.0.0.1:8080}
+     */
+    public LoadGenerator(URI base) {
+        this.base = base;
+    }
+
+    /**
+     * Outcome of a run
+     *
+     * @param requests requests completed
+     * @param rejected requests the library refused (4xx), such as lending an item another client has just lent
+     * @param errors requests that failed with a server error or could not be sent
+     * @param wallNanos duration of the run
+     * @param p50Nanos median latency
+     * @param p99Nanos 99th percentile latency
+     * @param maxNanos highest latency
+     */
+    public record Report(long requests, long rejected, long errors, long wallNanos, long p50Nanos, long p99Nanos,
+                         long maxNanos) {
+        public double requestsPerSecond() {
+            return wallNanos == 0 ? 0 : requests * 1e9 / wallNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %d ms: %.0f req/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, " +
+                            "%d rejected, %d errors", requests, TimeUnit.NANOSECONDS.toMillis(wallNanos),
+                    requestsPerSecond(), p50Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6, rejected, errors);
+        }
+    }
+
+    /**
+     * Run the load
+     * @param threads number of client threads, each with one request in flight
+     * @param duration how long to run
+     * @return the report
+     * @throws IOException if the items and users cannot be sampled
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    public Report run(int threads, Duration duration) throws IOException, InterruptedException {
+        final List<JsonNode> items = sample("/items?limit=" + SAMPLE), users = sample("/users?limit=" + SAMPLE);
+        if (items.isEmpty() || users.isEmpty()) throw new IOException("The library has no items or users");
+        final String[] barcodes = items.stream().map(it -> it.path("Barcode").asText()).toArray(String[]::new),
+                userIds = users.stream().map(it -> it.path("User_id").asText()).toArray(String[]::new),
+                words = items.stream().flatMap(it -> SearchIndex.tokenize(it.path("Title").asText()).stream())
+                        .distinct().toArray(String[]::new);
+        final var clients = new ArrayList<Client>(threads);
+        final long start = System.nanoTime(), end = start + duration.toNanos();
+        for (int i = 0; i < threads; i++) {
+            final var client = new Client(i, threads, barcodes, userIds, words, end);
+            client.thread.start();
+            clients.add(client);
+        }
+        long requests = 0, rejected = 0, errors = 0;
+        for (Client client : clients) {
+            client.thread.join();
+            requests += client.count;
+            rejected += client.rejected;
+            errors += client.errors;
+        }
+        final long wall = System.nanoTime() - start;
+        final long[] latencies = new long[(int) requests];
+        int offset = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            offset += client.count;
+        }
+        Arrays.sort(latencies);
+        return new Report(requests, rejected, errors, wall, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1]);
+    }
+
+    private List<JsonNode> sample(String path) throws IOException, InterruptedException {
+        final HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(base.resolve(path)).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) throw new IOException("Cannot sample " + path + ": " + response.statusCode());
+        final List<JsonNode> rows = new ArrayList<>();
+        mapper.readTree(response.body()).path("rows").forEach(rows::add);
+        return rows;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    /**
+     * One client thread, keeping its latencies in a growing array
+     */
+    private final class Client implements Runnable {
+        private final Thread thread = new Thread(this, "library-load");
+        private final SplittableRandom random;
+        private final String[] barcodes, userIds, words, owned;
+        private final long end;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private long rejected, errors;
+
+        Client(int index, int clients, String[] barcodes, String[] userIds, String[] words, long end) {
+            this.random = new SplittableRandom(index);
+            this.barcodes = barcodes;
+            this.userIds = userIds;
+            this.words = words;
+            this.end = end;
+            final var owned = new ArrayList<String>();
+            for (int i = index; i < barcodes.length; i += clients) owned.add(barcodes[i]);
+            this.owned = owned.toArray(String[]::new);
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < end) {
+                final int dice = random.nextInt(100);
+                if (dice < 70) get("/items/" + encode(pick(barcodes)));
+                else if (dice < 80) get("/users/" + encode(pick(userIds)));
+                else if (dice < 85) get("/items?limit=20");
+                else if (dice < 90 && words.length > 0) get("/items/search?q=" + encode(pick(words)) + "&limit=20");
+                else if (owned.length > 0) {
+                    final String body = loanBody(pick(owned), pick(userIds));
+                    if (post("/loans", body)) post("/loans/return", body);
+                }
+            }
+        }
+
+        private String pick(String[] values) {
+            return values[random.nextInt(values.length)];
+        }
+
+        private void get(String path) {
+            send(HttpRequest.newBuilder(base.resolve(path)).build());
+        }
+
+        private boolean post(String path, String body) {
+            return send(HttpRequest.newBuilder(base.resolve(path)).header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build());
+        }
+
+        /**
+         * @return whether the request succeeded
+         */
+        private boolean send(HttpRequest request) {
+            final long start = System.nanoTime();
+            int status;
+            try {
+                status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = -1;
+            }
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = System.nanoTime() - start;
+            if (status >= 400 && status < 500) rejected++;
+            else if (status != 200) errors++;
+            return status == 200;
+        }
+    }
+
+    private static String loanBody(String barcode, String userId) {
+        try {
+            return mapper.writeValueAsString(new LoanRequest(barcode, userId));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,38 @@
+package cn.apisium.library;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup timings of a {@link Management}
+ *
+ * @param files per file timings, in the order the files are listed
+ * @param wallNanos total wall time of the startup
+ */
+public record LoadReport(List<FileLoad> files, long wallNanos) {
+    /**
+     * Timing of one file
+     *
+     * @param name file name
+     * @param rows number of rows read
+     * @param nanos time spent reading the file
+     */
+    public record FileLoad(String name, long rows, long nanos) {
+        public double rowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d rows in %d ms (%.0f rows/s)", name, rows,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), rowsPerSecond());
+        }
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("Loaded in ").append(TimeUnit.NANOSECONDS.toMillis(wallNanos)).append(" ms");
+        files.forEach(it -> sb.append(System.lineSeparator()).append("  ").append(it));
+        return sb.toString();
+    }
+}
@@ -1,23 +1,37 @@
 package cn.apisium.library;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
 import java.util.Objects;
 
 /**
  * Loan items
+ * Dates are kept as epoch days and converted from and to "dd/MM/yyyy" only at the edges.
  */
 @JsonPropertyOrder({ "barcode", "userId", "issueDate", "dueDate", "numRenews" })
 public final class Loan {
+    /**
+     * Epoch day of a missing date
+     */
+    public static final long NO_DATE = Long.MIN_VALUE;
+    /**
+     * Order by due date, then by barcode
+     */
+    public static final Comparator<Loan> BY_DUE_DATE = Comparator.comparingLong(Loan::getDueDay)
+            .thenComparing(Loan::getBarcode);
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
     @JsonProperty("Barcode")
     private String barcode;
     @JsonProperty("User_id")
     private String userId;
-    @JsonProperty("Issue_Date")
-    private String issueDate;
-    @JsonProperty("Due_Date")
-    private String dueDate;
+    private long issueDay = NO_DATE;
+    private long dueDay = NO_DATE;
     private int numRenews;
 
     public String getBarcode() {
@@ -36,22 +50,46 @@ public final class Loan {
         this.userId = userId;
     }
 
-    @SuppressWarnings("unused")
+    @JsonProperty("Issue_Date")
     public String getIssueDate() {
-        return issueDate;
+        return formatDay(issueDay);
     }
 
+    @JsonProperty("Issue_Date")
     public void setIssueDate(String issueDate) {
-        this.issueDate = issueDate;
+        this.issueDay = parseDay(issueDate);
     }
 
-    @SuppressWarnings("unused")
+    @JsonProperty("Due_Date")
     public String getDueDate() {
-        return dueDate;
+        return formatDay(dueDay);
     }
 
+    /**
+     * Set the due date
+     * Loans held by a {@link Management} must be changed through it, which keeps its due date index in order.
+     */
+    @JsonProperty("Due_Date")
     public void setDueDate(String dueDate) {
-        this.dueDate = dueDate;
+        this.dueDay = parseDay(dueDate);
+    }
+
+    @JsonIgnore
+    public long getIssueDay() {
+        return issueDay;
+    }
+
+    public void setIssueDay(long issueDay) {
+        this.issueDay = issueDay;
+    }
+
+    @JsonIgnore
+    public long getDueDay() {
+        return dueDay;
+    }
+
+    public void setDueDay(long dueDay) {
+        this.dueDay = dueDay;
     }
 
     public int getNumRenews() {
@@ -62,13 +100,60 @@ public final class Loan {
         this.numRenews = numRenews;
     }
 
+    /**
+     * Parse a "dd/MM/yyyy" date
+     * @param date date, may be null
+     * @return epoch day, {@link #NO_DATE} if null
+     */
+    public static long parseDay(String date) {
+        if (date == null) return NO_DATE;
+        if (date.length() == 10 && date.charAt(2) == '/' && date.charAt(5) == '/') {
+            final int day = digits(date, 0, 2), month = digits(date, 3, 5), year = digits(date, 6, 10);
+            if (day > 0 && month > 0 && year >= 0) return LocalDate.of(year, month, day).toEpochDay();
+        }
+        return LocalDate.parse(date, dateFormat).toEpochDay();
+    }
+
+    /**
+     * Format an epoch day as "dd/MM/yyyy"
+     * @param epochDay epoch day
+     * @return date, null if {@link #NO_DATE}
+     */
+    public static String formatDay(long epochDay) {
+        if (epochDay == NO_DATE) return null;
+        final LocalDate date = LocalDate.ofEpochDay(epochDay);
+        final int year = date.getYear();
+        if (year < 0 || year > 9999) return dateFormat.format(date);
+        final char[] chars = { '0', '0', '/', '0', '0', '/', '0', '0', '0', '0' };
+        twoDigits(chars, 0, date.getDayOfMonth());
+        twoDigits(chars, 3, date.getMonthValue());
+        twoDigits(chars, 6, year / 100);
+        twoDigits(chars, 8, year % 100);
+        return new String(chars);
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void twoDigits(char[] chars, int offset, int value) {
+        chars[offset] = (char) ('0' + value / 10);
+        chars[offset + 1] = (char) ('0' + value % 10);
+    }
+
     @Override
     public String toString() {
         return "Loan{" +
                 "barcode='" + barcode + '\'' +
                 ", userId='" + userId + '\'' +
-                ", issueDate='" + issueDate + '\'' +
-                ", dueDate='" + dueDate + '\'' +
+                ", issueDate='" + getIssueDate() + '\'' +
+                ", dueDate='" + getDueDate() + '\'' +
                 ", numRenews='" + numRenews + '\'' +
                 '}';
     }
@@ -82,17 +167,17 @@ public final class Loan {
 
         if (!Objects.equals(barcode, loan.barcode)) return false;
         if (!Objects.equals(userId, loan.userId)) return false;
-        if (!Objects.equals(issueDate, loan.issueDate)) return false;
-        if (!Objects.equals(dueDate, loan.dueDate)) return false;
-        return Objects.equals(numRenews, loan.numRenews);
+        if (issueDay != loan.issueDay) return false;
+        if (dueDay != loan.dueDay) return false;
+        return numRenews == loan.numRenews;
     }
 
     @Override
     public int hashCode() {
         int result = barcode != null ? barcode.hashCode() : 0;
         result = 31 * result + (userId != null ? userId.hashCode() : 0);
-        result = 31 * result + (issueDate != null ? issueDate.hashCode() : 0);
-        result = 31 * result + (dueDate != null ? dueDate.hashCode() : 0);
+        result = 31 * result + Long.hashCode(issueDay);
+        result = 31 * result + Long.hashCode(dueDay);
         result = 31 * result + (numRenews);
         return result;
     }
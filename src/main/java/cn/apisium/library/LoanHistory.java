@@ -0,0 +1,654 @@
+package cn.apisium.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only archive of the returned loans, in compressed segments partitioned by month of return
+ * <p>
+ * Returns are added to the active segment, which is kept in memory and appended to its log file as they come. Once
+ * it holds {@code segmentRecords} loans, or a loan returned in a later month arrives, a new active segment is started
+ * and the full one is handed to a background thread that seals it: writes it as a deflated segment file, synced,
+ * then deletes its log. Archiving thus only ever appends, and queries see the loans being sealed in memory meanwhile.
+ * Only a summary of each sealed segment stays in memory: its date range and Bloom filters of its barcodes and user
+ * IDs, about 2 bytes per loan, so a query only inflates the segments that may hold matching loans. A segment file also
+ * holds the {@link Analytics} counts of its loans, taken as they were archived, so the analytics are seeded from the
+ * segment headers rather than by inflating the whole history.
+ * <p>
+ * When the history is opened, the logs of segments whose sealing did not finish are sealed, and the log of the
+ * active segment is reopened to append to, without the loan a crash may have cut short; no log is deleted before its
+ * loans are in a synced segment file. Archiving never fails, as the loans it is given were already returned: a log
+ * that cannot be written or a segment that cannot be sealed is counted, its loans stay in memory, and the first
+ * failure is thrown on {@link #close()}. Without a directory, sealed segments are kept in memory, still compressed. The
+ * log is written on every {@link #archive} but synced only when closed, so like the journal, a crash of the machine
+ * may lose the latest returns from the history; a crash of the process does not.
+ */
+final class LoanHistory implements Closeable, Iterable<ReturnedLoan> {
+    static final String DIRECTORY = "HISTORY";
+    private static final String SEGMENT = ".seg", LOG = ".log";
+    private static final int MAGIC = 0x4C485332, BLOOM_BITS = 8, BLOOM_HASHES = 5;
+    /**
+     * Segments written before they held the counts of their loans
+     */
+    private static final int UNCOUNTED_MAGIC = 0x4C485331;
+
+    private final Path directory;
+    private final int segmentRecords;
+    /**
+     * Counts a loan into the analytics of its segment, null if the segments are not written
+     */
+    private final BiConsumer<Analytics, ReturnedLoan> counter;
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * Full segments handed to the sealer, oldest first
+     */
+    private final List<Full> sealing = new ArrayList<>();
+    private final ExecutorService sealer = newSealer();
+    private List<ReturnedLoan> active = new ArrayList<>();
+    private Analytics activeCounts;
+    private String activeName;
+    private YearMonth activeMonth;
+    private FileChannel logChannel;
+    private DataOutputStream log;
+    private long sequence, archived;
+    /**
+     * First failure to write the history, thrown on close
+     */
+    private IOException failure;
+    private long failures;
+
+    /**
+     * Create an empty history in memory
+     * @param segmentRecords number of loans in a sealed segment, at most
+     */
+    LoanHistory(int segmentRecords) {
+        directory = null;
+        this.segmentRecords = Math.max(1, segmentRecords);
+        counter = null;
+    }
+
+    /**
+     * Open the history of a directory, sealing the logs of all but the latest segment, and appending to that one
+     * @param directory directory of the segment files, created if needed
+     * @param segmentRecords number of loans in a sealed segment, at most
+     * @param counter counts a loan, as it is archived, into the analytics kept with its segment
+     * @param counted analytics to add the counts of the loans already archived to
+     * @throws IOException if an I/O error occurs
+     */
+    LoanHistory(Path directory, int segmentRecords, BiConsumer<Analytics, ReturnedLoan> counter, Analytics counted)
+            throws IOException {
+        this.directory = directory;
+        this.segmentRecords = Math.max(1, segmentRecords);
+        this.counter = counter;
+        Files.createDirectories(directory);
+        final List<Path> logs;
+        try (Stream<Path> files = Files.list(directory)) {
+            final List<Path> all = files.sorted().toList();
+            for (Path file : all) {
+                if (!file.toString().endsWith(SEGMENT)) continue;
+                final Segment segment = Segment.read(file, counted);
+                if (segment.uncounted) countSealed(segment, counted);
+                segments.add(segment);
+                sequence = Math.max(sequence, sequenceOf(file) + 1);
+            }
+            logs = all.stream().filter(it -> it.toString().endsWith(LOG)).toList();
+        }
+        for (int i = 0; i < logs.size(); i++) {
+            final Path file = logs.get(i);
+            final String name = nameOf(file);
+            sequence = Math.max(sequence, sequenceOf(file) + 1);
+            // Sealed before the log could be deleted
+            if (Files.exists(directory.resolve(name + SEGMENT))) {
+                Files.delete(file);
+                continue;
+            }
+            final var loans = new ArrayList<ReturnedLoan>();
+            final long length = readLog(file, loans);
+            if (loans.isEmpty()) Files.delete(file);
+            else if (i < logs.size() - 1) segments.add(seal(name, loans, count(loans, counted), null));
+            else {
+                active = loans;
+                activeCounts = count(loans, counted);
+                activeName = name;
+                activeMonth = YearMonth.from(LocalDate.ofEpochDay(loans.get(0).returnDay()));
+                logChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+                logChannel.truncate(length);
+                logChannel.position(length);
+                log = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(logChannel), 1 << 16));
+            }
+        }
+        for (Segment segment : segments) archived += segment.count;
+        archived += active.size();
+    }
+
+    /**
+     * Add returned loans
+     * <p>
+     * This never fails, as the loans were already returned: they are kept in memory even if they cannot be
+     * written, and failures are counted by {@link #failures()} and thrown by {@link #close()}.
+     * @param loans loans, returned in order
+     */
+    synchronized void archive(List<ReturnedLoan> loans) {
+        if (loans.isEmpty()) return;
+        for (ReturnedLoan loan : loans) add(loan);
+        try {
+            if (log != null) log.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Find returned loans
+     * @param barcode item barcode, or null for all items
+     * @param userId user ID, or null for all users
+     * @param fromDay first epoch day the loans may have run on
+     * @param toDay last epoch day the loans may have run on
+     * @return loans by day of return, then barcode
+     */
+    List<ReturnedLoan> find(String barcode, String userId, long fromDay, long toDay) {
+        final var result = new ArrayList<ReturnedLoan>();
+        final List<Segment> sealed;
+        synchronized (this) {
+            sealed = List.copyOf(segments);
+            for (Full full : sealing) {
+                for (ReturnedLoan loan : full.loans) {
+                    if (matches(loan, barcode, userId, fromDay, toDay)) result.add(loan);
+                }
+            }
+            for (ReturnedLoan loan : active) if (matches(loan, barcode, userId, fromDay, toDay)) result.add(loan);
+        }
+        for (Segment segment : sealed) {
+            if (!segment.mayContain(barcode, userId, fromDay, toDay)) continue;
+            try (var in = segment.open(directory)) {
+                for (int i = 0; i < segment.count; i++) {
+                    final ReturnedLoan loan = read(in);
+                    if (matches(loan, barcode, userId, fromDay, toDay)) result.add(loan);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        result.sort(ReturnedLoan.BY_RETURN_DAY);
+        return result;
+    }
+
+    /**
+     * Iterate over all the loans, in the order they were archived, inflating one segment at a time
+     * Loans archived during the iteration are not seen. An iteration must run to the end to close its last file.
+     */
+    @Override
+    public Iterator<ReturnedLoan> iterator() {
+        final List<Segment> sealed;
+        final var latest = new ArrayList<ReturnedLoan>();
+        synchronized (this) {
+            sealed = List.copyOf(segments);
+            for (Full full : sealing) latest.addAll(full.loans);
+            latest.addAll(active);
+        }
+        return new Iterator<>() {
+            private int segment, remaining;
+            private DataInputStream in;
+            private Iterator<ReturnedLoan> tail;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (remaining == 0 && tail == null) {
+                        if (in != null) in.close();
+                        in = null;
+                        if (segment == sealed.size()) tail = latest.iterator();
+                        else {
+                            final Segment next = sealed.get(segment++);
+                            in = next.open(directory);
+                            remaining = next.count;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return remaining > 0 || tail.hasNext();
+            }
+
+            @Override
+            public ReturnedLoan next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (remaining == 0) return tail.next();
+                try {
+                    remaining--;
+                    return read(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return number of loans archived
+     */
+    synchronized long size() {
+        return archived;
+    }
+
+    /**
+     * @return number of failures to write a log or seal a segment, whose loans are only kept in memory
+     */
+    synchronized long failures() {
+        return failures;
+    }
+
+    /**
+     * @return number of segments sealed or being sealed
+     */
+    synchronized int segmentCount() {
+        return segments.size() + sealing.size();
+    }
+
+    /**
+     * Wait for the full segments to be sealed, then sync the log of the active segment and close it, to reopen it
+     * with the history
+     * @throws IOException if an I/O error occurs, or a segment could not be sealed
+     */
+    @Override
+    public void close() throws IOException {
+        sealer.shutdown();
+        try {
+            if (!sealer.awaitTermination(1, TimeUnit.MINUTES)) throw new IOException("Sealing the history timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sealing the history");
+        }
+        synchronized (this) {
+            if (log != null) {
+                log.flush();
+                logChannel.force(true);
+                log.close();
+                log = null;
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    private void add(ReturnedLoan loan) {
+        final YearMonth month = YearMonth.from(LocalDate.ofEpochDay(loan.returnDay()));
+        if (!active.isEmpty() && (active.size() >= segmentRecords || !month.equals(activeMonth))) handOff();
+        if (active.isEmpty()) {
+            activeMonth = month;
+            activeName = String.format("%s-%06d", month, sequence++);
+            if (directory != null) {
+                activeCounts = new Analytics();
+                try {
+                    logChannel = FileChannel.open(directory.resolve(activeName + LOG), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    log = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(logChannel),
+                            1 << 16));
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+        active.add(loan);
+        archived++;
+        if (activeCounts != null) counter.accept(activeCounts, loan);
+        if (log == null) return;
+        try {
+            write(log, loan);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Hand the active segment to the sealer, then start a new one
+     */
+    private void handOff() {
+        try {
+            if (log != null) log.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+        final var full = new Full(activeName, active, activeCounts, log);
+        sealing.add(full);
+        active = new ArrayList<>();
+        activeCounts = null;
+        log = null;
+        logChannel = null;
+        sealer.execute(() -> seal(full));
+    }
+
+    /**
+     * Seal a full segment, on the sealer thread
+     */
+    private void seal(Full full) {
+        try {
+            final Segment segment = seal(full.name, full.loans, full.counts, full.log);
+            synchronized (this) {
+                segments.add(segment);
+                sealing.remove(full);
+            }
+        } catch (IOException e) {
+            // Its loans stay in memory, and in its log to be sealed when the history is opened again
+            try {
+                if (full.log != null) full.log.close();
+            } catch (IOException ignored) {
+            }
+            synchronized (this) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Record a failure to write the history, while holding its lock
+     */
+    private void failed(IOException e) {
+        if (failure == null) failure = e;
+        failures++;
+        e.printStackTrace();
+    }
+
+    /**
+     * Count loans into the analytics of their segment, and into those of the loans already archived
+     */
+    private Analytics count(List<ReturnedLoan> loans, Analytics counted) {
+        final var counts = new Analytics();
+        for (ReturnedLoan loan : loans) {
+            counter.accept(counts, loan);
+            counter.accept(counted, loan);
+        }
+        return counts;
+    }
+
+    /**
+     * Count the loans of a segment written without their counts, inflating it
+     */
+    private void countSealed(Segment segment, Analytics counted) throws IOException {
+        try (var in = segment.open(directory)) {
+            for (int i = 0; i < segment.count; i++) counter.accept(counted, read(in));
+        }
+    }
+
+    /**
+     * Write loans as a sealed segment, then close and delete their log
+     * @param counts analytics of the loans, null if the segment is not written
+     * @param log log of the loans, still open, or null
+     */
+    private Segment seal(String name, List<ReturnedLoan> loans, Analytics counts, DataOutputStream log)
+            throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        final var deflater = new Deflater(Deflater.BEST_SPEED);
+        try (var out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 1 << 16))) {
+            for (ReturnedLoan loan : loans) write(out, loan);
+        } finally {
+            deflater.end();
+        }
+        final Segment segment = Segment.of(name, loans, bytes.toByteArray(), counts, directory == null);
+        if (directory != null) {
+            segment.write(directory.resolve(name + SEGMENT));
+            if (log != null) log.close();
+            Files.deleteIfExists(directory.resolve(name + LOG));
+        }
+        return segment;
+    }
+
+    private static ExecutorService newSealer() {
+        // Without a core thread, an idle history holds no thread
+        return new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            var thread = new Thread(r, "library-history");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static boolean matches(ReturnedLoan loan, String barcode, String userId, long fromDay, long toDay) {
+        return (barcode == null || barcode.equals(loan.barcode())) && (userId == null || userId.equals(loan.userId()))
+                && loan.overlaps(fromDay, toDay);
+    }
+
+    /**
+     * Read the loans of a log
+     * @return length of the complete loans, without the one a crash may have cut short
+     */
+    private static long readLog(Path file, List<ReturnedLoan> loans) throws IOException {
+        final byte[] bytes = Files.readAllBytes(file);
+        final var buffer = new ByteArrayInputStream(bytes);
+        long length = 0;
+        try (var in = new DataInputStream(buffer)) {
+            while (true) {
+                loans.add(read(in));
+                length = bytes.length - buffer.available();
+            }
+        } catch (EOFException ignored) {
+            // The end of the log, or a loan cut short by a crash
+        }
+        return length;
+    }
+
+    private static void write(DataOutputStream out, ReturnedLoan loan) throws IOException {
+        out.writeUTF(loan.barcode());
+        out.writeUTF(loan.userId());
+        out.writeLong(loan.issueDay());
+        out.writeLong(loan.dueDay());
+        out.writeLong(loan.returnDay());
+        out.writeInt(loan.numRenews());
+    }
+
+    private static ReturnedLoan read(DataInputStream in) throws IOException {
+        return new ReturnedLoan(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readInt());
+    }
+
+    private static String nameOf(Path file) {
+        final String name = file.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private static long sequenceOf(Path file) {
+        final String name = nameOf(file);
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1));
+    }
+
+    /**
+     * A full segment waiting to be sealed
+     */
+    private static final class Full {
+        private final String name;
+        private final List<ReturnedLoan> loans;
+        private final Analytics counts;
+        private final DataOutputStream log;
+
+        Full(String name, List<ReturnedLoan> loans, Analytics counts, DataOutputStream log) {
+            this.name = name;
+            this.loans = loans;
+            this.counts = counts;
+            this.log = log;
+        }
+    }
+
+    /**
+     * Summary of a sealed segment, with its loans when kept in memory
+     * File layout: magic, count, first issue day, last return day, the two Bloom filters, the length of the deflated
+     * analytics of the loans and those, then the deflated loans.
+     */
+    private static final class Segment {
+        private final String name;
+        private final int count;
+        private final long minDay, maxDay;
+        private final long[] barcodes, users;
+        private final byte[] payload;
+        private long payloadOffset;
+        /**
+         * Deflated loans not yet written, dropped once they are
+         */
+        private byte[] pending;
+        /**
+         * Analytics of the loans not yet written, dropped once they are
+         */
+        private Analytics pendingCounts;
+        /**
+         * Whether the file was written without the analytics of its loans
+         */
+        private boolean uncounted;
+
+        private Segment(String name, int count, long minDay, long maxDay, long[] barcodes, long[] users,
+                        byte[] payload) {
+            this.name = name;
+            this.count = count;
+            this.minDay = minDay;
+            this.maxDay = maxDay;
+            this.barcodes = barcodes;
+            this.users = users;
+            this.payload = payload;
+        }
+
+        static Segment of(String name, List<ReturnedLoan> loans, byte[] payload, Analytics counts,
+                          boolean keepPayload) {
+            final int words = Math.max(1, (loans.size() * BLOOM_BITS + 63) >>> 6);
+            final long[] barcodes = new long[words], users = new long[words];
+            long minDay = Long.MAX_VALUE, maxDay = Long.MIN_VALUE;
+            for (ReturnedLoan loan : loans) {
+                add(barcodes, loan.barcode());
+                add(users, loan.userId());
+                minDay = Math.min(minDay, loan.issueDay() == Loan.NO_DATE ? loan.returnDay() : loan.issueDay());
+                maxDay = Math.max(maxDay, loan.returnDay());
+            }
+            final var segment = new Segment(name, loans.size(), minDay, maxDay, barcodes, users,
+                    keepPayload ? payload : null);
+            segment.pending = payload;
+            segment.pendingCounts = counts;
+            return segment;
+        }
+
+        /**
+         * Read the summary of a segment file
+         * @param counted analytics to add the counts of its loans to, unless it was written without them
+         */
+        static Segment read(Path file, Analytics counted) throws IOException {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                final int magic = in.readInt();
+                if (magic != MAGIC && magic != UNCOUNTED_MAGIC) throw new IOException("Not a history segment: " + file);
+                final int count = in.readInt();
+                final long minDay = in.readLong(), maxDay = in.readLong();
+                final long[] barcodes = readBits(in), users = readBits(in);
+                final var segment = new Segment(nameOf(file), count, minDay, maxDay, barcodes, users, null);
+                segment.payloadOffset = 4 + 4 + 8 + 8 + 4 + barcodes.length * 8L + 4 + users.length * 8L;
+                if (magic == UNCOUNTED_MAGIC) segment.uncounted = true;
+                else {
+                    final var counts = new byte[in.readInt()];
+                    in.readFully(counts);
+                    counted.read(new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(counts))));
+                    segment.payloadOffset += 4 + counts.length;
+                }
+                return segment;
+            }
+        }
+
+        /**
+         * Write to a temporary file, sync it and move it into place
+         */
+        void write(Path file) throws IOException {
+            final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                final var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                        1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(count);
+                out.writeLong(minDay);
+                out.writeLong(maxDay);
+                writeBits(out, barcodes);
+                writeBits(out, users);
+                final var counts = new ByteArrayOutputStream();
+                try (var countsOut = new DataOutputStream(new DeflaterOutputStream(counts))) {
+                    pendingCounts.write(countsOut);
+                }
+                out.writeInt(counts.size());
+                counts.writeTo(out);
+                payloadOffset = out.size();
+                out.write(pending);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            pending = null;
+            pendingCounts = null;
+        }
+
+        boolean mayContain(String barcode, String userId, long fromDay, long toDay) {
+            return maxDay >= fromDay && minDay <= toDay && (barcode == null || contains(barcodes, barcode))
+                    && (userId == null || contains(users, userId));
+        }
+
+        DataInputStream open(Path directory) throws IOException {
+            final InputStream in;
+            if (payload != null) in = new ByteArrayInputStream(payload);
+            else {
+                final var channel = FileChannel.open(directory.resolve(name + SEGMENT), StandardOpenOption.READ);
+                channel.position(payloadOffset);
+                in = Channels.newInputStream(channel);
+            }
+            return new DataInputStream(new BufferedInputStream(new InflaterInputStream(in), 1 << 16));
+        }
+
+        private static void add(long[] bits, String key) {
+            final int hash = key.hashCode() * 0x9E3779B9, step = Integer.rotateLeft(hash, 16) | 1;
+            final int size = bits.length << 6;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                final int bit = Math.floorMod(hash + i * step, size);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        private static boolean contains(long[] bits, String key) {
+            final int hash = key.hashCode() * 0x9E3779B9, step = Integer.rotateLeft(hash, 16) | 1;
+            final int size = bits.length << 6;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                final int bit = Math.floorMod(hash + i * step, size);
+                if ((bits[bit >>> 6] & 1L << bit) == 0) return false;
+            }
+            return true;
+        }
+
+        private static void writeBits(DataOutputStream out, long[] bits) throws IOException {
+            out.writeInt(bits.length);
+            for (long word : bits) out.writeLong(word);
+        }
+
+        private static long[] readBits(DataInputStream in) throws IOException {
+            final long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package cn.apisium.library;
+
+import java.util.Collection;
+
+/**
+ * Store of the loans of a library, keyed by barcode
+ * <p>
+ * Loans are the working set of circulation and are also indexed by due date and by user, so they are always kept
+ * in memory ({@link InMemoryLoanRepository}). All methods are safe to call from multiple threads.
+ */
+interface LoanRepository {
+    /**
+     * @return loan of an item, or null if it is not on loan
+     */
+    Loan get(String barcode);
+
+    /**
+     * Add or replace the loan of an item
+     * @return the loan replaced, or null
+     */
+    Loan put(Loan loan);
+
+    /**
+     * @return the loan removed, or null if there was none
+     */
+    Loan remove(String barcode);
+
+    /**
+     * Remove the loan of an item if it is still this one
+     * @return whether it was removed
+     */
+    boolean remove(String barcode, Loan loan);
+
+    boolean contains(String barcode);
+
+    int size();
+
+    /**
+     * @return live view of the loans, weakly consistent while they change
+     */
+    Collection<Loan> values();
+}
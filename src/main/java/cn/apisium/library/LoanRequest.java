@@ -0,0 +1,11 @@
+package cn.apisium.library;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A barcode and user ID pair of a batch of circulation operations
+ *
+ * @param barcode item barcode
+ * @param userId user ID
+ */
+public record LoanRequest(@JsonProperty("Barcode") String barcode, @JsonProperty("User_id") String userId) { }
@@ -0,0 +1,89 @@
+package cn.apisium.library;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache evicting the least recently used entry, with hit, miss and eviction counts
+ * <p>
+ * The map is only locked for the lookup or insertion itself; values are loaded by the caller outside the lock,
+ * so a slow disk read never holds up other readers.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class LruCache<K, V> {
+    /**
+     * Counts since the cache was created
+     *
+     * @param hits lookups that found their entry
+     * @param misses lookups that did not
+     * @param evictions entries evicted to stay within the capacity
+     * @param size entries in the cache
+     */
+    record Stats(long hits, long misses, long evictions, int size) {
+        static final Stats NONE = new Stats(0, 0, 0, 0);
+
+        double hitRate() {
+            final long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    private final LinkedHashMap<K, V> map;
+
+    /**
+     * @param capacity most entries kept
+     */
+    LruCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive!");
+        map = new LinkedHashMap<>(Math.min(capacity, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() <= capacity) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null on a miss
+     */
+    V get(K key) {
+        final V value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    void put(K key, V value) {
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    void remove(K key) {
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+
+    void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    Stats stats() {
+        final int size;
+        synchronized (map) {
+            size = map.size();
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+}
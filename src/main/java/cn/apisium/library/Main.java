@@ -1,6 +1,26 @@
 package cn.apisium.library;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import javax.management.JMException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 /**
  * @author Shirasawa
@@ -10,20 +30,31 @@ import java.util.Scanner;
  * Main entry point
  */
 public final class Main {
+    private static final int PAGE_SIZE = 20, BATCH_SIZE = 10_000, DEFAULT_PORT = 8080;
+    private static final String METRICS_FILE = "METRICS.txt", FINES_FILE = "FINES.csv",
+            REJECTS_FILE = "REJECTS.csv", COLUMNS_FILE = "LIBRARY.columns";
+
     /**
      * Main entry point
      */
     public static void main(String[] args) {
-        Management management = null;
+        if (args.length > 0) {
+            runCommand(args);
+            return;
+        }
+        Library management = null;
         try {
             var in = new Scanner(System.in);
-            management = new Management();
+            management = Library.open(Path.of(""), null);
+            System.out.println(management.getLoadReport());
+            monitor(management);
             while (true) {
                 System.out.println("Please input an action: (0-CreateLoan, 1-RenewLoan, 2-ReturnItem, 3-CreateItem, " +
-                        "4-DeleteItem, 5-CreateUser, 6-DeleteUser, 7-ShowLoans, 8-ShowItems, 9-ShowUsers, 10-Exit)");
+                        "4-DeleteItem, 5-CreateUser, 6-DeleteUser, 7-ShowLoans, 8-ShowItems, 9-ShowUsers, 10-Exit, " +
+                        "11-SearchItems)");
                 try {
                     var action = in.nextInt();
-                    if (action < 7 && action >= 0) in.nextLine();
+                    if (action >= 0 && action != 10) in.nextLine();
                     switch (action) {
                         case 0, 1, 2 -> {
                             System.out.println("Please input barcode:");
@@ -50,13 +81,17 @@ public final class Main {
                             System.out.println("User id to delete: ");
                             management.removeUser(in.nextLine());
                         }
-                        case 7 -> management.viewLoans();
-                        case 8 -> management.viewItems();
-                        case 9 -> management.viewUsers();
+                        case 7 -> showPages(in, "Loans:", management::listLoans);
+                        case 8 -> showPages(in, "Items:", management::listItems);
+                        case 9 -> showPages(in, "Users:", management::listUsers);
                         case 10 -> {
                             System.out.println("Goodbye and data saved!");
                             return;
                         }
+                        case 11 -> {
+                            System.out.println("Words of the title or author to search: ");
+                            management.search(in.nextLine(), 20).forEach(System.out::println);
+                        }
                         default -> System.out.println("Unknown action!");
                     }
                 } catch (IllegalArgumentException e) {
@@ -67,7 +102,182 @@ public final class Main {
         } catch (Throwable e) {
             e.printStackTrace();
         } finally {
-            if (management != null) management.save();
+            if (management != null) {
+                management.save();
+                try {
+                    management.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish the metrics over JMX, and dump them to a file every {@code library.metrics.dumpSeconds} seconds if set
+     */
+    private static void monitor(Library management) {
+        try {
+            management.getMetrics().register(Path.of("").toAbsolutePath().toString());
+        } catch (JMException e) {
+            System.err.println("Cannot register the metrics MBean: " + e.getMessage());
+        }
+        final long seconds = Long.getLong("library.metrics.dumpSeconds", 0);
+        if (seconds > 0) management.getMetrics().dumpEvery(Path.of(METRICS_FILE), Duration.ofSeconds(seconds));
+    }
+
+    /**
+     * Stream a CSV file of barcodes and user IDs (columns "Barcode" and "User_id") through a batch operation
+     * Rows are applied in chunks, and the ones that fail are reported with their line number.
+     */
+    private static void runBatch(Library management, String action, Path file) throws IOException {
+        final BiFunction<List<LoanRequest>, Boolean, BatchResult> operation = switch (action) {
+            case "loan" -> management::createLoans;
+            case "renew" -> management::renewLoans;
+            case "return" -> management::returnItems;
+            default -> throw new IllegalArgumentException("Unknown batch action! (loan, renew, return)");
+        };
+        final var reader = new CsvMapper().readerFor(LoanRequest.class).with(CsvSchema.emptySchema().withHeader())
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        final long start = System.nanoTime();
+        int applied = 0, failed = 0, line = 2;
+        try (MappingIterator<LoanRequest> rows = reader.readValues(file.toFile())) {
+            final var chunk = new ArrayList<LoanRequest>(BATCH_SIZE);
+            while (rows.hasNext() || !chunk.isEmpty()) {
+                if (rows.hasNext() && chunk.size() < BATCH_SIZE) {
+                    chunk.add(rows.next());
+                    continue;
+                }
+                final BatchResult result = operation.apply(chunk, false);
+                for (var failure : result.failures()) {
+                    System.out.println("Line " + (line + failure.index()) + ": " + failure.message());
+                }
+                applied += result.applied();
+                failed += result.failures().size();
+                line += chunk.size();
+                chunk.clear();
+            }
+        }
+        System.out.printf("%d applied, %d failed in %d ms%n", applied, failed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Show a listing a page at a time, asking before each next page
+     */
+    private static void showPages(Scanner in, String title, BiFunction<String, Integer, Page<?>> pages) {
+        final var out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)), false);
+        out.println(title);
+        String cursor = null;
+        do {
+            final Page<?> page = pages.apply(cursor, PAGE_SIZE);
+            page.rows().forEach(out::println);
+            cursor = page.nextCursor();
+            if (cursor != null) out.println("Press Enter for more, or input q to stop:");
+            out.flush();
+        } while (cursor != null && !in.nextLine().trim().equalsIgnoreCase("q"));
+    }
+
+    /**
+     * Run a one-shot command instead of the interactive menu
+     */
+    private static void runCommand(String[] args) {
+        try {
+            switch (args[0]) {
+                case "import-csv" -> {
+                    try (var management = Library.open(Path.of(""), Management.Format.CSV)) {
+                        System.out.println(management.getLoadReport());
+                        management.setFormat(Management.Format.SNAPSHOT);
+                        management.save();
+                        System.out.println("CSV files imported into the snapshot!");
+                    }
+                }
+                case "export-csv" -> {
+                    try (var management = Library.open(Path.of(""), null)) {
+                        System.out.println(management.getLoadReport());
+                        management.exportCsv();
+                        System.out.println("Data exported to the CSV files!");
+                    }
+                }
+                case "batch" -> {
+                    if (args.length < 3) {
+                        System.out.println("Usage: batch <loan|renew|return> <file.csv>");
+                        return;
+                    }
+                    try (var management = Library.open(Path.of(""), null)) {
+                        runBatch(management, args[1], Path.of(args[2]));
+                    }
+                }
+                case "fines" -> {
+                    final var asOf = args.length > 1 ? LocalDate.parse(args[1]) : LocalDate.now();
+                    final int threads = args.length > 2 ? Integer.parseInt(args[2])
+                            : Runtime.getRuntime().availableProcessors();
+                    try (var management = Library.open(Path.of(""), null)) {
+                        final FinesReport report = management.assessFines(asOf, threads);
+                        report.write(Path.of(FINES_FILE));
+                        System.out.println(report);
+                    }
+                }
+                case "export-columns" -> {
+                    try (var management = Library.open(Path.of(""), null)) {
+                        management.exportColumns(Path.of(args.length > 1 ? args[1] : COLUMNS_FILE));
+                        System.out.println(management.getAnalytics());
+                    }
+                }
+                case "import-items" -> {
+                    if (args.length < 2) {
+                        System.out.println("Usage: import-items <file.csv> [threads]");
+                        return;
+                    }
+                    final int threads = args.length > 2 ? Integer.parseInt(args[2])
+                            : Runtime.getRuntime().availableProcessors();
+                    try (var management = Library.open(Path.of(""), null)) {
+                        System.out.println(management.importItems(Path.of(args[1]), Path.of(REJECTS_FILE), threads));
+                        management.save();
+                    }
+                }
+                case "server" -> {
+                    final int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+                    final var management = Library.open(Path.of(""), null);
+                    final var server = new Server(management, new InetSocketAddress(port));
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        server.close();
+                        management.save();
+                        try {
+                            management.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }));
+                    server.start();
+                    System.out.println(management.getLoadReport());
+                    monitor(management);
+                    System.out.println("Listening on port " + server.getAddress().getPort() + ", Ctrl+C to stop");
+                }
+                case "load-test" -> {
+                    final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+                    final var duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+                    if (args.length > 3) {
+                        System.out.println(new LoadGenerator(URI.create(args[3])).run(threads, duration));
+                        return;
+                    }
+                    // Serve the library in this process, over loopback
+                    try (var management = Library.open(Path.of(""), null);
+                         var server = new Server(management, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+                        server.start();
+                        final var base = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+                        System.out.println(new LoadGenerator(base).run(threads, duration));
+                    }
+                }
+                default -> System.out.println(
+                        "Unknown command! (import-csv, export-csv, batch, fines, import-items, server, load-test)");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,46 +1,238 @@
 package cn.apisium.library;
 
+import cn.apisium.library.Metrics.Operation;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 /**
  * Library Management System
+ * <p>
+ * All operations are safe to call from multiple threads. Loan operations lock only the stripe of their item's
+ * barcode, so circulation on different items runs in parallel. Per-user state (loan counts, the borrowing limit,
+ * removing a user) is kept consistent through atomic updates of the per-user loan index.
+ * <p>
+ * When loaded from a directory, every change is appended to a {@link Journal} that is replayed on top of the CSV
+ * files at startup, and compacted into fresh CSV files once it grows past {@code library.journal.compactAfter}
+ * records. Group commit and fsync batching are tuned by {@code library.journal.groupCommit} and
+ * {@code library.journal.syncMillis}. Saves can also run periodically in the background, every
+ * {@code library.snapshot.intervalSeconds} seconds or as set by {@link #setSaveInterval(Duration)}.
+ * <p>
+ * Data is stored either as CSV files or as a binary {@link Snapshot}. A snapshot is preferred when loading, and one
+ * that fails verification stops the load rather than falling back to older CSV files; CSV stays the interchange
+ * format through {@link #exportCsv()} and loading with {@link Format#CSV}.
  */
-public final class Management {
-    private static final Long WEEK = 1000L * 60 * 60 * 24 * 7;
+public final class Management implements Library {
+    /**
+     * Storage format used by {@link #save()}
+     */
+    public enum Format { CSV, SNAPSHOT }
+
+    /**
+     * State a shard of a {@link ShardedManagement} shares with the other shards
+     *
+     * @param users users of all shards
+     * @param loansByUser barcodes on loan of all shards, by user ID, so loan limits and removing users hold across
+     *                    the shards
+     * @param metrics metrics of all shards
+     * @param changes changes of all shards
+     * @param ownsUsers whether this shard loads, journals and saves the users
+     */
+    record Shard(UserRepository users, Map<String, Set<String>> loansByUser, Metrics metrics, Analytics analytics,
+                 ChangeStream changes, boolean ownsUsers) { }
+
+    private static final int STRIPES = 256;
+    private static final int GROUP_COMMIT = Integer.getInteger("library.journal.groupCommit", 64);
+    private static final long SYNC_MILLIS = Long.getLong("library.journal.syncMillis", 100);
+    private static final long COMPACT_AFTER = Long.getLong("library.journal.compactAfter", 100_000);
+    private static final long SAVE_INTERVAL_SECONDS = Long.getLong("library.snapshot.intervalSeconds", 0);
+    private static final int LOAN_LIMIT = Integer.getInteger("library.loanLimit", Integer.MAX_VALUE);
+    private static final ItemCatalog.Storage STORAGE = ItemCatalog.Storage.valueOf(
+            System.getProperty("library.items.storage", "heap").toUpperCase(Locale.ROOT));
+    private static final int ITEMS_CACHE_SIZE = Integer.getInteger("library.items.cacheSize", 10_000);
+    private static final int HISTORY_SEGMENT_RECORDS = Integer.getInteger("library.history.segmentRecords", 65536);
+    private static final int EXPORT_GROUP_ROWS = Integer.getInteger("library.export.groupRows", 65536);
+    private static final int IMPORT_CHUNK_BYTES = Integer.getInteger("library.import.chunkBytes", 4 << 20);
+    private static final Set<String> IMPORT_TYPES = Arrays.stream(
+            System.getProperty("library.import.types", "Book,CD,DVD").split(","))
+            .map(String::trim).filter(it -> !it.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    private static final int CHANGES_BUFFER = Integer.getInteger("library.changes.buffer", 65536);
+    private static final int CHANGES_BATCH = Integer.getInteger("library.changes.batch", 256);
+    private static final long CHANGES_LINGER_MILLIS = Long.getLong("library.changes.lingerMillis", 5);
+    private static final int CHANGES_SUBSCRIBER_BUFFER = Integer.getInteger("library.changes.subscriberBuffer", 256);
     private static final String USERS_FILE = "USERS.csv", ITEMS_FILE = "ITEMS.csv", LOANS_FILES = "LOANS.csv";
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
+    private static final int USERS = 1, ITEMS = 2, LOANS = 4, ALL = USERS | ITEMS | LOANS;
     private static final CsvMapper mapper = new CsvMapper();
     private static final CsvSchema userSchema = mapper.schemaFor(User.class).withHeader();
     private static final CsvSchema itemSchema = mapper.schemaFor(Item.class).withHeader();
     private static final CsvSchema loanSchema = mapper.schemaFor(Loan.class).withHeader();
-    private final Map<String, User> users = new HashMap<>();
-    private final Map<String, Item> items = new HashMap<>();
-    private final ArrayList<Loan> loans = new ArrayList<>();
+    private final UserRepository users;
+    private final ItemCatalog items;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final LoanRepository loans;
+    private final NavigableSet<Loan> loansByDueDate = new ConcurrentSkipListSet<>(Loan.BY_DUE_DATE);
+    private final Map<String, Set<String>> loansByUser;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Path directory;
+    private final Journal journal;
+    private final LoanHistory history;
+    private final ScheduledExecutorService saver;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    /**
+     * Collections changed since the last save, as {@link #USERS}, {@link #ITEMS} and {@link #LOANS} bits
+     */
+    private final AtomicInteger dirty = new AtomicInteger();
+    private final LoadReport loadReport;
+    private final Metrics metrics;
+    private final Analytics analytics;
+    private final ChangeStream changes;
+    private final boolean ownsUsers, ownsShared;
+    private volatile Format format;
+    private volatile int loanLimit = LOAN_LIMIT;
+    private volatile Duration saveInterval = Duration.ZERO;
+    private ScheduledFuture<?> scheduledSaves;
+
+    {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
 
     /**
-     * Read data from files
+     * Read data from files in the working directory
      * @throws IOException if an I/O error occurs
      */
     public Management() throws IOException {
-        var file = new File(USERS_FILE);
-        if (file.exists()) try (MappingIterator<User> reader = mapper.readerFor(User.class).with(userSchema).readValues(file)) {
-            reader.readAll().forEach(it -> users.put(it.getUserId(), it));
-        }
-        file = new File(ITEMS_FILE);
-        if (file.exists()) try (MappingIterator<Item> reader = mapper.readerFor(Item.class).with(itemSchema).readValues(file)) {
-            reader.readAll().forEach(it -> items.put(it.getBarcode(), it.isBook() ? new Book(it) : new Multimedia(it)));
+        this(Path.of(""));
+    }
+
+    /**
+     * Read data from files, preferring the snapshot over the CSV files, and replay the journal
+     * @param directory data directory
+     * @throws IOException if an I/O error occurs, or there is a snapshot that cannot be read
+     */
+    public Management(Path directory) throws IOException {
+        this(directory, null);
+    }
+
+    /**
+     * Read data from files and replay the journal
+     * <p>
+     * The CSV files are parsed concurrently, each streaming its rows straight into a map that is pre-sized from
+     * the file size.
+     * @param directory data directory
+     * @param format format to read, or null to read the snapshot if there is one and the CSV files otherwise
+     * @throws IOException if an I/O error occurs, or unless reading CSV, if there is a snapshot that cannot be read
+     */
+    public Management(Path directory, Format format) throws IOException {
+        this(directory, format, null);
+    }
+
+    /**
+     * Read data from files and replay the journal, as a shard if given one
+     * @param directory data directory
+     * @param format format to read, or null to read the snapshot if there is one and the CSV files otherwise
+     * @param shard state shared with the other shards, or null to own all the data
+     * @throws IOException if an I/O error occurs, or unless reading CSV, if there is a snapshot that cannot be read
+     */
+    Management(Path directory, Format format, Shard shard) throws IOException {
+        final long start = System.nanoTime();
+        this.directory = directory;
+        users = shard == null ? UserRepository.create() : shard.users();
+        loansByUser = shard == null ? new ConcurrentHashMap<>() : shard.loansByUser();
+        metrics = shard == null ? new Metrics(gauges()) : shard.metrics();
+        analytics = shard == null ? new Analytics() : shard.analytics();
+        changes = shard == null ? newChangeStream() : shard.changes();
+        ownsShared = shard == null;
+        ownsUsers = shard == null || shard.ownsUsers();
+        // A snapshot that exists is newer than the CSV files, which saving it does not update, so one that cannot
+        // be read is an error rather than a reason to load the older files and delete it on the next save
+        final Snapshot snapshot = format == Format.CSV ? null : Snapshot.open(directory.resolve(Snapshot.FILE));
+        final var files = new ArrayList<LoadReport.FileLoad>(4);
+        if (snapshot != null || format == Format.SNAPSHOT) {
+            this.format = Format.SNAPSHOT;
+            items = new ItemCatalog(snapshot == null ? 16 : (int) snapshot.items(), STORAGE, ITEMS_CACHE_SIZE);
+            loans = new InMemoryLoanRepository(snapshot == null ? 16 : (int) snapshot.loans());
+            if (snapshot != null) {
+                final long readStart = System.nanoTime();
+                snapshot.read(users::put, this::putItem, this::putLoan);
+                files.add(new LoadReport.FileLoad(Snapshot.FILE, snapshot.users() + snapshot.items() + snapshot.loans(),
+                        System.nanoTime() - readStart));
+            }
+        } else {
+            this.format = Format.CSV;
+            final Path usersFile = directory.resolve(USERS_FILE), itemsFile = directory.resolve(ITEMS_FILE),
+                    loansFile = directory.resolve(LOANS_FILES);
+            items = new ItemCatalog(estimateRows(itemsFile), STORAGE, ITEMS_CACHE_SIZE);
+            loans = new InMemoryLoanRepository(estimateRows(loansFile));
+            final ExecutorService loader = Executors.newFixedThreadPool(3);
+            try {
+                final var usersLoad = ownsUsers ? loader.submit(() -> load(usersFile, User.class, userSchema,
+                        users::put)) : null;
+                final var itemsLoad = loader.submit(() -> load(itemsFile, Item.class, itemSchema, this::putItem));
+                final var loansLoad = loader.submit(() -> load(loansFile, Loan.class, loanSchema, this::putLoan));
+                if (usersLoad != null) files.add(await(usersLoad));
+                files.add(await(itemsLoad));
+                files.add(await(loansLoad));
+            } finally {
+                loader.shutdownNow();
+            }
         }
-        file = new File(LOANS_FILES);
-        if (file.exists()) try (MappingIterator<Loan> reader = mapper.readerFor(Loan.class).with(loanSchema).readValues(file)) {
-            loans.addAll(reader.readAll());
+        // The files hold what was just loaded, except those that are missing
+        dirty.set(0);
+        if (this.format == Format.SNAPSHOT) {
+            if (snapshot == null) markDirty(ALL);
+        } else {
+            if (ownsUsers && !Files.exists(directory.resolve(USERS_FILE))) markDirty(USERS);
+            if (!Files.exists(directory.resolve(ITEMS_FILE))) markDirty(ITEMS);
+            if (!Files.exists(directory.resolve(LOANS_FILES))) markDirty(LOANS);
         }
+        final long replayStart = System.nanoTime();
+        final long replayed = Journal.replay(directory, this::apply);
+        files.add(new LoadReport.FileLoad(Journal.FILE, replayed, System.nanoTime() - replayStart));
+        loadReport = new LoadReport(List.copyOf(files), System.nanoTime() - start);
+        history = new LoanHistory(directory.resolve(LoanHistory.DIRECTORY), HISTORY_SEGMENT_RECORDS,
+                this::countReturned, analytics);
+        seedAnalytics();
+        journal = new Journal(directory, GROUP_COMMIT, SYNC_MILLIS);
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "library-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (SAVE_INTERVAL_SECONDS > 0) setSaveInterval(Duration.ofSeconds(SAVE_INTERVAL_SECONDS));
+        metrics.success(Operation.LOAD, start);
     }
 
     /**
@@ -51,27 +243,48 @@ public final class Management {
      * @param loans loans list
      */
     public Management(List<User> users, List<Item> items, List<Loan> loans) {
-        users.forEach(it -> this.users.put(it.getUserId(), it));
-        items.forEach(it -> this.items.put(it.getBarcode(), it));
-        this.loans.addAll(loans);
+        directory = Path.of("");
+        journal = null;
+        history = new LoanHistory(HISTORY_SEGMENT_RECORDS);
+        saver = null;
+        loansByUser = new ConcurrentHashMap<>();
+        metrics = new Metrics(gauges());
+        analytics = new Analytics();
+        changes = newChangeStream();
+        ownsUsers = ownsShared = true;
+        loadReport = new LoadReport(List.of(), 0);
+        format = Format.CSV;
+        this.users = UserRepository.create();
+        this.items = new ItemCatalog(items.size(), STORAGE, ITEMS_CACHE_SIZE);
+        this.loans = new InMemoryLoanRepository(loans.size());
+        users.forEach(this.users::put);
+        items.forEach(this::putItem);
+        loans.forEach(this::putLoan);
+        seedAnalytics();
+        markDirty(ALL);
     }
 
     /**
      * Create a new loan
      * @param barcode item barcode
      * @param userId user ID
-     * @throws IllegalArgumentException if the item is not found or the user is not found
+     * @throws IllegalArgumentException if the item is not found, the user is not found, the item is already on loan
+     *                                  or the user has reached the loan limit
      */
+    @Override
     public void createLoan(String barcode, String userId) throws IllegalArgumentException {
-        checkBarcodeAndUserId(barcode, userId);
-        final Item item = items.get(barcode);
-        final Loan loan = new Loan();
-        loan.setBarcode(barcode);
-        loan.setUserId(userId);
-        final Date now = new Date();
-        loan.setIssueDate(dateFormat.format(now));
-        loan.setDueDate(dateFormat.format(new Date(now.getTime() + WEEK * item.getBorrowTime())));
-        loans.add(loan);
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(barcode);
+        lock.lock();
+        try {
+            record(lend(barcode, userId, LocalDate.now().toEpochDay()));
+            metrics.success(Operation.CREATE_LOAN, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.CREATE_LOAN, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -80,12 +293,20 @@ public final class Management {
      * @param userId user ID
      * @throws IllegalArgumentException if the item is not found or the user is not found
      */
+    @Override
     public void renewLoan(String barcode, String userId) throws IllegalArgumentException {
-        final Loan loan = getLoan(barcode, userId);
-        if (loan.getNumRenews() >= 3) throw new IllegalArgumentException("Cannot renew more than 3 times!");
-        final Date now = new Date();
-        loan.setDueDate(dateFormat.format(new Date(now.getTime() + WEEK * items.get(barcode).getRenewTime())));
-        loan.setNumRenews(loan.getNumRenews() + 1);
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(barcode);
+        lock.lock();
+        try {
+            record(renew(barcode, userId, LocalDate.now().toEpochDay()));
+            metrics.success(Operation.RENEW_LOAN, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.RENEW_LOAN, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -94,121 +315,1339 @@ public final class Management {
      * @param userId user ID
      * @throws IllegalArgumentException if the item is not found or the user is not found
      */
+    @Override
     public void returnItem(String barcode, String userId) throws IllegalArgumentException {
-        loans.remove(getLoan(barcode, userId));
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(barcode);
+        lock.lock();
+        try {
+            final long today = LocalDate.now().toEpochDay();
+            final Loan loan = loans.get(barcode);
+            record(takeBack(barcode, userId, today), today);
+            history.archive(List.of(ReturnedLoan.of(loan, today)));
+            metrics.success(Operation.RETURN_ITEM, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.RETURN_ITEM, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create loans in one go
+     * @param requests items and the users borrowing them
+     * @param atomic whether to create none of the loans if any of them cannot be created
+     * @return number of loans created and the requests that failed
+     * @see #createLoan(String, String)
+     */
+    @Override
+    public BatchResult createLoans(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Action.LEND);
+    }
+
+    /**
+     * Renew loans in one go
+     * @param requests items and the users holding them
+     * @param atomic whether to renew none of the loans if any of them cannot be renewed
+     * @return number of loans renewed and the requests that failed
+     * @see #renewLoan(String, String)
+     */
+    @Override
+    public BatchResult renewLoans(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Action.RENEW);
     }
 
     /**
-     * Save all data to files
+     * Return items in one go
+     * @param requests items and the users holding them
+     * @param atomic whether to return none of the items if any of them cannot be returned
+     * @return number of items returned and the requests that failed
+     * @see #returnItem(String, String)
      */
+    @Override
+    public BatchResult returnItems(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Action.RETURN);
+    }
+
+    /**
+     * Save all data to files in the current {@link #getFormat() format} and compact the journal
+     * <p>
+     * The journal is rotated before the files are written, and the rotated part is dropped only once they are
+     * complete. Circulation goes on while saving: the files are written from the live collections, one record at
+     * a time, each record read whole (loans under their lock). Records changed during the save may be written in
+     * either state, but all those changes are in the new journal, and replaying them is idempotent, so the files
+     * plus the journal always load as the state at the end of the save.
+     * <p>
+     * Only the collections changed since the last save are written: as CSV, the files of the others are left
+     * untouched, and the changed ones are written in parallel. Every file is written to a temporary file, synced
+     * and renamed over the old one, so a save that fails or is cut short leaves the previous files whole, and the
+     * rotated journal is kept to be replayed on top of them.
+     * Saving as CSV deletes the snapshot, so a stale one is never preferred when loading.
+     */
+    @Override
     public void save() {
+        save(() -> { }, () -> { });
+    }
+
+    /**
+     * Save, running hooks where a concurrent change or a failure matters, for tests
+     * <p>
+     * The collections read as changed are marked changed again if the save fails in any way.
+     * @param afterRotate run right after the journal is rotated
+     * @param beforeWrite run right after the changed collections are read
+     */
+    synchronized void save(Runnable afterRotate, Runnable beforeWrite) {
+        final long start = System.nanoTime();
+        int changed = 0;
+        boolean saved = false;
         try {
-            try (var writer = mapper.writerFor(Loan.class).with(loanSchema).writeValues(new File(LOANS_FILES))) {
-                writer.writeAll(loans);
-            }
-            try (var writer = mapper.writerFor(User.class).with(userSchema).writeValues(new File(USERS_FILE))) {
-                writer.writeAll(users.values());
-            }
-            try (var writer = mapper.writerFor(Item.class).with(itemSchema).writeValues(new File(ITEMS_FILE))) {
-                writer.writeAll(items.values());
+            if (journal != null) journal.rotate();
+            afterRotate.run();
+            // Taken after the rotation: every record of the rotated journal was applied, and its collection marked
+            // dirty, before this, so the files written from the live collections cover them all; a change made
+            // later is in the new journal and marks its collection dirty again for the next save
+            changed = dirty.getAndSet(0);
+            beforeWrite.run();
+            if (format == Format.SNAPSHOT) {
+                if (changed != 0) {
+                    Snapshot.write(directory.resolve(Snapshot.FILE), ownsUsers ? users : List.of(), items,
+                            loanRecords());
+                    syncDirectory();
+                }
+            } else {
+                writeCsv(changed);
+                Files.deleteIfExists(directory.resolve(Snapshot.FILE));
             }
+            // Only dropped once everything it holds is in the files
+            if (journal != null) journal.dropRotated();
+            saved = true;
+            metrics.success(Operation.SAVE, start);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (!saved) markDirty(changed);
+        }
+    }
+
+    /**
+     * Write all data to the CSV files, whatever the storage format is
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void exportCsv() throws IOException {
+        writeCsv(ALL);
+    }
+
+    /**
+     * Write the items, loans and loan history to a compressed, column oriented file, for offline analysis
+     * Like {@link #save()}, the tables are written from the live collections while circulation goes on.
+     * @param file file to write
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void exportColumns(Path file) throws IOException {
+        try (var export = newColumnarExport(file)) {
+            export.items(items);
+            export.loans(loanRecords());
+            export.history(history);
+            export.commit();
+        }
+    }
+
+    /**
+     * Get the format {@link #save()} writes
+     * @return format the data was loaded from, unless changed
+     */
+    @Override
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the format {@link #save()} writes
+     * @param format format
+     */
+    @Override
+    public void setFormat(Format format) {
+        if (this.format != Objects.requireNonNull(format)) markDirty(ALL);
+        this.format = format;
+    }
+
+    /**
+     * Get how often the data is saved in the background
+     * @return interval, zero if not saved periodically
+     */
+    @Override
+    public Duration getSaveInterval() {
+        return saveInterval;
+    }
+
+    /**
+     * Save in the background at a fixed interval, on the thread that also compacts the journal
+     * @param interval time from the end of one save to the start of the next, zero or null to stop
+     * @throws IllegalStateException if the data was not loaded from a directory
+     */
+    @Override
+    public synchronized void setSaveInterval(Duration interval) {
+        if (saver == null) throw new IllegalStateException("Not loaded from a directory!");
+        if (scheduledSaves != null) scheduledSaves.cancel(false);
+        scheduledSaves = null;
+        saveInterval = interval == null || interval.isNegative() ? Duration.ZERO : interval;
+        if (saveInterval.isZero()) return;
+        final long millis = Math.max(1, saveInterval.toMillis());
+        scheduledSaves = saver.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // keep the schedule going
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop saving in the background, then sync and close the journal and the loan history, release the item store
+     * and complete the subscribers of {@link #getChanges()} unless they belong to the shards
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (journal == null) return;
+            saver.shutdown();
+            try {
+                if (!saver.awaitTermination(1, TimeUnit.MINUTES)) System.err.println("Background save still running");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journal.close();
+        } finally {
+            try {
+                history.close();
+            } finally {
+                items.close();
+                if (ownsShared) {
+                    users.close();
+                    changes.close();
+                }
+            }
         }
     }
 
+    /**
+     * Get the stream of changes, to follow every mutation as it is made
+     * @return publisher of batches of changes
+     */
+    @Override
+    public ChangeStream getChanges() {
+        return changes;
+    }
+
+    /**
+     * Get how long loading the data took
+     * @return load report, empty if not loaded from files
+     */
+    @Override
+    public LoadReport getLoadReport() {
+        return loadReport;
+    }
+
+    /**
+     * Get the operation counters and latencies
+     * @return metrics, to read or to {@link Metrics#register(String) publish over JMX}
+     */
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the circulation aggregates, counted as loans are created, renewed and returned
+     * @return loans by item type and month, most borrowed authors and renewal rates
+     */
+    @Override
+    public Analytics getAnalytics() {
+        return analytics;
+    }
+
     /**
      * Get a user
      * @param userId user ID
      * @return user pojo
      */
+    @Override
     public User getUser(String userId) {
-        return users.get(userId);
+        final long start = System.nanoTime();
+        final User user = users.get(userId);
+        metrics.success(Operation.GET_USER, start);
+        return user;
     }
 
     /**
      * Get an item
      * @param barcode item barcode
-     * @return item pojo
+     * @return a {@link Book} or {@link Multimedia} copy of the item, changing it does not change the catalog
      */
+    @Override
     public Item getItem(String barcode) {
-        return items.get(barcode);
+        final long start = System.nanoTime();
+        final Item item = items.get(barcode);
+        metrics.success(Operation.GET_ITEM, start);
+        return item;
+    }
+
+    /**
+     * Get the loans of a user
+     * @param userId user ID
+     * @return loans the user currently has
+     */
+    @Override
+    public List<Loan> getLoansForUser(String userId) {
+        final Set<String> barcodes = loansByUser.get(userId);
+        if (barcodes == null) return List.of();
+        final var result = new ArrayList<Loan>(barcodes.size());
+        for (String barcode : barcodes) {
+            final Loan loan = loans.get(barcode);
+            if (loan != null && loan.getUserId().equals(userId)) result.add(loan);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of loans a user has
+     * @param userId user ID
+     * @return number of loans
+     */
+    @Override
+    public int getLoanCount(String userId) {
+        final Set<String> barcodes = loansByUser.get(userId);
+        return barcodes == null ? 0 : barcodes.size();
+    }
+
+    /**
+     * Get the number of loans a user may have at once
+     * @return loan limit, {@code library.loanLimit} unless changed
+     */
+    @Override
+    public int getLoanLimit() {
+        return loanLimit;
+    }
+
+    /**
+     * Set the number of loans a user may have at once
+     * Users already over a lowered limit keep their loans but cannot borrow more.
+     * @param loanLimit loan limit
+     */
+    @Override
+    public void setLoanLimit(int loanLimit) {
+        if (loanLimit < 0) throw new IllegalArgumentException("Loan limit cannot be negative!");
+        this.loanLimit = loanLimit;
+    }
+
+    /**
+     * Search items by the words of their title and author
+     * Every word of the query must start a word of the title or the author, ignoring case.
+     * @param query query, e.g. "gabe en"
+     * @param limit maximum number of results
+     * @return matching items
+     */
+    @Override
+    public List<Item> search(String query, int limit) {
+        final long start = System.nanoTime();
+        final List<Item> results = searchIndex.search(query, limit, items::get);
+        metrics.success(Operation.SEARCH, start);
+        return results;
     }
 
     /**
      * Get all loans
-     * @return loans
+     * @return an unmodifiable copy of the loans
      */
+    @Override
     public List<Loan> getLoans() {
-        return Collections.unmodifiableList(loans);
+        return List.copyOf(loans.values());
+    }
+
+    /**
+     * List all items, in catalog order
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @return page of items
+     */
+    @Override
+    public Page<Item> listItems(String cursor, int limit) {
+        return listItems(cursor, limit, null);
+    }
+
+    /**
+     * List items in catalog order
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of items
+     */
+    @Override
+    public Page<Item> listItems(String cursor, int limit, Predicate<? super Item> filter) {
+        final ItemCatalog.Cursor iterator = items.iterator(cursor == null ? 0 : (int) parseCursor(cursor));
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive!");
+        final var rows = new ArrayList<Item>(Math.min(limit, 1024));
+        while (rows.size() < limit && iterator.hasNext()) {
+            final Item item = iterator.next();
+            if (filter == null || filter.test(item)) rows.add(item);
+        }
+        return new Page<>(rows, iterator.hasNext() ? Integer.toString(iterator.position()) : null);
+    }
+
+    /**
+     * List the items that are not on loan, in catalog order
+     * @param type item type, such as "Book", or null for all types
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @return page of items
+     */
+    @Override
+    public Page<Item> listAvailableItems(String type, String cursor, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive!");
+        final ItemCatalog.Cursor iterator = items.available(type, cursor == null ? 0 : (int) parseCursor(cursor));
+        final var rows = new ArrayList<Item>(Math.min(limit, 1024));
+        while (rows.size() < limit && iterator.hasNext()) rows.add(iterator.next());
+        return new Page<>(rows, iterator.hasNext() ? Integer.toString(iterator.position()) : null);
+    }
+
+    /**
+     * Check whether an item can be lent
+     * @param barcode item barcode
+     * @return whether the item exists and is not on loan
+     */
+    @Override
+    public boolean isAvailable(String barcode) {
+        return items.contains(barcode) && !items.isOnLoan(barcode);
+    }
+
+    /**
+     * Count the items that are not on loan
+     * @param type item type, such as "Book", or null for all types
+     * @return number of items
+     */
+    @Override
+    public int countAvailable(String type) {
+        return items.countAvailable(type);
+    }
+
+    /**
+     * Count the items that are on loan
+     * @param type item type, such as "Book", or null for all types
+     * @return number of items
+     */
+    @Override
+    public int countOnLoan(String type) {
+        return items.countOnLoan(type);
+    }
+
+    /**
+     * List all users, in the order of the user store
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @return page of users
+     */
+    @Override
+    public Page<User> listUsers(String cursor, int limit) {
+        return listUsers(cursor, limit, null);
+    }
+
+    /**
+     * List users, in the order of the user store
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of users
+     */
+    @Override
+    public Page<User> listUsers(String cursor, int limit, Predicate<? super User> filter) {
+        return users.page(cursor, limit, filter);
+    }
+
+    /**
+     * List all loans, by due date, then barcode
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @return page of loans
+     */
+    @Override
+    public Page<Loan> listLoans(String cursor, int limit) {
+        return listLoans(cursor, limit, null);
+    }
+
+    /**
+     * List loans by due date, then barcode
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of loans
+     */
+    @Override
+    public Page<Loan> listLoans(String cursor, int limit, Predicate<? super Loan> filter) {
+        NavigableSet<Loan> rest = loansByDueDate;
+        if (cursor != null) {
+            final int separator = cursor.indexOf(':');
+            if (separator < 0) throw new IllegalArgumentException("Invalid cursor!");
+            final Loan after = dueDateProbe(parseCursor(cursor.substring(0, separator)));
+            after.setBarcode(cursor.substring(separator + 1));
+            rest = loansByDueDate.tailSet(after, false);
+        }
+        return Page.of(rest.iterator(), limit, filter, Management::loanCursor);
+    }
+
+    /**
+     * Get the loans that are overdue
+     * @param asOf date to check against
+     * @return loans due before the date, earliest due first
+     */
+    @Override
+    public List<Loan> getOverdueLoans(LocalDate asOf) {
+        return List.copyOf(loansByDueDate.headSet(dueDateProbe(asOf.toEpochDay()), false));
+    }
+
+    /**
+     * Get the loans that fall due soon
+     * @param from first day
+     * @param days number of days after the first day to include
+     * @return loans due from {@code from} to {@code from + days} inclusive, earliest due first
+     */
+    @Override
+    public List<Loan> getLoansDueWithin(LocalDate from, int days) {
+        final long first = from.toEpochDay();
+        return List.copyOf(loansByDueDate.subSet(dueDateProbe(first), true, dueDateProbe(first + days + 1), false));
+    }
+
+    /**
+     * Find returned loans in the loan history, which only reads the segments that may hold matching loans
+     * @param barcode item barcode, or null for all items
+     * @param userId user ID, or null for all users
+     * @param from first day the loans may have run on, or null for no limit
+     * @param to last day the loans may have run on, or null for no limit
+     * @return loans that ran on any day of the range, by day of return, then barcode
+     */
+    @Override
+    public List<ReturnedLoan> getLoanHistory(String barcode, String userId, LocalDate from, LocalDate to) {
+        return history.find(barcode, userId, from == null ? Long.MIN_VALUE : from.toEpochDay(),
+                to == null ? Long.MAX_VALUE : to.toEpochDay());
+    }
+
+    /**
+     * Assess the overdue days and fines of every user, walking the loans in parallel
+     * @param asOf day to assess
+     * @param parallelism number of worker threads
+     * @return fines of the users with overdue loans
+     */
+    @Override
+    public FinesReport assessFines(LocalDate asOf, int parallelism) {
+        return FinesJob.run(List.of(finesPart()), asOf, parallelism);
+    }
+
+    FinesJob.Part finesPart() {
+        return new FinesJob.Part(loans.values().spliterator(), items::isBook);
+    }
+
+    /**
+     * Import the items of a large CSV file, parsing it in parallel and adding only valid, new items
+     * @param file CSV file with the columns of ITEMS.csv
+     * @param rejects file to write the rejected rows to, with their line and reason, or null not to write them
+     * @param parallelism number of worker threads
+     * @return numbers of rows read, imported and rejected by reason
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public ImportReport importItems(Path file, Path rejects, int parallelism) throws IOException {
+        return newItemImport(parallelism).run(file, rejects, this::addNewItems);
+    }
+
+    /**
+     * Add the items whose barcode is not taken yet, as one batch of changes
+     * @param batch items
+     * @return indexes of the items not added, as an item of the library or an earlier one of the batch has their
+     *         barcode
+     */
+    BitSet addNewItems(List<Item> batch) {
+        final boolean[] needed = new boolean[STRIPES];
+        for (Item item : batch) needed[stripeOf(item.getBarcode())] = true;
+        final var held = new ArrayList<ReentrantLock>();
+        final var taken = new BitSet();
+        try {
+            lockStripes(needed, held);
+            final var added = new ArrayList<Change>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                final Item item = batch.get(i);
+                if (items.contains(item.getBarcode())) {
+                    taken.set(i);
+                    continue;
+                }
+                putItem(item);
+                added.add(new Change.ItemAdded(item));
+            }
+            record(added);
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+        }
+        return taken;
     }
 
     /**
      * Add a user
      * @param user user
      */
+    @Override
     public void addUser(User user) {
-        users.put(user.getUserId(), user);
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(user.getUserId());
+        lock.lock();
+        try {
+            users.put(user);
+            markDirty(USERS);
+            record(new Change.UserAdded(user));
+            metrics.success(Operation.ADD_USER, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.ADD_USER, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a user who has no loans
+     * @param userId user ID
+     * @throws IllegalArgumentException if the user is not found or still has loans
+     */
+    @Override
+    public void removeUser(String userId) throws IllegalArgumentException {
+        removeUser(userId, false);
     }
 
     /**
      * Remove a user
      * @param userId user ID
+     * @param returnLoans whether to return the user's loans first instead of refusing to remove the user
+     * @throws IllegalArgumentException if the user is not found or still has loans
      */
-    public void removeUser(String userId) {
-        if (users.remove(userId) == null) throw new IllegalArgumentException("No such user!");
+    @Override
+    public void removeUser(String userId, boolean returnLoans) throws IllegalArgumentException {
+        final long start = System.nanoTime();
+        try {
+            if (!users.contains(userId)) throw new IllegalArgumentException("No such user!");
+            // Returned before taking the user lock, as returns take the barcode locks
+            if (returnLoans) for (Loan loan : getLoansForUser(userId)) returnItem(loan.getBarcode(), userId);
+            final ReentrantLock lock = lockOf(userId);
+            lock.lock();
+            try {
+                // Atomic with reserveUserLoan, so no loan can be created for a user being removed
+                loansByUser.compute(userId, (key, barcodes) -> {
+                    if (barcodes != null && !barcodes.isEmpty()) {
+                        throw new IllegalArgumentException("User still has loans!");
+                    }
+                    if (users.remove(userId) == null) throw new IllegalArgumentException("No such user!");
+                    markDirty(USERS);
+                    return null;
+                });
+                record(new Change.UserRemoved(userId));
+            } finally {
+                lock.unlock();
+            }
+            metrics.success(Operation.REMOVE_USER, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.REMOVE_USER, e, start);
+            throw e;
+        }
     }
 
     /**
      * Add an item
      * @param item item
      */
+    @Override
     public void addItem(Item item) {
-        items.put(item.getBarcode(), item);
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(item.getBarcode());
+        lock.lock();
+        try {
+            putItem(item);
+            record(new Change.ItemAdded(item));
+            metrics.success(Operation.ADD_ITEM, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.ADD_ITEM, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Remove an item
+     * Remove an item that is not on loan
      * @param barcode item barcode
-     * @throws IllegalArgumentException if the item is not found
+     * @throws IllegalArgumentException if the item is not found or is on loan
      */
+    @Override
     public void removeItem(String barcode) throws IllegalArgumentException {
-        if (items.remove(barcode) == null) throw new IllegalArgumentException("No such item!");
+        removeItem(barcode, false);
+    }
+
+    /**
+     * Remove an item
+     * @param barcode item barcode
+     * @param returnLoan whether to return the item first if it is on loan instead of refusing to remove it
+     * @throws IllegalArgumentException if the item is not found or is on loan
+     */
+    @Override
+    public void removeItem(String barcode, boolean returnLoan) throws IllegalArgumentException {
+        final long start = System.nanoTime();
+        final ReentrantLock lock = lockOf(barcode);
+        lock.lock();
+        try {
+            if (!items.contains(barcode)) throw new IllegalArgumentException("No such item!");
+            final Loan loan = loans.get(barcode);
+            if (loan != null) {
+                if (!returnLoan) throw new IllegalArgumentException("Item is on loan!");
+                final long today = LocalDate.now().toEpochDay();
+                removeLoan(loan);
+                record(new Change.ItemReturned(barcode, loan.getUserId()), today);
+                history.archive(List.of(ReturnedLoan.of(loan, today)));
+            }
+            deleteItem(barcode);
+            record(new Change.ItemRemoved(barcode));
+            metrics.success(Operation.REMOVE_ITEM, start);
+        } catch (IllegalArgumentException e) {
+            metrics.failure(Operation.REMOVE_ITEM, e, start);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Show all items
+     * Large catalogs are better shown a page at a time with {@link #listItems}.
      */
+    @Override
     public void viewItems() {
-        System.out.println("Items:");
-        items.values().forEach(System.out::println);
+        view("Items:", items);
     }
 
     /**
      * Show all loans
+     * Large catalogs are better shown a page at a time with {@link #listLoans}.
      */
+    @Override
     public void viewLoans() {
-        System.out.println("Loans:");
-        loans.forEach(System.out::println);
+        view("Loans:", loansByDueDate);
     }
 
     /**
      * Show all users
+     * Large catalogs are better shown a page at a time with {@link #listUsers}.
      */
+    @Override
     public void viewUsers() {
-        System.out.println("Users:");
-        users.values().forEach(System.out::println);
+        view("Users:", users);
+    }
+
+    static void view(String title, Iterable<?> rows) {
+        final var out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+        out.println(title);
+        rows.forEach(out::println);
+        out.flush();
+    }
+
+    /**
+     * Get the items of this library, to iterate over
+     */
+    Iterable<Item> items() {
+        return items;
+    }
+
+    /**
+     * Get the returned loans of this library, to iterate over
+     */
+    Iterable<ReturnedLoan> history() {
+        return history;
+    }
+
+    /**
+     * Cursor of the loans listed after a loan
+     */
+    static String loanCursor(Loan loan) {
+        return loan.getDueDay() + ":" + loan.getBarcode();
+    }
+
+    private static long parseCursor(String cursor) {
+        try {
+            return Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor!");
+        }
+    }
+
+    private void checkItemAndUser(boolean itemExists, String userId) throws IllegalArgumentException {
+        if (!itemExists) throw new IllegalArgumentException("No such item!");
+        if (!users.contains(userId)) throw new IllegalArgumentException("No such user!");
+    }
+
+    /**
+     * A circulation operation on one item, called with the lock of its barcode held
+     */
+    @FunctionalInterface
+    private interface Circulation {
+        Change apply(String barcode, String userId, long today) throws IllegalArgumentException;
+    }
+
+    private Change lend(String barcode, String userId, long today) {
+        // Read from the catalog columns, so circulation never materializes the item
+        final int weeks = items.borrowTime(barcode);
+        checkItemAndUser(weeks >= 0, userId);
+        if (items.isOnLoan(barcode)) throw new IllegalArgumentException("Item already on loan!");
+        reserveUserLoan(userId, barcode);
+        final Loan loan = new Loan();
+        loan.setBarcode(barcode);
+        loan.setUserId(userId);
+        loan.setIssueDay(today);
+        loan.setDueDay(today + 7L * weeks);
+        putLoan(loan);
+        return new Change.LoanCreated(barcode, userId, loan.getIssueDay(), loan.getDueDay());
+    }
+
+    private Change renew(String barcode, String userId, long today) {
+        final int weeks = items.renewTime(barcode);
+        checkItemAndUser(weeks >= 0, userId);
+        final Loan loan = getLoan(barcode, userId);
+        if (loan.getNumRenews() >= 3) throw new IllegalArgumentException("Cannot renew more than 3 times!");
+        updateLoan(loan, today + 7L * weeks, loan.getNumRenews() + 1);
+        return new Change.LoanRenewed(barcode, userId, loan.getDueDay(), loan.getNumRenews());
     }
 
-    private void checkBarcodeAndUserId(String barcode, String userId) throws IllegalArgumentException {
-        if (!items.containsKey(barcode)) throw new IllegalArgumentException("No such item!");
-        if (!users.containsKey(userId)) throw new IllegalArgumentException("No such user!");
+    private Change takeBack(String barcode, String userId, long today) {
+        checkItemAndUser(items.contains(barcode), userId);
+        removeLoan(getLoan(barcode, userId));
+        return new Change.ItemReturned(barcode, userId);
+    }
+
+    /**
+     * Apply an operation to every request, then journal the changes, or undo them all if the batch is atomic and
+     * any request failed
+     */
+    private BatchResult batch(List<LoanRequest> requests, boolean atomic, Action action) {
+        try (Batch batch = prepare(requests, atomic, action)) {
+            if (atomic && !batch.failures().isEmpty()) {
+                batch.rollback();
+                return new BatchResult(0, batch.failures());
+            }
+            return new BatchResult(batch.commit(), batch.failures());
+        }
+    }
+
+    /**
+     * Circulation operations that can be batched
+     */
+    enum Action { LEND, RENEW, RETURN }
+
+    /**
+     * Apply an operation to every request with the locks of all their barcodes held, taken in stripe order
+     * <p>
+     * The locks stay held until the batch is closed, after it is either committed or rolled back, so a
+     * {@link ShardedManagement} can prepare a batch on every shard before deciding.
+     * @param requests requests
+     * @param atomic whether to keep what is needed to roll back
+     * @param action operation
+     * @return the applied batch, to close
+     */
+    Batch prepare(List<LoanRequest> requests, boolean atomic, Action action) {
+        final Circulation operation = switch (action) {
+            case LEND -> this::lend;
+            case RENEW -> this::renew;
+            case RETURN -> this::takeBack;
+        };
+        final boolean[] needed = new boolean[STRIPES];
+        for (LoanRequest request : requests) if (request.barcode() != null) needed[stripeOf(request.barcode())] = true;
+        final Batch batch = new Batch(requests.size());
+        try {
+            lockStripes(needed, batch.held);
+            final long today = batch.today = LocalDate.now().toEpochDay();
+            for (int i = 0; i < requests.size(); i++) {
+                final LoanRequest request = requests.get(i);
+                try {
+                    if (request.barcode() == null || request.userId() == null) {
+                        throw new IllegalArgumentException("Missing barcode or user ID!");
+                    }
+                    final Loan current = loans.get(request.barcode()), original = atomic ? copyOf(current) : null;
+                    batch.changes.add(operation.apply(request.barcode(), request.userId(), today));
+                    if (action == Action.RETURN) batch.returned.add(ReturnedLoan.of(current, today));
+                    if (atomic) {
+                        batch.touched.add(request.barcode());
+                        batch.originals.add(original);
+                    }
+                } catch (IllegalArgumentException e) {
+                    batch.failures.add(new BatchResult.Failure(i, request, e.getMessage()));
+                }
+            }
+            return batch;
+        } catch (RuntimeException | Error e) {
+            batch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lock the stripes needed, in stripe order so batches never deadlock
+     * @param held locks taken, to unlock in reverse order even if this fails
+     */
+    private void lockStripes(boolean[] needed, List<ReentrantLock> held) {
+        for (int i = 0; i < STRIPES; i++) {
+            if (!needed[i]) continue;
+            stripes[i].lock();
+            held.add(stripes[i]);
+        }
+    }
+
+    /**
+     * A batch applied with its locks held
+     * Atomic batches keep a copy of each loan they touch, to put the copies back on {@link #rollback()}. Returned
+     * loans are archived in the history only on {@link #commit()}.
+     */
+    final class Batch implements AutoCloseable {
+        private final List<ReentrantLock> held = new ArrayList<>();
+        private final List<Change> changes;
+        private final List<BatchResult.Failure> failures = new ArrayList<>();
+        private final List<String> touched = new ArrayList<>();
+        private final List<Loan> originals = new ArrayList<>();
+        private final List<ReturnedLoan> returned = new ArrayList<>();
+        private long today;
+
+        private Batch(int size) {
+            changes = new ArrayList<>(size);
+        }
+
+        /**
+         * @return requests that failed, with their index in the batch
+         */
+        List<BatchResult.Failure> failures() {
+            return failures;
+        }
+
+        /**
+         * Journal the changes together and archive the returned loans
+         * @return number of requests applied
+         */
+        int commit() {
+            record(changes, today);
+            history.archive(returned);
+            return changes.size();
+        }
+
+        /**
+         * Undo every change, in reverse order
+         */
+        void rollback() {
+            for (int i = touched.size() - 1; i >= 0; i--) {
+                final Loan current = loans.get(touched.get(i)), original = originals.get(i);
+                if (original != null) putLoan(original);
+                else if (current != null) removeLoan(current);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+            held.clear();
+        }
+    }
+
+    /**
+     * Copies of the loans, each taken under its lock, as loans are changed in place
+     */
+    Iterable<Loan> loanRecords() {
+        return () -> new Iterator<>() {
+            private final Iterator<Loan> loans = Management.this.loans.values().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return loans.hasNext();
+            }
+
+            @Override
+            public Loan next() {
+                final Loan loan = loans.next();
+                final ReentrantLock lock = lockOf(loan.getBarcode());
+                lock.lock();
+                try {
+                    return copyOf(loan);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    private static Loan copyOf(Loan loan) {
+        if (loan == null) return null;
+        final Loan copy = new Loan();
+        copy.setBarcode(loan.getBarcode());
+        copy.setUserId(loan.getUserId());
+        copy.setIssueDay(loan.getIssueDay());
+        copy.setDueDay(loan.getDueDay());
+        copy.setNumRenews(loan.getNumRenews());
+        return copy;
     }
 
     private Loan getLoan(String barcode, String userId) {
-        checkBarcodeAndUserId(barcode, userId);
-        return loans.stream()
-                .filter(it -> it.getBarcode().equals(barcode) && it.getUserId().equals(userId))
-                .findFirst().orElseThrow(() -> new IllegalArgumentException("No such loan!"));
+        final Loan loan = loans.get(barcode);
+        if (loan == null || !loan.getUserId().equals(userId)) throw new IllegalArgumentException("No such loan!");
+        return loan;
+    }
+
+    /**
+     * Write the CSV files of some collections in parallel, each replaced atomically
+     * @param parts {@link #USERS}, {@link #ITEMS} and {@link #LOANS} bits
+     */
+    private void writeCsv(int parts) throws IOException {
+        if (!ownsUsers) parts &= ~USERS;
+        if (parts == 0) return;
+        final ExecutorService writer = Executors.newFixedThreadPool(Integer.bitCount(parts));
+        try {
+            final var writes = new ArrayList<Future<Path>>(3);
+            if ((parts & LOANS) != 0) {
+                writes.add(writer.submit(() -> writeCsv(LOANS_FILES, Loan.class, loanSchema, loanRecords())));
+            }
+            if ((parts & USERS) != 0) {
+                writes.add(writer.submit(() -> writeCsv(USERS_FILE, User.class, userSchema, users)));
+            }
+            if ((parts & ITEMS) != 0) {
+                writes.add(writer.submit(() -> writeCsv(ITEMS_FILE, Item.class, itemSchema, items)));
+            }
+            // Wait for all of them, so none is still renamed into place after a failed save returns
+            IOException error = null;
+            for (Future<Path> write : writes) {
+                try {
+                    await(write);
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                    else error.addSuppressed(e);
+                }
+            }
+            if (error != null) throw error;
+        } finally {
+            writer.shutdown();
+        }
+        syncDirectory();
+    }
+
+    private <T> Path writeCsv(String name, Class<T> type, CsvSchema schema, Iterable<T> rows) throws IOException {
+        final Path file = directory.resolve(name), temp = directory.resolve(name + ".tmp");
+        try (var out = new FileOutputStream(temp.toFile());
+             var writer = mapper.writerFor(type).with(schema).writeValues(new BufferedOutputStream(out, 1 << 16))) {
+            writer.writeAll(rows);
+            writer.flush();
+            out.getFD().sync();
+        }
+        return Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Make the renames durable, where the platform can sync a directory
+     */
+    private void syncDirectory() {
+        try (var channel = FileChannel.open(directory.toAbsolutePath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static <T> LoadReport.FileLoad load(Path file, Class<T> type, CsvSchema schema, Consumer<T> consumer)
+            throws IOException {
+        final long start = System.nanoTime();
+        long rows = 0;
+        if (Files.exists(file)) try (MappingIterator<T> reader = mapper.readerFor(type).with(schema).readValues(file.toFile())) {
+            while (reader.hasNextValue()) {
+                consumer.accept(reader.nextValue());
+                rows++;
+            }
+        }
+        return new LoadReport.FileLoad(file.getFileName().toString(), rows, System.nanoTime() - start);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Estimate the number of rows of a file from the line length of its first 64 KiB
+     */
+    private static int estimateRows(Path file) throws IOException {
+        if (!Files.exists(file)) return 16;
+        final long size = Files.size(file);
+        final byte[] sample = new byte[(int) Math.min(size, 1 << 16)];
+        int read = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n; read < sample.length && (n = in.read(sample, read, sample.length - read)) > 0; ) read += n;
+        }
+        int lines = 0;
+        for (int i = 0; i < read; i++) if (sample[i] == '\n') lines++;
+        if (lines == 0) return 16;
+        return (int) Math.min(size * lines / read, Integer.MAX_VALUE >> 1);
+    }
+
+    /**
+     * Add or replace an item, keeping the search index in step
+     */
+    private void putItem(Item item) {
+        final Item previous = items.put(item);
+        final int ordinal = items.ordinal(item.getBarcode());
+        if (previous != null) searchIndex.remove(previous, ordinal);
+        searchIndex.add(item, ordinal);
+        // Loans are loaded alongside the items, so the item may be added after its loan
+        if (previous == null && loans.contains(item.getBarcode())) items.setOnLoan(item.getBarcode(), true);
+        markDirty(ITEMS);
+    }
+
+    private Item deleteItem(String barcode) {
+        // Unindexed before the ordinal is freed, as another item may take it as soon as it is
+        final int ordinal = items.ordinal(barcode);
+        if (ordinal < 0) return null;
+        searchIndex.remove(items.get(ordinal), ordinal);
+        final Item item = items.remove(barcode);
+        markDirty(ITEMS);
+        return item;
+    }
+
+    /**
+     * Add or replace a loan, keeping the due date index in step
+     */
+    private void putLoan(Loan loan) {
+        loansByUser.computeIfAbsent(loan.getUserId(), key -> ConcurrentHashMap.newKeySet()).add(loan.getBarcode());
+        final Loan previous = loans.put(loan);
+        items.setOnLoan(loan.getBarcode(), true);
+        if (previous != null) {
+            loansByDueDate.remove(previous);
+            if (!previous.getUserId().equals(loan.getUserId())) removeUserLoan(previous);
+        }
+        loansByDueDate.add(loan);
+        markDirty(LOANS);
+    }
+
+    private void removeLoan(Loan loan) {
+        if (loans.remove(loan.getBarcode(), loan)) {
+            items.setOnLoan(loan.getBarcode(), false);
+            loansByDueDate.remove(loan);
+            removeUserLoan(loan);
+            markDirty(LOANS);
+        }
+    }
+
+    /**
+     * Count a new loan against its user, atomically checking that the user exists and is under the limit
+     */
+    private void reserveUserLoan(String userId, String barcode) {
+        final int limit = loanLimit;
+        loansByUser.compute(userId, (key, barcodes) -> {
+            if (!users.contains(userId)) throw new IllegalArgumentException("No such user!");
+            if ((barcodes == null ? 0 : barcodes.size()) >= limit) {
+                throw new IllegalArgumentException("Cannot borrow more than " + limit + " items!");
+            }
+            if (barcodes == null) barcodes = ConcurrentHashMap.newKeySet();
+            barcodes.add(barcode);
+            return barcodes;
+        });
+    }
+
+    private void removeUserLoan(Loan loan) {
+        loansByUser.computeIfPresent(loan.getUserId(), (key, barcodes) -> {
+            barcodes.remove(loan.getBarcode());
+            return barcodes.isEmpty() ? null : barcodes;
+        });
+    }
+
+    private void updateLoan(Loan loan, long dueDay, int numRenews) {
+        loansByDueDate.remove(loan);
+        loan.setDueDay(dueDay);
+        loan.setNumRenews(numRenews);
+        loansByDueDate.add(loan);
+        markDirty(LOANS);
+    }
+
+    /**
+     * Mark collections as changed since the last save, after changing them
+     * <p>
+     * Marking after the change matters: {@link #save()} clears the marks before writing, so a change marked before
+     * being applied could be missed by both the files and the next save.
+     */
+    private void markDirty(int parts) {
+        if ((dirty.get() & parts) != parts) dirty.getAndAccumulate(parts, (a, b) -> a | b);
+    }
+
+    /**
+     * A loan sorting before all loans due on the same day
+     */
+    private static Loan dueDateProbe(long epochDay) {
+        final Loan probe = new Loan();
+        probe.setBarcode("");
+        probe.setDueDay(epochDay);
+        return probe;
+    }
+
+    /**
+     * Values sampled by the metrics when read; the fields they use are assigned by then
+     */
+    Map<String, LongSupplier> gauges() {
+        final var gauges = new LinkedHashMap<String, LongSupplier>();
+        gauges.put("users", () -> users.size());
+        gauges.put("items", () -> items.size());
+        gauges.put("loans", () -> loans.size());
+        gauges.put("itemsAvailable", () -> items.countAvailable(null));
+        gauges.put("historyLoans", () -> history.size());
+        gauges.put("historySegments", () -> history.segmentCount());
+        gauges.put("historyFailures", () -> history.failures());
+        gauges.put("journalRecords", () -> journal == null ? 0 : journal.records());
+        gauges.put("saveIntervalMillis", () -> saveInterval.toMillis());
+        gauges.put("changesPublished", () -> changes.getPublished());
+        gauges.put("changesDropped", () -> changes.getDropped());
+        gauges.put("itemCacheHits", () -> items.cacheStats().hits());
+        gauges.put("itemCacheMisses", () -> items.cacheStats().misses());
+        gauges.put("itemCacheEvictions", () -> items.cacheStats().evictions());
+        gauges.put("userCacheHits", () -> users.cacheStats().hits());
+        gauges.put("userCacheMisses", () -> users.cacheStats().misses());
+        gauges.put("userCacheEvictions", () -> users.cacheStats().evictions());
+        return gauges;
+    }
+
+    static ChangeStream newChangeStream() {
+        return new ChangeStream(CHANGES_BUFFER, CHANGES_BATCH, CHANGES_LINGER_MILLIS, CHANGES_SUBSCRIBER_BUFFER);
+    }
+
+    static ItemImport newItemImport(int parallelism) {
+        return new ItemImport(IMPORT_TYPES, IMPORT_CHUNK_BYTES, parallelism);
+    }
+
+    static ColumnarExport newColumnarExport(Path file) throws IOException {
+        return new ColumnarExport(file, EXPORT_GROUP_ROWS);
+    }
+
+    private ReentrantLock lockOf(String key) {
+        return stripes[stripeOf(key)];
+    }
+
+    private static int stripeOf(String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Journal a change that is not a return, while its lock is still held
+     */
+    private void record(Change change) {
+        record(change, Loan.NO_DATE);
+    }
+
+    /**
+     * Journal a change that was just applied, while its lock is still held
+     * @param today epoch day the operation was made on, which a return is counted in
+     */
+    private void record(Change change, long today) {
+        count(change, today);
+        changes.publish(change);
+        if (journal == null) return;
+        journal.append(change);
+        compactIfNeeded();
+    }
+
+    private void record(List<Change> changes) {
+        record(changes, Loan.NO_DATE);
+    }
+
+    private void record(List<Change> changes, long today) {
+        for (Change change : changes) count(change, today);
+        this.changes.publish(changes);
+        if (journal == null || changes.isEmpty()) return;
+        journal.append(changes);
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        if (journal.records() >= COMPACT_AFTER && compacting.compareAndSet(false, true)) {
+            saver.execute(() -> {
+                try {
+                    save();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Count a circulation change in the analytics, before a removed item is gone from the catalog
+     */
+    private void count(Change change, long today) {
+        if (change instanceof Change.LoanCreated it) {
+            analytics.loaned(items.type(it.barcode()), items.author(it.barcode()), it.issueDay());
+        } else if (change instanceof Change.LoanRenewed it) {
+            analytics.renewed(items.type(it.barcode()), it.numRenews());
+        } else if (change instanceof Change.ItemReturned it) {
+            analytics.returned(items.type(it.barcode()), today);
+        }
+    }
+
+    /**
+     * Count the loans loaded, which the changes replayed from the journal are part of; the returned loans are counted
+     * from their history segments as the history is opened
+     */
+    private void seedAnalytics() {
+        for (Loan loan : loans.values()) {
+            analytics.seed(items.type(loan.getBarcode()), items.author(loan.getBarcode()), loan.getIssueDay(),
+                    loan.getNumRenews(), Loan.NO_DATE);
+        }
+    }
+
+    /**
+     * Count a returned loan into the analytics of its history segment
+     */
+    private void countReturned(Analytics counts, ReturnedLoan loan) {
+        counts.seed(items.type(loan.barcode()), items.author(loan.barcode()), loan.issueDay(), loan.numRenews(),
+                loan.returnDay());
+    }
+
+    /**
+     * Apply a replayed change
+     */
+    private void apply(Change change) {
+        if (change instanceof Change.LoanCreated it) {
+            final Loan loan = new Loan();
+            loan.setBarcode(it.barcode());
+            loan.setUserId(it.userId());
+            loan.setIssueDay(it.issueDay());
+            loan.setDueDay(it.dueDay());
+            putLoan(loan);
+        } else if (change instanceof Change.LoanRenewed it) {
+            final Loan loan = loans.get(it.barcode());
+            if (loan == null || !loan.getUserId().equals(it.userId())) return;
+            updateLoan(loan, it.dueDay(), it.numRenews());
+        } else if (change instanceof Change.ItemReturned it) {
+            final Loan loan = loans.get(it.barcode());
+            if (loan != null && loan.getUserId().equals(it.userId())) removeLoan(loan);
+        } else if (change instanceof Change.ItemAdded it) {
+            putItem(it.item());
+        } else if (change instanceof Change.ItemRemoved it) {
+            deleteItem(it.barcode());
+        } else if (change instanceof Change.UserAdded it) {
+            users.put(it.user());
+            markDirty(USERS);
+        } else if (change instanceof Change.UserRemoved it) {
+            if (users.remove(it.userId()) != null) markDirty(USERS);
+        }
     }
 }
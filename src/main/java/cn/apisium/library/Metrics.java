@@ -0,0 +1,312 @@
+package cn.apisium.library;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of the {@link Management} operations
+ * <p>
+ * Recording only increments preallocated counters, so it does not allocate. Errors are counted by cause, from
+ * the message of the {@link IllegalArgumentException}. Latencies go into log-linear histograms with 8 buckets per
+ * power of two, which keep percentiles within 12.5%.
+ */
+public final class Metrics implements MetricsMXBean {
+    /**
+     * Instrumented operations
+     */
+    public enum Operation {
+        CREATE_LOAN("createLoan"), RENEW_LOAN("renewLoan"), RETURN_ITEM("returnItem"), GET_ITEM("getItem"),
+        GET_USER("getUser"), ADD_ITEM("addItem"), REMOVE_ITEM("removeItem"), ADD_USER("addUser"),
+        REMOVE_USER("removeUser"), SEARCH("search"), LOAD("load"), SAVE("save");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Causes of failed operations
+     */
+    public enum Cause {
+        NO_SUCH_ITEM("noSuchItem"), NO_SUCH_USER("noSuchUser"), NO_SUCH_LOAN("noSuchLoan"),
+        RENEW_LIMIT("renewLimit"), LOAN_LIMIT("loanLimit"), ALREADY_ON_LOAN("alreadyOnLoan"), OTHER("other");
+
+        private final String label;
+
+        Cause(String label) {
+            this.label = label;
+        }
+
+        static Cause of(String message) {
+            if (message == null) return OTHER;
+            return switch (message) {
+                case "No such item!" -> NO_SUCH_ITEM;
+                case "No such user!" -> NO_SUCH_USER;
+                case "No such loan!" -> NO_SUCH_LOAN;
+                case "Cannot renew more than 3 times!" -> RENEW_LIMIT;
+                case "Item already on loan!" -> ALREADY_ON_LOAN;
+                default -> message.startsWith("Cannot borrow more than") ? LOAN_LIMIT : OTHER;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final Cause[] CAUSES = Cause.values();
+
+    private final Stats[] stats = new Stats[OPERATIONS.length];
+    private final Map<String, LongSupplier> gauges;
+    private volatile long lastSaveNanos, lastSaveMillis, saveIntervalNanos, savedAtNanos = System.nanoTime();
+
+    /**
+     * @param gauges values sampled when read, such as collection sizes, in display order
+     */
+    Metrics(Map<String, LongSupplier> gauges) {
+        for (int i = 0; i < stats.length; i++) stats[i] = new Stats();
+        this.gauges = gauges;
+    }
+
+    /**
+     * Record a successful operation
+     * @param operation operation
+     * @param startNanos {@link System#nanoTime()} when it started
+     */
+    void success(Operation operation, long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        final Stats stats = this.stats[operation.ordinal()];
+        stats.count.increment();
+        stats.latency.record(nanos);
+        if (operation == Operation.SAVE) {
+            // The files hold the data as of the start of the save, the rest is in the journal
+            saveIntervalNanos = startNanos - savedAtNanos;
+            savedAtNanos = startNanos;
+            lastSaveNanos = nanos;
+            lastSaveMillis = System.currentTimeMillis();
+        } else if (operation == Operation.LOAD) savedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a failed operation
+     * @param operation operation
+     * @param error what it failed with
+     * @param startNanos {@link System#nanoTime()} when it started
+     */
+    void failure(Operation operation, IllegalArgumentException error, long startNanos) {
+        final Stats stats = this.stats[operation.ordinal()];
+        stats.count.increment();
+        stats.latency.record(System.nanoTime() - startNanos);
+        stats.errors.incrementAndGet(Cause.of(error.getMessage()).ordinal());
+    }
+
+    public long getCount(Operation operation) {
+        return stats[operation.ordinal()].count.sum();
+    }
+
+    public long getErrors(Operation operation, Cause cause) {
+        return stats[operation.ordinal()].errors.get(cause.ordinal());
+    }
+
+    /**
+     * Get a latency percentile
+     * @param operation operation
+     * @param fraction percentile, such as 0.99
+     * @return upper bound of the latency, in nanoseconds
+     */
+    public long getLatencyNanos(Operation operation, double fraction) {
+        return stats[operation.ordinal()].latency.percentile(fraction);
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        final var counts = new LinkedHashMap<String, Long>();
+        for (Operation operation : OPERATIONS) counts.put(operation.toString(), getCount(operation));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        final var errors = new LinkedHashMap<String, Long>();
+        for (Operation operation : OPERATIONS) {
+            for (Cause cause : CAUSES) {
+                final long count = getErrors(operation, cause);
+                if (count != 0) errors.put(operation + "." + cause, count);
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public Map<String, Double> getLatenciesMillis() {
+        final var latencies = new LinkedHashMap<String, Double>();
+        for (Operation operation : OPERATIONS) {
+            if (getCount(operation) == 0) continue;
+            latencies.put(operation + ".p50", getLatencyNanos(operation, 0.50) / 1e6);
+            latencies.put(operation + ".p99", getLatencyNanos(operation, 0.99) / 1e6);
+            latencies.put(operation + ".max", getLatencyNanos(operation, 1) / 1e6);
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        final var values = new LinkedHashMap<String, Long>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public double getLastSaveDurationMillis() {
+        return lastSaveNanos / 1e6;
+    }
+
+    @Override
+    public long getLastSaveTime() {
+        return lastSaveMillis;
+    }
+
+    @Override
+    public double getLastSaveIntervalMillis() {
+        return saveIntervalNanos / 1e6;
+    }
+
+    @Override
+    public double getSaveStalenessMillis() {
+        return (System.nanoTime() - savedAtNanos) / 1e6;
+    }
+
+    @Override
+    public String dump() {
+        final var sb = new StringBuilder();
+        for (Operation operation : OPERATIONS) {
+            final long count = getCount(operation);
+            if (count == 0) continue;
+            sb.append(String.format(Locale.ROOT, "%s count=%d p50=%.3fms p99=%.3fms max=%.3fms", operation, count,
+                    getLatencyNanos(operation, 0.50) / 1e6, getLatencyNanos(operation, 0.99) / 1e6,
+                    getLatencyNanos(operation, 1) / 1e6));
+            for (Cause cause : CAUSES) {
+                final long errors = getErrors(operation, cause);
+                if (errors != 0) sb.append(' ').append(cause).append('=').append(errors);
+            }
+            sb.append(System.lineSeparator());
+        }
+        getGauges().forEach((name, value) -> sb.append(name).append(' ').append(value).append(System.lineSeparator()));
+        sb.append(String.format(Locale.ROOT, "lastSave %.3fms at %d, %.3fms after the one before, %.3fms ago",
+                getLastSaveDurationMillis(), getLastSaveTime(), getLastSaveIntervalMillis(),
+                getSaveStalenessMillis())).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    /**
+     * Register as a platform MBean
+     * @param name name of the library, part of the object name
+     * @return the object name
+     * @throws JMException if the MBean cannot be registered
+     */
+    public ObjectName register(String name) throws JMException {
+        final var objectName = new ObjectName("cn.apisium.library:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Periodically write the {@link #dump()} to a file, replacing it each time
+     * @param file file to write
+     * @param period time between dumps
+     * @return stops the dumps when closed
+     */
+    public Closeable dumpEvery(Path file, Duration period) {
+        final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "library-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                Files.writeString(temp, dump());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        return dumper::shutdown;
+    }
+
+    private static final class Stats {
+        private final LongAdder count = new LongAdder();
+        private final AtomicLongArray errors = new AtomicLongArray(CAUSES.length);
+        private final Histogram latency = new Histogram();
+    }
+
+    /**
+     * Log-linear histogram of non-negative values
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        /**
+         * Get a percentile
+         * @param fraction percentile, from 0 to 1
+         * @return upper bound of the bucket holding it, 0 if nothing was recorded
+         */
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            if (total == 0) return 0;
+            final long target = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            int last = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                final long count = counts.get(i);
+                if (count == 0) continue;
+                last = i;
+                if ((seen += count) >= target) return upperBound(i);
+            }
+            return upperBound(last);
+        }
+
+        static int index(long value) {
+            if (value < SUB) return (int) value;
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB + (int) (value >>> (exponent - SUB_BITS)) - SUB;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) return index;
+            final int shift = index / SUB - 1;
+            return ((long) (SUB + index % SUB) << shift) + (1L << shift) - 1;
+        }
+    }
+}
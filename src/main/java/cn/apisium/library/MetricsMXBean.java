@@ -0,0 +1,50 @@
+package cn.apisium.library;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} of a library
+ */
+public interface MetricsMXBean {
+    /**
+     * @return number of calls, by operation
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return number of failed calls, by "operation.cause"
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * @return latency percentiles in milliseconds, by "operation.p50", "operation.p99" and "operation.max"
+     */
+    Map<String, Double> getLatenciesMillis();
+
+    /**
+     * @return collection sizes and other sampled values
+     */
+    Map<String, Long> getGauges();
+
+    double getLastSaveDurationMillis();
+
+    /**
+     * @return end of the last save, in milliseconds since the epoch, 0 if none
+     */
+    long getLastSaveTime();
+
+    /**
+     * @return time between the starts of the last two saves
+     */
+    double getLastSaveIntervalMillis();
+
+    /**
+     * @return age of the data in the files, that is time since the start of the last save, or since loading
+     */
+    double getSaveStalenessMillis();
+
+    /**
+     * @return all metrics as text, one line per operation or gauge
+     */
+    String dump();
+}
@@ -8,6 +8,10 @@ public final class Multimedia extends Item {
         super(other);
     }
 
+    public Multimedia(String barcode, String author, String title, String type, String year, String isbn) {
+        super(barcode, author, title, type, year, isbn);
+    }
+
     @Override
     public int getRenewTime() {
         return 1; // one week
@@ -17,4 +21,9 @@ public final class Multimedia extends Item {
     public int getBorrowTime() {
         return 1; // one week
     }
+
+    @Override
+    public int getFinePerDay() {
+        return 50; // fifty cents a day
+    }
 }
@@ -0,0 +1,39 @@
+package cn.apisium.library;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * One page of a listing
+ *
+ * @param rows rows of the page, in the listing's order
+ * @param nextCursor cursor to pass back for the next page, null if this is the last one
+ * @param <T> row type
+ */
+public record Page<T>(List<T> rows, String nextCursor) {
+    /**
+     * Take a page of rows from an iterator
+     * @param iterator rows after the cursor
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @param cursorOf cursor of the rows listed after a row
+     * @return page of rows
+     */
+    static <T> Page<T> of(Iterator<T> iterator, int limit, Predicate<? super T> filter, Function<T, String> cursorOf) {
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive!");
+        final var rows = new ArrayList<T>(Math.min(limit, 1024));
+        T last = null;
+        while (rows.size() < limit && iterator.hasNext()) {
+            last = iterator.next();
+            if (filter == null || filter.test(last)) rows.add(last);
+        }
+        return new Page<>(rows, iterator.hasNext() ? cursorOf.apply(last) : null);
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,178 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Store of records outside the Java heap
+ * <p>
+ * Records live in chunks of 1 to 64 MiB of direct memory, or of a memory-mapped scratch file that the OS can page
+ * out, and are addressed by a long: chunk index in the high bits, offset in the chunk in the low ones.
+ * <p>
+ * Reads use absolute positions only, so they never disturb each other, and may race with appends as long as the
+ * caller validates what it read, as {@link ItemCatalog} does.
+ */
+final class RecordArena implements Records {
+    private static final int MIN_CHUNK_BITS = 20, MAX_CHUNK_BITS = 26;
+
+    private final FileChannel file;
+    private final int chunkBits, chunkSize;
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+    private int chunkCount, offset;
+    private long used, garbage;
+
+    /**
+     * @param mapped whether to keep the records in a memory-mapped scratch file instead of direct memory
+     * @param expectedBytes bytes the records are expected to take, to size the chunks
+     */
+    RecordArena(boolean mapped, long expectedBytes) {
+        chunkBits = Math.max(MIN_CHUNK_BITS, Math.min(MAX_CHUNK_BITS, 64 - Long.numberOfLeadingZeros(expectedBytes)));
+        chunkSize = offset = 1 << chunkBits;
+        if (!mapped) {
+            file = null;
+            return;
+        }
+        try {
+            final var path = Files.createTempFile("library-items", ".arena");
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each string must be shorter than a quarter of a chunk once encoded.
+     */
+    @Override
+    public long append(String... values) {
+        final byte[][] bytes = new byte[values.length][];
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                size++;
+                continue;
+            }
+            bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            if (bytes[i].length >= chunkSize / 4) throw new IllegalArgumentException("Value too long!");
+            size += varintSize(bytes[i].length + 1) + bytes[i].length;
+        }
+        if (offset + size > chunkSize) addChunk();
+        final ByteBuffer chunk = chunks[chunkCount - 1];
+        final long address = (long) (chunkCount - 1) << chunkBits | offset;
+        for (byte[] value : bytes) {
+            offset = putVarint(chunk, offset, value == null ? 0 : value.length + 1);
+            if (value != null) {
+                chunk.put(offset, value);
+                offset += value.length;
+            }
+        }
+        used += size;
+        return address;
+    }
+
+    @Override
+    public String read(long address, int field) {
+        final ByteBuffer chunk = chunks[(int) (address >>> chunkBits)];
+        int position = skip(chunk, (int) address & chunkSize - 1, field);
+        final int length = getVarint(chunk, position);
+        if (length == 0) return null;
+        position += varintSize(length);
+        if (length - 1 > chunk.limit() - position) throw new IllegalStateException("Corrupt record!");
+        final byte[] bytes = new byte[length - 1];
+        chunk.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare a string of a record with encoded bytes, without decoding it
+     */
+    @Override
+    public boolean matches(long address, int field, byte[] value) {
+        final ByteBuffer chunk = chunks[(int) (address >>> chunkBits)];
+        int position = skip(chunk, (int) address & chunkSize - 1, field);
+        final int length = getVarint(chunk, position);
+        if (length != value.length + 1) return false;
+        position += varintSize(length);
+        for (byte b : value) if (chunk.get(position++) != b) return false;
+        return true;
+    }
+
+    @Override
+    public void free(long address, int fields) {
+        final ByteBuffer chunk = chunks[(int) (address >>> chunkBits)];
+        final int start = (int) address & chunkSize - 1;
+        garbage += skip(chunk, start, fields) - start;
+    }
+
+    @Override
+    public long used() {
+        return used;
+    }
+
+    @Override
+    public long garbage() {
+        return garbage;
+    }
+
+    boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * Release the scratch file; mapped chunks stay readable until they are collected
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) file.close();
+    }
+
+    private void addChunk() {
+        if (chunkCount == chunks.length) chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        try {
+            chunks[chunkCount] = file == null ? ByteBuffer.allocateDirect(chunkSize)
+                    : file.map(FileChannel.MapMode.READ_WRITE, (long) chunkCount * chunkSize, chunkSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        chunkCount++;
+        offset = 0;
+    }
+
+    static int skip(ByteBuffer chunk, int position, int fields) {
+        for (int i = 0; i < fields; i++) {
+            final int length = getVarint(chunk, position);
+            position += varintSize(length) + Math.max(0, length - 1);
+        }
+        return position;
+    }
+
+    static int putVarint(ByteBuffer chunk, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            chunk.put(position++, (byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        chunk.put(position++, (byte) value);
+        return position;
+    }
+
+    static int getVarint(ByteBuffer chunk, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = chunk.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    static int varintSize(int value) {
+        return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : value < 1 << 21 ? 3 : 4;
+    }
+}
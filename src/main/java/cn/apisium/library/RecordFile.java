@@ -0,0 +1,227 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Store of records in a scratch file, with a cache of the recently read ones
+ * <p>
+ * Records are addressed by their offset in the file. Appends go through a small write buffer, and reads take the
+ * record from the cache, the write buffer or the file with a positional read, decoding all of its {@code fields}
+ * strings at once. Only records read from the file are cached: their bytes never change once written.
+ * <p>
+ * Interrupting a thread during a read or write closes the channel for every thread, so the file is reopened and the
+ * I/O retried, leaving the thread interrupted; the file is only deleted by {@link #close()}.
+ */
+final class RecordFile implements Records {
+    private static final int BUFFER = 1 << 16, WINDOW = 256;
+
+    private final Path path;
+    private volatile FileChannel file;
+    private boolean closed;
+    private final int fields;
+    private final LruCache<Long, String[]> cache;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    /**
+     * Bytes written to the file, the address of the first record in the write buffer
+     */
+    private volatile long flushed;
+    private long size, garbage;
+
+    /**
+     * @param fields number of strings in every record
+     * @param cacheSize number of records cached, 0 for none
+     */
+    RecordFile(int fields, int cacheSize) {
+        this.fields = fields;
+        cache = cacheSize > 0 ? new LruCache<>(cacheSize) : null;
+        try {
+            path = Files.createTempFile("library-records", ".dat");
+            path.toFile().deleteOnExit();
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long append(String... values) {
+        final byte[][] bytes = new byte[values.length][];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            length += encodedSize(bytes[i]);
+        }
+        if (length > buffer.remaining()) flush();
+        final ByteBuffer target = length > buffer.capacity() ? ByteBuffer.allocate(length) : buffer;
+        int position = target.position();
+        for (byte[] value : bytes) {
+            position = RecordArena.putVarint(target, position, value == null ? 0 : value.length + 1);
+            if (value != null) {
+                target.put(position, value);
+                position += value.length;
+            }
+        }
+        target.position(position);
+        final long address = size;
+        size += length;
+        if (target != buffer) {
+            // Too large for the write buffer, which was just flushed
+            write(target.flip(), address);
+            flushed = size;
+        }
+        return address;
+    }
+
+    @Override
+    public String read(long address, int field) {
+        return record(address)[field];
+    }
+
+    @Override
+    public boolean matches(long address, int field, byte[] value) {
+        final String stored = read(address, field);
+        return stored != null && stored.equals(new String(value, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void free(long address, int fields) {
+        for (String value : record(address)) {
+            garbage += encodedSize(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+        if (cache != null) cache.remove(address);
+    }
+
+    @Override
+    public long used() {
+        return size;
+    }
+
+    @Override
+    public long garbage() {
+        return garbage;
+    }
+
+    @Override
+    public LruCache.Stats cacheStats() {
+        return cache == null ? LruCache.Stats.NONE : cache.stats();
+    }
+
+    /**
+     * Delete the scratch file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        try {
+            file.close();
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private String[] record(long address) {
+        final long flushed = this.flushed;
+        if (address >= flushed) {
+            final String[] record = decode(buffer, (int) (address - flushed));
+            if (record == null) throw new IllegalStateException("Corrupt record!");
+            return record;
+        }
+        String[] record = cache == null ? null : cache.get(address);
+        if (record != null) return record;
+        try {
+            for (long window = WINDOW; ; window *= 2) {
+                final var bytes = ByteBuffer.allocate((int) Math.min(window, flushed - address));
+                while (bytes.hasRemaining() && io(it -> it.read(bytes, address + bytes.position())) >= 0) { }
+                record = decode(bytes, 0);
+                if (record != null) break;
+                if (bytes.capacity() == flushed - address) throw new IllegalStateException("Corrupt record!");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (cache != null) cache.put(address, record);
+        return record;
+    }
+
+    /**
+     * @return strings of the record at a position, or null if it does not end within the buffer
+     */
+    private String[] decode(ByteBuffer bytes, int position) {
+        final int limit = bytes.limit();
+        final String[] record = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            if (position + 4 > limit && !varintWithin(bytes, position, limit)) return null;
+            final int length = RecordArena.getVarint(bytes, position);
+            position += RecordArena.varintSize(length);
+            if (length == 0) continue;
+            if (length - 1 > limit - position) return null;
+            final byte[] value = new byte[length - 1];
+            bytes.get(position, value);
+            record[i] = new String(value, StandardCharsets.UTF_8);
+            position += value.length;
+        }
+        return record;
+    }
+
+    private void flush() {
+        if (buffer.position() == 0) return;
+        write(buffer.flip(), flushed);
+        flushed += buffer.limit();
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes, long position) {
+        try {
+            while (bytes.hasRemaining()) io(it -> it.write(bytes, position + bytes.position()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run positional I/O on the file, reopening it if an interrupt closed it
+     */
+    private int io(ChannelIo io) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final FileChannel channel = file;
+                try {
+                    return io.run(channel);
+                } catch (ClosedChannelException e) {
+                    // Retried with the interrupt cleared, as an interrupted thread closes the channel again at once
+                    interrupted |= Thread.interrupted();
+                    reopen(channel, e);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void reopen(FileChannel channel, ClosedChannelException e) throws IOException {
+        if (closed) throw e;
+        if (file == channel) file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private interface ChannelIo {
+        int run(FileChannel channel) throws IOException;
+    }
+
+    private static boolean varintWithin(ByteBuffer bytes, int position, int limit) {
+        while (position < limit) if (bytes.get(position++) >= 0) return true;
+        return false;
+    }
+
+    private static int encodedSize(byte[] value) {
+        return value == null ? 1 : RecordArena.varintSize(value.length + 1) + value.length;
+    }
+}
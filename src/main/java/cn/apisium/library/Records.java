@@ -0,0 +1,54 @@
+package cn.apisium.library;
+
+import java.io.Closeable;
+
+/**
+ * Append-only store of records of strings, addressed by a long
+ * <p>
+ * Each string is stored as a varint length (0 for null, length + 1 otherwise) and its UTF-8 bytes. Replaced
+ * records are left in place and only counted as garbage; the owner copies the live ones to a new store when there
+ * is too much of it. Records at an address never change, so they may be read while others are appended as long as
+ * the caller validates what it read.
+ */
+interface Records extends Closeable {
+    /**
+     * Append a record
+     * @param values strings of the record
+     * @return address of the record
+     */
+    long append(String... values);
+
+    /**
+     * Read a string of a record
+     * @param address address of the record
+     * @param field index of the string in the record
+     */
+    String read(long address, int field);
+
+    /**
+     * Compare a string of a record with encoded bytes
+     */
+    boolean matches(long address, int field, byte[] value);
+
+    /**
+     * Count a record as garbage, once it is replaced or removed
+     */
+    void free(long address, int fields);
+
+    /**
+     * @return bytes held by records, live or not
+     */
+    long used();
+
+    /**
+     * @return bytes held by replaced and removed records
+     */
+    long garbage();
+
+    /**
+     * @return counts of the cache of decoded records, {@link LruCache.Stats#NONE} if there is none
+     */
+    default LruCache.Stats cacheStats() {
+        return LruCache.Stats.NONE;
+    }
+}
@@ -0,0 +1,39 @@
+package cn.apisium.library;
+
+import java.util.Comparator;
+
+/**
+ * A loan that was returned, as kept by the loan history
+ *
+ * @param barcode item barcode
+ * @param userId user ID
+ * @param issueDay epoch day the loan was created, or {@link Loan#NO_DATE}
+ * @param dueDay epoch day the loan was last due, or {@link Loan#NO_DATE}
+ * @param returnDay epoch day the item was returned
+ * @param numRenews number of times the loan was renewed
+ */
+public record ReturnedLoan(String barcode, String userId, long issueDay, long dueDay, long returnDay, int numRenews) {
+    /**
+     * Order by day of return, then barcode
+     */
+    public static final Comparator<ReturnedLoan> BY_RETURN_DAY = Comparator.comparingLong(ReturnedLoan::returnDay)
+            .thenComparing(ReturnedLoan::barcode);
+
+    static ReturnedLoan of(Loan loan, long returnDay) {
+        return new ReturnedLoan(loan.getBarcode(), loan.getUserId(), loan.getIssueDay(), loan.getDueDay(), returnDay,
+                loan.getNumRenews());
+    }
+
+    /**
+     * @return whether the loan ran on any day from {@code fromDay} to {@code toDay} inclusive
+     */
+    boolean overlaps(long fromDay, long toDay) {
+        return (issueDay == Loan.NO_DATE || issueDay <= toDay) && returnDay >= fromDay;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, %s, issued %s, due %s, returned %s, renewed %d times", barcode, userId,
+                Loan.formatDay(issueDay), Loan.formatDay(dueDay), Loan.formatDay(returnDay), numRenews);
+    }
+}
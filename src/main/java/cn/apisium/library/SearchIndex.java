@@ -0,0 +1,183 @@
+package cn.apisium.library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntFunction;
+
+/**
+ * Inverted index from the lower-cased words of item titles and authors to catalog ordinals
+ * <p>
+ * Terms are kept sorted, so every query word is matched as a prefix through a range of the term map. Each term holds
+ * the ordinals of its items in a sorted int array, so an item costs an int per word rather than a barcode and a set
+ * entry per word.
+ */
+final class SearchIndex {
+    private static final int CHUNK = 256;
+
+    private final ConcurrentSkipListMap<String, Postings> postings = new ConcurrentSkipListMap<>();
+
+    /**
+     * Index an item
+     * @param item item
+     * @param ordinal catalog ordinal of the item
+     */
+    void add(Item item, int ordinal) {
+        for (String term : terms(item)) {
+            postings.compute(term, (key, ordinals) -> {
+                if (ordinals == null) ordinals = new Postings();
+                ordinals.add(ordinal);
+                return ordinals;
+            });
+        }
+    }
+
+    /**
+     * Remove an item, before its ordinal can be reused
+     * @param item item
+     * @param ordinal catalog ordinal of the item
+     */
+    void remove(Item item, int ordinal) {
+        for (String term : terms(item)) {
+            postings.computeIfPresent(term, (key, ordinals) -> ordinals.remove(ordinal) ? ordinals : null);
+        }
+    }
+
+    /**
+     * Find items whose title or author has a word starting with every word of the query
+     * <p>
+     * Candidates come from the most selective query word only, and are checked against the other words, which also
+     * drops an ordinal that has been reused by another item.
+     * @param query query words, in any case
+     * @param limit maximum number of results
+     * @param lookup gets an item by ordinal, null if there is none
+     * @return matching items, at most {@code limit}
+     */
+    List<Item> search(String query, int limit, IntFunction<Item> lookup) {
+        final List<String> words = tokenize(query);
+        final var results = new ArrayList<Item>(Math.min(Math.max(limit, 0), 64));
+        if (words.isEmpty() || limit <= 0) return results;
+        ConcurrentNavigableMap<String, Postings> driver = null;
+        long driverSize = Long.MAX_VALUE;
+        for (String word : words) {
+            final var range = range(word);
+            long size = 0;
+            for (var ordinals : range.values()) if ((size += ordinals.size()) >= driverSize) break;
+            if (size < driverSize) {
+                driver = range;
+                driverSize = size;
+            }
+        }
+        final var seen = new BitSet();
+        final var chunk = new int[CHUNK];
+        for (var ordinals : driver.values()) {
+            // Copied a chunk at a time from past the last ordinal read, so changes to the term skip no other item
+            for (int after = -1, count; (count = ordinals.copy(after, chunk)) > 0; after = chunk[count - 1]) {
+                for (int i = 0; i < count; i++) {
+                    final int ordinal = chunk[i];
+                    if (seen.get(ordinal)) continue;
+                    seen.set(ordinal);
+                    final Item item = lookup.apply(ordinal);
+                    if (item == null || !matches(item, words)) continue;
+                    results.add(item);
+                    if (results.size() >= limit) return results;
+                }
+            }
+        }
+        return results;
+    }
+
+    private ConcurrentNavigableMap<String, Postings> range(String prefix) {
+        return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static boolean matches(Item item, List<String> words) {
+        final Set<String> terms = terms(item);
+        outer:
+        for (String word : words) {
+            for (String term : terms) if (term.startsWith(word)) continue outer;
+            return false;
+        }
+        return true;
+    }
+
+    private static Set<String> terms(Item item) {
+        final var terms = new HashSet<String>();
+        terms.addAll(tokenize(item.getTitle()));
+        terms.addAll(tokenize(item.getAuthor()));
+        return terms;
+    }
+
+    /**
+     * Split text into lower-cased runs of letters and digits
+     */
+    static List<String> tokenize(String text) {
+        final var words = new ArrayList<String>();
+        if (text == null) return words;
+        final String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            final boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) start = i;
+            else if (!wordChar && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Sorted ordinals of the items with a term
+     */
+    private static final class Postings {
+        private int[] ordinals = new int[2];
+        private int size;
+
+        synchronized void add(int ordinal) {
+            int index = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (index >= 0) return;
+            index = -index - 1;
+            if (size == ordinals.length) ordinals = Arrays.copyOf(ordinals, size + (size >> 1) + 1);
+            System.arraycopy(ordinals, index, ordinals, index + 1, size - index);
+            ordinals[index] = ordinal;
+            size++;
+        }
+
+        /**
+         * @return whether any ordinals are left
+         */
+        synchronized boolean remove(int ordinal) {
+            final int index = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (index >= 0) {
+                System.arraycopy(ordinals, index + 1, ordinals, index, --size - index);
+                if (size < ordinals.length >> 2) ordinals = Arrays.copyOf(ordinals, Math.max(size << 1, 2));
+            }
+            return size > 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Copy the ordinals greater than one
+         * @param after ordinal to start after
+         * @param into array to fill
+         * @return number of ordinals copied
+         */
+        synchronized int copy(int after, int[] into) {
+            int index = Arrays.binarySearch(ordinals, 0, size, after);
+            index = index < 0 ? -index - 1 : index + 1;
+            final int count = Math.min(size - index, into.length);
+            System.arraycopy(ordinals, index, into, 0, count);
+            return count;
+        }
+    }
+}
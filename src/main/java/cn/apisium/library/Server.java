@@ -0,0 +1,270 @@
+package cn.apisium.library;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JSON HTTP API over a {@link Library}
+ * <p>
+ * Requests run on a virtual thread each when the JVM has them, and on a cached thread pool otherwise.
+ * Bodies and responses use the same field names as the CSV files. Routes:
+ * <pre>
+ * POST   /loans                {"Barcode", "User_id"}  create a loan
+ * POST   /loans/renew          {"Barcode", "User_id"}  renew a loan
+ * POST   /loans/return         {"Barcode", "User_id"}  return an item
+ * GET    /loans?cursor&amp;limit                         list loans by due date
+ * GET    /items/{barcode}                            get an item
+ * GET    /items?cursor&amp;limit                         list items
+ * GET    /items/search?q&amp;limit                       search items
+ * GET    /items/available?type&amp;cursor&amp;limit         list items not on loan
+ * POST   /items                {item}                add or replace an item
+ * DELETE /items/{barcode}                            remove an item
+ * GET    /users/{userId}                             get a user
+ * GET    /users/{userId}/loans                       get the loans of a user
+ * GET    /users?cursor&amp;limit                         list users
+ * POST   /users                {user}                add or replace a user
+ * DELETE /users/{userId}                             remove a user
+ * </pre>
+ * Failed operations answer 404 for unknown items, users, loans and routes, and 400 otherwise, with
+ * {"error": message}.
+ */
+public final class Server implements Closeable {
+    private static final int DEFAULT_LIMIT = 50, MAX_LIMIT = 1000;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static {
+        // The server writes headers and body separately, which Nagle's algorithm would hold back ~40 ms per response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Library management;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Bind a server, {@link #start() started} separately
+     * @param management library to serve
+     * @param address address to listen on, port 0 for any free port
+     * @throws IOException if the address cannot be bound
+     */
+    public Server(Library management, InetSocketAddress address) throws IOException {
+        this.management = management;
+        server = HttpServer.create(address, 0);
+        executor = newExecutor();
+        server.setExecutor(executor);
+        server.createContext("/loans", it -> handle(it, this::loans));
+        server.createContext("/items", it -> handle(it, this::items));
+        server.createContext("/users", it -> handle(it, this::users));
+        // Otherwise the server rejects unknown paths by dropping the connection, which clients may be reusing
+        server.createContext("/", it -> handle(it, (exchange, path) -> null));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Get the address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop accepting requests, waiting a second for the ones being handled
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    private Object loans(HttpExchange exchange, String[] path) throws IOException {
+        final String method = exchange.getRequestMethod();
+        if (path.length == 0 && method.equals("GET")) {
+            final var query = query(exchange);
+            return management.listLoans(query.get("cursor"), limit(query), null);
+        }
+        if (!method.equals("POST") || path.length > 1) return null;
+        final LoanRequest request = body(exchange, LoanRequest.class);
+        if (request.barcode() == null || request.userId() == null) {
+            throw new IllegalArgumentException("Missing barcode or user ID!");
+        }
+        if (path.length == 0) management.createLoan(request.barcode(), request.userId());
+        else if (path[0].equals("renew")) management.renewLoan(request.barcode(), request.userId());
+        else if (path[0].equals("return")) management.returnItem(request.barcode(), request.userId());
+        else return null;
+        return Map.of("success", true);
+    }
+
+    private Object items(HttpExchange exchange, String[] path) throws IOException {
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> {
+                final var query = query(exchange);
+                if (path.length == 0) return management.listItems(query.get("cursor"), limit(query), null);
+                if (path.length > 1) return null;
+                if (path[0].equals("search")) return management.search(query.getOrDefault("q", ""), limit(query));
+                if (path[0].equals("available")) {
+                    return management.listAvailableItems(query.get("type"), query.get("cursor"), limit(query));
+                }
+                final Item item = management.getItem(path[0]);
+                if (item == null) throw new IllegalArgumentException("No such item!");
+                return item;
+            }
+            case "POST" -> {
+                if (path.length != 0) return null;
+                final Item item = body(exchange, Item.class);
+                if (item.getBarcode() == null) throw new IllegalArgumentException("Missing barcode!");
+                management.addItem(item);
+                return item;
+            }
+            case "DELETE" -> {
+                if (path.length != 1) return null;
+                management.removeItem(path[0]);
+                return Map.of("success", true);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private Object users(HttpExchange exchange, String[] path) throws IOException {
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> {
+                if (path.length == 0) {
+                    final var query = query(exchange);
+                    return management.listUsers(query.get("cursor"), limit(query), null);
+                }
+                final User user = management.getUser(path[0]);
+                if (user == null) throw new IllegalArgumentException("No such user!");
+                if (path.length == 1) return user;
+                return path.length == 2 && path[1].equals("loans") ? management.getLoansForUser(path[0]) : null;
+            }
+            case "POST" -> {
+                if (path.length != 0) return null;
+                final User user = body(exchange, User.class);
+                if (user.getUserId() == null) throw new IllegalArgumentException("Missing user ID!");
+                management.addUser(user);
+                return user;
+            }
+            case "DELETE" -> {
+                if (path.length != 1) return null;
+                management.removeUser(path[0]);
+                return Map.of("success", true);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * @param path decoded path segments after the context
+         * @return response body, or null if there is no such route
+         */
+        Object handle(HttpExchange exchange, String[] path) throws IOException;
+    }
+
+    private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try (exchange) {
+            int status = 200;
+            Object response;
+            try {
+                response = handler.handle(exchange, segments(exchange));
+                if (response == null) {
+                    status = 404;
+                    response = Map.of("error", "No such route!");
+                }
+            } catch (IllegalArgumentException e) {
+                final String message = String.valueOf(e.getMessage());
+                status = message.startsWith("No such") ? 404 : 400;
+                response = Map.of("error", message);
+            } catch (IOException e) {
+                status = 400;
+                response = Map.of("error", "Malformed request: " + e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                status = 500;
+                response = Map.of("error", String.valueOf(e));
+            }
+            final byte[] bytes = mapper.writeValueAsBytes(response);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String[] segments(HttpExchange exchange) {
+        final String context = exchange.getHttpContext().getPath();
+        final String rest = exchange.getRequestURI().getRawPath().substring(context.length());
+        return Arrays.stream(rest.split("/")).filter(it -> !it.isEmpty())
+                .map(it -> URLDecoder.decode(it, StandardCharsets.UTF_8)).toArray(String[]::new);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        final var query = new HashMap<String, String>();
+        final String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return query;
+        for (String pair : raw.split("&")) {
+            final int separator = pair.indexOf('=');
+            if (separator < 0) query.put(URLDecoder.decode(pair, StandardCharsets.UTF_8), "");
+            else query.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static int limit(Map<String, String> query) {
+        final String limit = query.get("limit");
+        if (limit == null) return DEFAULT_LIMIT;
+        try {
+            return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limit)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit!");
+        }
+    }
+
+    private static <T> T body(HttpExchange exchange, Class<T> type) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return mapper.readValue(in, type);
+        }
+    }
+
+    /**
+     * A virtual thread per request when the JVM supports it, a cached pool of platform threads otherwise
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            final var count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "library-http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
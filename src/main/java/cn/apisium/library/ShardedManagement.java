@@ -0,0 +1,623 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Library whose items and loans are partitioned by barcode hash across independent {@link Management} shards
+ * <p>
+ * Each shard lives in its own {@code shard-N} subdirectory, with its own files and journal, and the shards load
+ * and save in parallel. Users are kept once, by the first shard, and shared by all of them together with the
+ * per-user loan index, so the loan limit and removing users hold across shards. The number of shards is recorded
+ * in the {@value #FILE} file and cannot change once the directory is created.
+ * <p>
+ * Operations on one item go to its shard only. Batches are prepared on every shard they touch before being
+ * committed, so atomic batches stay atomic across shards. Listings of items page through the shards in turn,
+ * with cursors of the form {@code "shard:ordinal"}, and listings of loans merge the shards by due date.
+ */
+public final class ShardedManagement implements Library {
+    static final String FILE = "SHARDS";
+
+    private final Management[] shards;
+    private final UserRepository users = UserRepository.create();
+    private final Metrics metrics = new Metrics(gauges());
+    private final Analytics analytics = new Analytics();
+    private final ChangeStream changes = Management.newChangeStream();
+    private final ExecutorService workers;
+    private final LoadReport loadReport;
+    private volatile List<Map<String, LongSupplier>> shardGauges = List.of();
+
+    /**
+     * Read the shards from their directories and replay their journals
+     * @param directory data directory, holding one subdirectory per shard
+     * @param shards number of shards, or 0 to use the number the directory was created with
+     * @param format format to read, or null to read the snapshot if there is one and the CSV files otherwise
+     * @throws IOException if an I/O error occurs, or the directory has another number of shards
+     */
+    public ShardedManagement(Path directory, int shards, Management.Format format) throws IOException {
+        final long start = System.nanoTime();
+        final Path file = directory.resolve(FILE);
+        if (Files.exists(file)) {
+            final int recorded = Integer.parseInt(Files.readString(file).trim());
+            if (shards > 0 && shards != recorded) {
+                throw new IOException(directory.toAbsolutePath() + " has " + recorded + " shards, not " + shards);
+            }
+            shards = recorded;
+        } else {
+            if (shards <= 0) throw new IllegalArgumentException("Number of shards must be positive!");
+            Files.createDirectories(directory);
+            Files.writeString(file, Integer.toString(shards));
+        }
+        final var count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.min(shards, Runtime.getRuntime().availableProcessors()), r -> {
+            var thread = new Thread(r, "library-shard-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.shards = new Management[shards];
+        final Map<String, Set<String>> loansByUser = new ConcurrentHashMap<>();
+        final var loads = new ArrayList<Future<Management>>(shards);
+        for (int i = 0; i < shards; i++) {
+            final Path shardDirectory = directory.resolve("shard-" + i);
+            final var shard = new Management.Shard(users, loansByUser, metrics, analytics, changes, i == 0);
+            loads.add(workers.submit(() -> {
+                Files.createDirectories(shardDirectory);
+                return new Management(shardDirectory, format, shard);
+            }));
+        }
+        try {
+            for (int i = 0; i < shards; i++) this.shards[i] = await(loads.get(i));
+        } catch (IOException | RuntimeException e) {
+            for (Future<Management> load : loads) {
+                try {
+                    load.get().close();
+                } catch (Exception ignored) {
+                }
+            }
+            workers.shutdown();
+            changes.close();
+            throw e;
+        }
+        final var files = new ArrayList<LoadReport.FileLoad>();
+        final var gauges = new ArrayList<Map<String, LongSupplier>>(shards);
+        for (int i = 0; i < shards; i++) {
+            for (var load : this.shards[i].getLoadReport().files()) {
+                files.add(new LoadReport.FileLoad("shard-" + i + "/" + load.name(), load.rows(), load.nanos()));
+            }
+            gauges.add(this.shards[i].gauges());
+        }
+        shardGauges = gauges;
+        loadReport = new LoadReport(List.copyOf(files), System.nanoTime() - start);
+    }
+
+    /**
+     * Get the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public void createLoan(String barcode, String userId) throws IllegalArgumentException {
+        shardOf(barcode).createLoan(barcode, userId);
+    }
+
+    @Override
+    public void renewLoan(String barcode, String userId) throws IllegalArgumentException {
+        shardOf(barcode).renewLoan(barcode, userId);
+    }
+
+    @Override
+    public void returnItem(String barcode, String userId) throws IllegalArgumentException {
+        shardOf(barcode).returnItem(barcode, userId);
+    }
+
+    @Override
+    public BatchResult createLoans(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Management.Action.LEND);
+    }
+
+    @Override
+    public BatchResult renewLoans(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Management.Action.RENEW);
+    }
+
+    @Override
+    public BatchResult returnItems(List<LoanRequest> requests, boolean atomic) {
+        return batch(requests, atomic, Management.Action.RETURN);
+    }
+
+    /**
+     * Save the shards in parallel
+     */
+    @Override
+    public void save() {
+        try {
+            forEachShard(shard -> {
+                shard.save();
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void exportCsv() throws IOException {
+        forEachShard(shard -> {
+            shard.exportCsv();
+            return null;
+        });
+    }
+
+    /**
+     * Write the items, loans and loan history of all shards to one file, shard after shard in each table
+     */
+    @Override
+    public void exportColumns(Path file) throws IOException {
+        try (var export = Management.newColumnarExport(file)) {
+            export.items(concat(Management::items));
+            export.loans(concat(Management::loanRecords));
+            export.history(concat(Management::history));
+            export.commit();
+        }
+    }
+
+    @Override
+    public Management.Format getFormat() {
+        return shards[0].getFormat();
+    }
+
+    @Override
+    public void setFormat(Management.Format format) {
+        for (Management shard : shards) shard.setFormat(format);
+    }
+
+    @Override
+    public Duration getSaveInterval() {
+        return shards[0].getSaveInterval();
+    }
+
+    /**
+     * Save every shard in the background at a fixed interval, each on its own thread
+     * @param interval time from the end of one save to the start of the next, zero or null to stop
+     */
+    @Override
+    public void setSaveInterval(Duration interval) {
+        for (Management shard : shards) shard.setSaveInterval(interval);
+    }
+
+    /**
+     * Close every shard, then stop the workers and complete the subscribers of the changes
+     * @throws IOException if a shard cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (Management shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        workers.shutdown();
+        users.close();
+        changes.close();
+        if (error != null) throw error;
+    }
+
+    /**
+     * Get how long loading the shards took
+     * @return load report, with the files of every shard prefixed by its directory
+     */
+    @Override
+    public LoadReport getLoadReport() {
+        return loadReport;
+    }
+
+    /**
+     * Get the operation counters and latencies of all shards together
+     */
+    @Override
+    public ChangeStream getChanges() {
+        return changes;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the circulation aggregates of all shards together
+     */
+    @Override
+    public Analytics getAnalytics() {
+        return analytics;
+    }
+
+    @Override
+    public User getUser(String userId) {
+        return shards[0].getUser(userId);
+    }
+
+    @Override
+    public Item getItem(String barcode) {
+        return shardOf(barcode).getItem(barcode);
+    }
+
+    @Override
+    public List<Loan> getLoansForUser(String userId) {
+        final var loans = new ArrayList<Loan>();
+        for (Management shard : shards) loans.addAll(shard.getLoansForUser(userId));
+        return loans;
+    }
+
+    @Override
+    public int getLoanCount(String userId) {
+        return shards[0].getLoanCount(userId);
+    }
+
+    @Override
+    public int getLoanLimit() {
+        return shards[0].getLoanLimit();
+    }
+
+    @Override
+    public void setLoanLimit(int loanLimit) {
+        for (Management shard : shards) shard.setLoanLimit(loanLimit);
+    }
+
+    @Override
+    public List<Item> search(String query, int limit) {
+        final var results = new ArrayList<Item>();
+        for (int i = 0; i < shards.length && results.size() < limit; i++) {
+            results.addAll(shards[i].search(query, limit - results.size()));
+        }
+        return results;
+    }
+
+    @Override
+    public List<Loan> getLoans() {
+        final var loans = new ArrayList<Loan>();
+        for (Management shard : shards) loans.addAll(shard.getLoans());
+        return List.copyOf(loans);
+    }
+
+    @Override
+    public Page<Item> listItems(String cursor, int limit, Predicate<? super Item> filter) {
+        return pageShards(cursor, limit, (shard, shardCursor, rest) -> shard.listItems(shardCursor, rest, filter));
+    }
+
+    @Override
+    public Page<Item> listAvailableItems(String type, String cursor, int limit) {
+        return pageShards(cursor, limit,
+                (shard, shardCursor, rest) -> shard.listAvailableItems(type, shardCursor, rest));
+    }
+
+    @Override
+    public boolean isAvailable(String barcode) {
+        return shardOf(barcode).isAvailable(barcode);
+    }
+
+    @Override
+    public int countAvailable(String type) {
+        int count = 0;
+        for (Management shard : shards) count += shard.countAvailable(type);
+        return count;
+    }
+
+    @Override
+    public int countOnLoan(String type) {
+        int count = 0;
+        for (Management shard : shards) count += shard.countOnLoan(type);
+        return count;
+    }
+
+    @Override
+    public Page<User> listUsers(String cursor, int limit, Predicate<? super User> filter) {
+        return shards[0].listUsers(cursor, limit, filter);
+    }
+
+    /**
+     * List loans by due date, then barcode, merging a page of every shard
+     */
+    @Override
+    public Page<Loan> listLoans(String cursor, int limit, Predicate<? super Loan> filter) {
+        final var rows = new ArrayList<Loan>();
+        boolean more = false;
+        for (Management shard : shards) {
+            final Page<Loan> page = shard.listLoans(cursor, limit, filter);
+            rows.addAll(page.rows());
+            more |= page.hasNext();
+        }
+        rows.sort(Loan.BY_DUE_DATE);
+        if (rows.size() > limit) {
+            rows.subList(limit, rows.size()).clear();
+            more = true;
+        }
+        return new Page<>(rows, more && !rows.isEmpty() ? Management.loanCursor(rows.get(rows.size() - 1)) : null);
+    }
+
+    @Override
+    public List<Loan> getOverdueLoans(LocalDate asOf) {
+        return merge(Arrays.stream(shards).map(it -> it.getOverdueLoans(asOf)));
+    }
+
+    @Override
+    public List<Loan> getLoansDueWithin(LocalDate from, int days) {
+        return merge(Arrays.stream(shards).map(it -> it.getLoansDueWithin(from, days)));
+    }
+
+    @Override
+    public List<ReturnedLoan> getLoanHistory(String barcode, String userId, LocalDate from, LocalDate to) {
+        if (barcode != null) return shardOf(barcode).getLoanHistory(barcode, userId, from, to);
+        return Arrays.stream(shards).flatMap(it -> it.getLoanHistory(null, userId, from, to).stream())
+                .sorted(ReturnedLoan.BY_RETURN_DAY).toList();
+    }
+
+    @Override
+    public FinesReport assessFines(LocalDate asOf, int parallelism) {
+        return FinesJob.run(Arrays.stream(shards).map(Management::finesPart).toList(), asOf, parallelism);
+    }
+
+    @Override
+    public ImportReport importItems(Path file, Path rejects, int parallelism) throws IOException {
+        return Management.newItemImport(parallelism).run(file, rejects, this::addNewItems);
+    }
+
+    @Override
+    public void addUser(User user) {
+        shards[0].addUser(user);
+    }
+
+    @Override
+    public void removeUser(String userId, boolean returnLoans) throws IllegalArgumentException {
+        if (returnLoans && getUser(userId) != null) {
+            for (Loan loan : getLoansForUser(userId)) returnItem(loan.getBarcode(), userId);
+        }
+        shards[0].removeUser(userId, false);
+    }
+
+    @Override
+    public void addItem(Item item) {
+        shardOf(item.getBarcode()).addItem(item);
+    }
+
+    @Override
+    public void removeItem(String barcode, boolean returnLoan) throws IllegalArgumentException {
+        shardOf(barcode).removeItem(barcode, returnLoan);
+    }
+
+    @Override
+    public void viewItems() {
+        final Iterable<Item> items = () -> Arrays.stream(shards)
+                .flatMap(it -> StreamSupport.stream(it.items().spliterator(), false)).iterator();
+        Management.view("Items:", items);
+    }
+
+    @Override
+    public void viewLoans() {
+        Management.view("Loans:", merge(Arrays.stream(shards).map(Management::getLoans)));
+    }
+
+    @Override
+    public void viewUsers() {
+        shards[0].viewUsers();
+    }
+
+    /**
+     * Find the shard of a barcode, from the high bits of its scrambled hash, as the shards use the low bits to
+     * pick their lock stripes
+     */
+    private Management shardOf(String barcode) {
+        final long hash = (barcode.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL;
+        return shards[(int) (hash * shards.length >>> 32)];
+    }
+
+    /**
+     * Add a batch of new items, each part on its shard
+     * @return indexes of the items not added, as their barcode is taken
+     */
+    private BitSet addNewItems(List<Item> batch) {
+        final var parts = new ArrayList<List<Integer>>(shards.length);
+        for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+        for (int i = 0; i < batch.size(); i++) parts.get(indexOf(shardOf(batch.get(i).getBarcode()))).add(i);
+        final var taken = new BitSet();
+        for (int shard = 0; shard < shards.length; shard++) {
+            final List<Integer> part = parts.get(shard);
+            if (part.isEmpty()) continue;
+            final BitSet partTaken = shards[shard].addNewItems(part.stream().map(batch::get).toList());
+            for (int i = partTaken.nextSetBit(0); i >= 0; i = partTaken.nextSetBit(i + 1)) taken.set(part.get(i));
+        }
+        return taken;
+    }
+
+    /**
+     * Prepare the batch on every shard it touches, in shard order, then commit or roll back all of them
+     */
+    private BatchResult batch(List<LoanRequest> requests, boolean atomic, Management.Action action) {
+        final var parts = new ArrayList<List<Integer>>(shards.length);
+        for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+        for (int i = 0; i < requests.size(); i++) {
+            final String barcode = requests.get(i).barcode();
+            parts.get(barcode == null ? 0 : indexOf(shardOf(barcode))).add(i);
+        }
+        final var prepared = new ArrayList<Management.Batch>();
+        try {
+            final var failures = new ArrayList<BatchResult.Failure>();
+            for (int i = 0; i < shards.length; i++) {
+                final List<Integer> indexes = parts.get(i);
+                if (indexes.isEmpty()) continue;
+                final var part = new ArrayList<LoanRequest>(indexes.size());
+                for (int index : indexes) part.add(requests.get(index));
+                final Management.Batch batch = shards[i].prepare(part, atomic, action);
+                prepared.add(batch);
+                for (var failure : batch.failures()) {
+                    failures.add(new BatchResult.Failure(indexes.get(failure.index()), failure.request(),
+                            failure.message()));
+                }
+            }
+            failures.sort((a, b) -> Integer.compare(a.index(), b.index()));
+            if (atomic && !failures.isEmpty()) {
+                for (Management.Batch batch : prepared) batch.rollback();
+                return new BatchResult(0, failures);
+            }
+            int applied = 0;
+            for (Management.Batch batch : prepared) applied += batch.commit();
+            return new BatchResult(applied, failures);
+        } finally {
+            for (int i = prepared.size() - 1; i >= 0; i--) prepared.get(i).close();
+        }
+    }
+
+    private int indexOf(Management shard) {
+        for (int i = 0; i < shards.length; i++) if (shards[i] == shard) return i;
+        throw new IllegalStateException();
+    }
+
+    @FunctionalInterface
+    private interface ShardPage<T> {
+        Page<T> list(Management shard, String cursor, int limit);
+    }
+
+    /**
+     * Page through the shards in turn, continuing on the next shard when one runs out
+     */
+    private <T> Page<T> pageShards(String cursor, int limit, ShardPage<T> pages) {
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive!");
+        int shard = 0;
+        String shardCursor = null;
+        if (cursor != null) {
+            final int separator = cursor.indexOf(':');
+            try {
+                shard = separator < 0 ? -1 : Integer.parseInt(cursor.substring(0, separator));
+            } catch (NumberFormatException e) {
+                shard = -1;
+            }
+            if (shard < 0 || shard >= shards.length) throw new IllegalArgumentException("Invalid cursor!");
+            shardCursor = cursor.substring(separator + 1);
+        }
+        final var rows = new ArrayList<T>(Math.min(limit, 1024));
+        for (; shard < shards.length; shard++, shardCursor = null) {
+            final Page<T> page = pages.list(shards[shard], shardCursor, limit - rows.size());
+            rows.addAll(page.rows());
+            if (page.hasNext()) return new Page<>(rows, shard + ":" + page.nextCursor());
+            if (rows.size() >= limit) {
+                return new Page<>(rows, shard + 1 < shards.length ? (shard + 1) + ":0" : null);
+            }
+        }
+        return new Page<>(rows, null);
+    }
+
+    /**
+     * Iterate over a collection of every shard in turn, reaching each shard only once the previous one is done
+     */
+    private <T> Iterable<T> concat(Function<Management, Iterable<T>> part) {
+        return () -> new Iterator<>() {
+            private int shard;
+            private Iterator<T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard < shards.length) current = part.apply(shards[shard++]).iterator();
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    private static List<Loan> merge(Stream<List<Loan>> loans) {
+        return loans.flatMap(List::stream).sorted(Loan.BY_DUE_DATE).toList();
+    }
+
+    @FunctionalInterface
+    private interface ShardTask {
+        Object run(Management shard) throws IOException;
+    }
+
+    /**
+     * Run a task on every shard in parallel, waiting for all of them
+     * @throws IOException the first error of the shards, with the others suppressed
+     */
+    private void forEachShard(ShardTask task) throws IOException {
+        final var runs = new ArrayList<Future<Object>>(shards.length);
+        for (Management shard : shards) runs.add(workers.submit((Callable<Object>) () -> task.run(shard)));
+        IOException error = null;
+        for (Future<Object> run : runs) {
+            try {
+                await(run);
+            } catch (IOException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shard");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Gauges of all shards, summed, read once the shards are loaded
+     */
+    private Map<String, LongSupplier> gauges() {
+        final var gauges = new LinkedHashMap<String, LongSupplier>();
+        gauges.put("users", () -> users.size());
+        for (String name : List.of("items", "loans", "itemsAvailable", "historyLoans", "historySegments",
+                "journalRecords", "itemCacheHits", "itemCacheMisses", "itemCacheEvictions")) {
+            gauges.put(name, () -> shardGauges.stream().mapToLong(it -> it.get(name).getAsLong()).sum());
+        }
+        gauges.put("saveIntervalMillis", () -> shards[0].getSaveInterval().toMillis());
+        gauges.put("changesPublished", () -> changes.getPublished());
+        gauges.put("changesDropped", () -> changes.getDropped());
+        gauges.put("userCacheHits", () -> users.cacheStats().hits());
+        gauges.put("userCacheMisses", () -> users.cacheStats().misses());
+        gauges.put("userCacheEvictions", () -> users.cacheStats().evictions());
+        gauges.put("shards", () -> shards.length);
+        return gauges;
+    }
+}
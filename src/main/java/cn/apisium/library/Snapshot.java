@@ -0,0 +1,225 @@
+package cn.apisium.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of users, items and loans
+ * <p>
+ * Layout: a fixed header (magic, version, the three record counts, body length and CRC32 of the body) followed by
+ * users, items and loans. Strings are stored as a varint length (0 for null, length + 1 otherwise) and UTF-8
+ * bytes; loan dates are epoch days. The file is read back through a single memory mapping, so it may hold at most
+ * 2 GiB, and only used when its checksum matches.
+ */
+final class Snapshot {
+    static final String FILE = "SNAPSHOT.bin";
+    private static final int MAGIC = 0x4C4D5353, VERSION = 2, HEADER_SIZE = 48;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private final MappedByteBuffer buffer;
+    private final long users, items, loans;
+
+    private Snapshot(MappedByteBuffer buffer, long users, long items, long loans) {
+        this.buffer = buffer;
+        this.users = users;
+        this.items = items;
+        this.loans = loans;
+    }
+
+    long users() {
+        return users;
+    }
+
+    long items() {
+        return items;
+    }
+
+    long loans() {
+        return loans;
+    }
+
+    /**
+     * Map and verify a snapshot
+     * @param file snapshot file
+     * @return the snapshot, or null if there is none
+     * @throws IOException if the snapshot cannot be read or fails verification
+     */
+    static Snapshot open(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        final MappedByteBuffer buffer;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) throw new IOException("Truncated snapshot: " + file);
+            if (channel.size() > MAX_SIZE) throw new IOException("Snapshot larger than 2 GiB: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC) throw new IOException("Not a snapshot: " + file);
+        if (buffer.getInt() != VERSION) throw new IOException("Unsupported snapshot version: " + file);
+        final long users = buffer.getLong(), items = buffer.getLong(), loans = buffer.getLong(),
+                length = buffer.getLong(), checksum = buffer.getLong();
+        if (length != buffer.remaining()) throw new IOException("Truncated snapshot: " + file);
+        final var crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if (crc.getValue() != checksum) throw new IOException("Snapshot checksum mismatch: " + file);
+        return new Snapshot(buffer, users, items, loans);
+    }
+
+    /**
+     * Decode all records
+     */
+    void read(Consumer<User> userConsumer, Consumer<Item> itemConsumer, Consumer<Loan> loanConsumer) {
+        final ByteBuffer in = buffer.duplicate().position(HEADER_SIZE);
+        byte[] scratch = new byte[256];
+        for (long i = 0; i < users; i++) {
+            final User user = new User();
+            user.setUserId(readString(in, scratch));
+            user.setFirstName(readString(in, scratch));
+            user.setLastName(readString(in, scratch));
+            user.setEmail(readString(in, scratch));
+            userConsumer.accept(user);
+        }
+        for (long i = 0; i < items; i++) {
+            itemConsumer.accept(Item.of(readString(in, scratch), readString(in, scratch), readString(in, scratch),
+                    readString(in, scratch), readString(in, scratch), readString(in, scratch)));
+        }
+        for (long i = 0; i < loans; i++) {
+            final Loan loan = new Loan();
+            loan.setBarcode(readString(in, scratch));
+            loan.setUserId(readString(in, scratch));
+            loan.setIssueDay(in.getLong());
+            loan.setDueDay(in.getLong());
+            loan.setNumRenews(in.getInt());
+            loanConsumer.accept(loan);
+        }
+    }
+
+    /**
+     * Write a snapshot to a temporary file, sync it and move it into place
+     * @param file snapshot file
+     * @throws IOException if an I/O error occurs, or the snapshot would be too large to be mapped back, in which
+     *                     case the previous snapshot is left in place
+     */
+    static void write(Path file, Iterable<User> users, Iterable<Item> items, Iterable<Loan> loans)
+            throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            writeTemp(temp, users, items, loans);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTemp(Path temp, Iterable<User> users, Iterable<Item> items, Iterable<Loan> loans)
+            throws IOException {
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final var out = new Output(channel);
+            long userCount = 0, itemCount = 0, loanCount = 0;
+            for (User user : users) {
+                out.string(user.getUserId()).string(user.getFirstName()).string(user.getLastName())
+                        .string(user.getEmail());
+                userCount++;
+            }
+            for (Item item : items) {
+                out.string(item.getBarcode()).string(item.getAuthor()).string(item.getTitle())
+                        .string(item.getType()).string(item.getYear()).string(item.getIsbn());
+                itemCount++;
+            }
+            for (Loan loan : loans) {
+                out.string(loan.getBarcode()).string(loan.getUserId()).day(loan.getIssueDay())
+                        .day(loan.getDueDay()).integer(loan.getNumRenews());
+                loanCount++;
+            }
+            final long length = out.finish();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION)
+                    .putLong(userCount).putLong(itemCount).putLong(loanCount).putLong(length)
+                    .putLong(out.crc.getValue()).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+        }
+    }
+
+    private static String readString(ByteBuffer in, byte[] scratch) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = in.get();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        if (length-- == 0) return null;
+        final byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffered body writer that keeps the checksum
+     */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private final CRC32 crc = new CRC32();
+        private long length;
+
+        Output(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        Output string(String value) throws IOException {
+            if (buffer.remaining() < 5) drain();
+            if (value == null) {
+                buffer.put((byte) 0);
+                return this;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = bytes.length + 1;
+            for (; (length & ~0x7F) != 0; length >>>= 7) buffer.put((byte) ((length & 0x7F) | 0x80));
+            buffer.put((byte) length);
+            for (int offset = 0; offset < bytes.length; ) {
+                if (!buffer.hasRemaining()) drain();
+                final int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+            return this;
+        }
+
+        Output integer(int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) drain();
+            buffer.putInt(value);
+            return this;
+        }
+
+        Output day(long value) throws IOException {
+            if (buffer.remaining() < Long.BYTES) drain();
+            buffer.putLong(value);
+            return this;
+        }
+
+        long finish() throws IOException {
+            drain();
+            return length;
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            length += buffer.remaining();
+            // open() maps the whole file, so it must fit in one mapping
+            if (HEADER_SIZE + length > MAX_SIZE) throw new IOException("Snapshot larger than 2 GiB");
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cn.apisium.library;
+
+import java.io.Closeable;
+import java.util.function.Predicate;
+
+/**
+ * Store of the users of a library, keyed by user ID
+ * <p>
+ * Users are kept in a sorted map by default ({@link InMemoryUserRepository}), or in a scratch file behind a cache
+ * of the recently used ones ({@link FileUserRepository}), chosen with {@code -Dlibrary.users.store=memory|file}.
+ * All methods are safe to call from multiple threads.
+ */
+interface UserRepository extends Iterable<User>, Closeable {
+    /**
+     * Create the store chosen by {@code library.users.store}
+     */
+    static UserRepository create() {
+        return switch (System.getProperty("library.users.store", "memory")) {
+            case "memory" -> new InMemoryUserRepository();
+            case "file" -> new FileUserRepository(Integer.getInteger("library.users.cacheSize", 10_000));
+            default -> throw new IllegalArgumentException("Unknown user store! (memory, file)");
+        };
+    }
+
+    /**
+     * @return user, or null if there is none
+     */
+    User get(String userId);
+
+    /**
+     * Add or replace a user
+     * @return the user replaced, or null
+     */
+    User put(User user);
+
+    /**
+     * @return the user removed, or null if there was none
+     */
+    User remove(String userId);
+
+    default boolean contains(String userId) {
+        return get(userId) != null;
+    }
+
+    int size();
+
+    /**
+     * List users in the order of the store
+     * @param cursor cursor of the page, or null for the first one
+     * @param limit maximum number of rows, at least 1
+     * @param filter rows to include, or null for all
+     * @return page of users
+     */
+    Page<User> page(String cursor, int limit, Predicate<? super User> filter);
+
+    /**
+     * @return counts of the cache in front of the stored users, {@link LruCache.Stats#NONE} if there is none
+     */
+    default LruCache.Stats cacheStats() {
+        return LruCache.Stats.NONE;
+    }
+
+    @Override
+    default void close() { }
+}
@@ -0,0 +1,109 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Heap used by the item catalog compared with a map of item objects, and by a whole {@link Management} of the
+ * catalog with its search index, run with {@code gradlew benchmark}
+ */
+@Tag("benchmark")
+public class BenchmarkCatalog {
+    private static final int ITEMS = Integer.getInteger("benchmark.catalogItems", 5_000_000);
+
+    @Test
+    public void benchmarkCatalogHeap() {
+        var map = new HashMap<String, Item>(ITEMS * 4 / 3 + 1);
+        long mapBytes = retained(() -> fill(it -> map.put(it.getBarcode(), it)));
+        Assertions.assertEquals(ITEMS, map.size());
+        map.clear();
+
+        var catalog = new ItemCatalog(ITEMS);
+        long catalogBytes = retained(() -> fill(catalog::put));
+        Assertions.assertEquals(ITEMS, catalog.size());
+
+        System.out.printf("%d items: HashMap<String, Item> %d MiB, ItemCatalog %d MiB (%.0f%%)%n", ITEMS,
+                mapBytes >> 20, catalogBytes >> 20, catalogBytes * 100.0 / mapBytes);
+    }
+
+    @Test
+    public void benchmarkCatalogStorage() {
+        for (var storage : ItemCatalog.Storage.values()) {
+            var holder = new ItemCatalog[1];
+            long heapBytes = retained(() -> fill((holder[0] = new ItemCatalog(ITEMS, storage))::put));
+            var catalog = holder[0];
+            try {
+                long gcMillis = -gcMillis();
+                for (int i = 0; i < 5; i++) System.gc();
+                gcMillis += gcMillis();
+                var random = new Random();
+                long start = System.nanoTime();
+                for (int i = 0; i < 1_000_000; i++) {
+                    Assertions.assertNotNull(catalog.get(TestData.barcode(random.nextInt(ITEMS))));
+                }
+                System.out.printf("%d items, %s: heap %d MiB, off heap %d MiB, 5 full GCs %d ms, get %d ns%n", ITEMS,
+                        storage, heapBytes >> 20, catalog.offHeapBytes() >> 20, gcMillis,
+                        (System.nanoTime() - start) / 1_000_000);
+            } finally {
+                catalog.close();
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkManagementHeap() throws IOException {
+        var storage = ItemCatalog.Storage.valueOf(
+                System.getProperty("library.items.storage", "heap").toUpperCase(Locale.ROOT));
+        var catalog = new ItemCatalog[1];
+        long catalogBytes = retained(() -> fill((catalog[0] = new ItemCatalog(ITEMS, storage))::put));
+        catalog[0].close();
+        catalog[0] = null;
+
+        var management = new Management[1];
+        long managementBytes = retained(() -> {
+            var items = new ArrayList<Item>(ITEMS);
+            fill(items::add);
+            management[0] = new Management(List.of(), items, List.of());
+        });
+        try {
+            Assertions.assertNotNull(management[0].getItem(TestData.barcode(ITEMS - 1)));
+            System.out.printf("%d items, %s: ItemCatalog heap %d MiB, Management heap %d MiB (%d bytes per item)%n",
+                    ITEMS, storage, catalogBytes >> 20, managementBytes >> 20, managementBytes / ITEMS);
+        } finally {
+            management[0].close();
+        }
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private static void fill(Consumer<Item> consumer) {
+        var random = new Random(ITEMS);
+        for (int i = 0; i < ITEMS; i++) consumer.accept(TestData.item(random, i));
+    }
+
+    private static long retained(Runnable runnable) {
+        long before = usedAfterGc();
+        runnable.run();
+        return usedAfterGc() - before;
+    }
+
+    private static long usedAfterGc() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
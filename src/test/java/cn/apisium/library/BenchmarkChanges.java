@@ -0,0 +1,108 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circulation throughput with and without subscribers to the change stream, run with {@code gradlew benchmark}
+ */
+@Tag("benchmark")
+public class BenchmarkChanges {
+    private static final int ITEMS = Integer.getInteger("benchmark.items", 1_000_000);
+    private static final int OPERATIONS = 2_000_000, SUBSCRIBERS = 4;
+
+    @Test
+    public void benchmarkChanges() throws IOException, InterruptedException {
+        var management = new Management(TestData.users(1000), TestData.items(ITEMS), List.of());
+        circulate(management); // warm up
+        double alone = circulate(management);
+
+        var received = new LongAdder();
+        var completed = new CountDownLatch(SUBSCRIBERS);
+        var counters = new ArrayList<Counter>();
+        for (int i = 0; i < SUBSCRIBERS; i++) counters.add(new Counter(received, completed));
+        counters.forEach(management.getChanges()::subscribe);
+        double followed = circulate(management);
+        management.close();
+        Assertions.assertTrue(completed.await(1, TimeUnit.MINUTES));
+
+        var changes = management.getChanges();
+        System.out.printf("%d operations: %.0f ops/s without subscribers, %.0f ops/s with %d (%.1f%% slower), " +
+                        "%d changes published, %d received, %d dropped%n", OPERATIONS, alone, followed, SUBSCRIBERS,
+                (1 - followed / alone) * 100, changes.getPublished(), received.sum(), changes.getDropped());
+        for (Counter counter : counters) {
+            Assertions.assertNull(counter.outOfOrder, counter.outOfOrder);
+            // Only a subscriber told it missed changes may have received fewer than were published
+            if (counter.failed == null) Assertions.assertEquals(changes.getPublished(), counter.count);
+        }
+        Assertions.assertTrue(received.sum() <= changes.getPublished() * SUBSCRIBERS);
+        if (changes.getDropped() == 0) Assertions.assertEquals(changes.getPublished() * SUBSCRIBERS, received.sum());
+        Assertions.assertTrue(followed > alone / 2, "Subscribers must not halve circulation throughput");
+    }
+
+    private static double circulate(Management management) {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS / 2; i++) {
+            var barcode = TestData.barcode(i % ITEMS);
+            var userId = TestData.userId(i % 1000);
+            management.createLoan(barcode, userId);
+            management.returnItem(barcode, userId);
+        }
+        return OPERATIONS / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Subscriber counting the changes it receives and checking that each return follows the loan of the same item,
+     * a class rather than a record since subscribers must not be equal
+     */
+    private static final class Counter implements Flow.Subscriber<List<Change>> {
+        private final LongAdder received;
+        private final CountDownLatch completed;
+        private volatile long count;
+        private volatile String outOfOrder;
+        private volatile Throwable failed;
+        private String loaned;
+
+        Counter(LongAdder received, CountDownLatch completed) {
+            this.received = received;
+            this.completed = completed;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<Change> batch) {
+            received.add(batch.size());
+            count += batch.size();
+            for (Change change : batch) {
+                if (change instanceof Change.LoanCreated created && loaned == null) loaned = created.barcode();
+                else if (change instanceof Change.ItemReturned returned && returned.barcode().equals(loaned)) {
+                    loaned = null;
+                } else if (outOfOrder == null) outOfOrder = "Out of order: " + change;
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failed = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
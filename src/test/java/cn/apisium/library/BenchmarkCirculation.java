@@ -0,0 +1,41 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * Renew and return latency as the number of loans grows, run with {@code gradlew benchmark}
+ */
+@Tag("benchmark")
+public class BenchmarkCirculation {
+    private static final int TOUCHED = 500;
+
+    @Test
+    public void benchmarkLoanLookupLatency() {
+        for (int count : new int[] { 1_000, 10_000, 100_000, 1_000_000 }) {
+            System.out.printf("%d loans: renew and return of the %d latest in %d us%n", count, TOUCHED,
+                    timeRenewAndReturn(count) / 1000);
+        }
+    }
+
+    private static long timeRenewAndReturn(int count) {
+        var management = new Management(TestData.users(1), TestData.items(count), List.of());
+        for (int i = 0; i < count; i++) management.createLoan(TestData.barcode(i), TestData.userId(0));
+        // Touch the most recent loans, which would sit at the far end of a linear scan
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = count - 1; i >= count - TOUCHED; i--) {
+                management.renewLoan(TestData.barcode(i), TestData.userId(0));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long start = System.nanoTime();
+        for (int i = count - 1; i >= count - TOUCHED; i--) {
+            management.returnItem(TestData.barcode(i), TestData.userId(0));
+        }
+        return best + System.nanoTime() - start;
+    }
+}
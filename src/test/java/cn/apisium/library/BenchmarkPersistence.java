@@ -0,0 +1,75 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start benchmarks, run with {@code gradlew benchmark}
+ */
+@Tag("benchmark")
+public class BenchmarkPersistence {
+    private static final int ITEMS = Integer.getInteger("benchmark.items", 1_000_000);
+
+    @Test
+    public void benchmarkCsvAndSnapshotStartup(@TempDir Path directory) throws IOException {
+        var management = new Management(directory, Management.Format.CSV);
+        var data = TestData.management(ITEMS / 10, ITEMS, ITEMS / 5);
+        copy(data, management);
+        management.save();
+        management.setFormat(Management.Format.SNAPSHOT);
+        management.save();
+        management.close();
+        System.out.printf("%d items: CSV %d MiB, snapshot %d MiB%n", ITEMS,
+                (Files.size(directory.resolve("ITEMS.csv")) + Files.size(directory.resolve("USERS.csv"))
+                        + Files.size(directory.resolve("LOANS.csv"))) >> 20,
+                Files.size(directory.resolve(Snapshot.FILE)) >> 20);
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("CSV cold start: %d ms, snapshot cold start: %d ms%n",
+                    time(directory, Management.Format.CSV), time(directory, Management.Format.SNAPSHOT));
+        }
+    }
+
+    @Test
+    public void benchmarkItemImport(@TempDir Path directory) throws IOException {
+        var file = directory.resolve("import.csv");
+        try (var out = Files.newBufferedWriter(file)) {
+            out.write("Barcode,Author/Artist,Title,Type,Year,ISBN\n");
+            var random = new Random(ITEMS);
+            for (int i = 0; i < ITEMS; i++) {
+                var item = TestData.item(random, i);
+                out.write(item.getBarcode() + "," + item.getAuthor() + "," + item.getTitle() + ",Book," + item.getYear()
+                        + ",\n");
+            }
+        }
+        System.out.printf("%d items: %d MiB%n", ITEMS, Files.size(file) >> 20);
+        for (int threads : new int[] { 1, 2, 4 }) {
+            System.gc();
+            var management = new Management(List.of(), List.of(), List.of());
+            var report = management.importItems(file, null, threads);
+            System.out.printf("%d threads: %.0f rows/s, %d imported%n", threads, report.rowsPerSecond(),
+                    report.imported());
+        }
+    }
+
+    private static long time(Path directory, Management.Format format) throws IOException {
+        System.gc(); // start each run from a clean heap, so one format does not pay for the other's garbage
+        long start = System.nanoTime();
+        new Management(directory, format).close();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void copy(Management from, Management to) {
+        for (int i = 0; i < ITEMS / 10; i++) to.addUser(from.getUser(TestData.userId(i)));
+        for (int i = 0; i < ITEMS; i++) to.addItem(from.getItem(TestData.barcode(i)));
+        from.getLoans().forEach(it -> to.createLoan(it.getBarcode(), it.getUserId()));
+    }
+}
@@ -0,0 +1,29 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+/**
+ * Search latency over a large catalog, run with {@code gradlew benchmark}
+ */
+@Tag("benchmark")
+public class BenchmarkSearch {
+    private static final int ITEMS = Integer.getInteger("benchmark.items", 1_000_000);
+
+    @Test
+    public void benchmarkSearch() {
+        var management = new Management(List.of(), TestData.items(ITEMS), List.of());
+        for (var query : new String[] { "river", "author 1234", "gold jour", "secret 99", "s", "machine dream 5" }) {
+            int results = 0;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 20; round++) {
+                long start = System.nanoTime();
+                results = management.search(query, 50).size();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%d items, \"%s\": %d results in %.3f ms%n", ITEMS, query, results, best / 1e6);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cn.apisium.library;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generators of users, items and loans for benchmarks
+ */
+final class TestData {
+    private static final String[] TYPES = { "Book", "Book", "Book", "Book", "Book", "Book", "DVD", "CD", "Audiobook" };
+    private static final String[] WORDS = { "river", "night", "garden", "winter", "city", "stone", "light", "empire",
+            "shadow", "ocean", "silent", "golden", "journey", "forest", "secret", "machine", "letters", "dream" };
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private TestData() { }
+
+    static String userId(int index) {
+        return String.format("U%08d", index);
+    }
+
+    static String barcode(int index) {
+        return String.format("%010d", index);
+    }
+
+    static List<User> users(int count) {
+        var users = new ArrayList<User>(count);
+        for (int i = 0; i < count; i++) {
+            var user = new User();
+            user.setUserId(userId(i));
+            user.setFirstName("First" + i % 1000);
+            user.setLastName("Last" + i % 5000);
+            user.setEmail("user" + i + "@example.com");
+            users.add(user);
+        }
+        return users;
+    }
+
+    static List<Item> items(int count) {
+        var random = new Random(count);
+        var items = new ArrayList<Item>(count);
+        for (int i = 0; i < count; i++) items.add(item(random, i));
+        return items;
+    }
+
+    static Item item(Random random, int index) {
+        var title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + index % 997;
+        return Item.of(barcode(index), "Author " + random.nextInt(20_000), title, TYPES[random.nextInt(TYPES.length)],
+                Integer.toString(1950 + random.nextInt(74)),
+                String.format("%09d-%d", random.nextInt(1_000_000_000), random.nextInt(10)));
+    }
+
+    /**
+     * Loans of the first {@code count} items, spread over {@code users} users
+     */
+    static List<Loan> loans(int count, int users) {
+        var random = new Random(count);
+        var today = LocalDate.now();
+        var loans = new ArrayList<Loan>(count);
+        for (int i = 0; i < count; i++) {
+            var issued = today.minusDays(random.nextInt(60));
+            var loan = new Loan();
+            loan.setBarcode(barcode(i));
+            loan.setUserId(userId(random.nextInt(users)));
+            loan.setIssueDate(dateFormat.format(issued));
+            loan.setDueDate(dateFormat.format(issued.plusWeeks(1 + random.nextInt(4))));
+            loan.setNumRenews(random.nextInt(4));
+            loans.add(loan);
+        }
+        return loans;
+    }
+
+    static Management management(int users, int items, int loans) {
+        return new Management(users(users), items(items), loans(loans, users));
+    }
+}
@@ -2,8 +2,37 @@ package cn.apisium.library;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 
 public class TestManagement {
     private static Management setupManagement() {
@@ -60,4 +89,1255 @@ public class TestManagement {
 
         Assertions.assertEquals(management.getLoans().size(), 0);
     }
+
+    @Test
+    public void testLoanIndexes() {
+        var management = setupManagement();
+        var other = new User();
+        other.setUserId("U1");
+        management.addUser(other);
+        for (int i = 0; i < 2_000; i++) {
+            Item item = new Item();
+            item.setBarcode("B" + i);
+            item.setType("Book");
+            management.addItem(item);
+            management.createLoan("B" + i, i % 2 == 0 ? "B00447489" : "U1");
+        }
+        for (int i = 1_999; i >= 1_500; i--) management.renewLoan("B" + i, i % 2 == 0 ? "B00447489" : "U1");
+        for (int i = 1_999; i >= 1_000; i--) management.returnItem("B" + i, i % 2 == 0 ? "B00447489" : "U1");
+        var error = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> management.returnItem("B1", "B00447489"));
+        Assertions.assertEquals("No such loan!", error.getMessage());
+
+        Assertions.assertEquals(1_000, management.getLoans().size());
+        Assertions.assertEquals(500, management.getLoanCount("U1"));
+        var byUser = management.getLoansForUser("U1");
+        Assertions.assertEquals(management.getLoans().stream().filter(it -> it.getUserId().equals("U1"))
+                .map(Loan::getBarcode).sorted().toList(), byUser.stream().map(Loan::getBarcode).sorted().toList());
+        Assertions.assertTrue(management.getLoans().stream().allMatch(it -> it.getNumRenews() == 0));
+        Assertions.assertFalse(management.isAvailable("B999"));
+        Assertions.assertTrue(management.isAvailable("B1000"));
+    }
+
+    @Test
+    public void testConcurrentCirculation() throws InterruptedException {
+        final int threads = 8, itemCount = 64, operations = 20_000;
+        var management = setupManagement();
+        for (int i = 0; i < threads; i++) {
+            var user = new User();
+            user.setUserId("U" + i);
+            management.addUser(user);
+        }
+        for (int i = 0; i < itemCount; i++) {
+            Item item = new Item();
+            item.setBarcode("C" + i);
+            item.setType(i % 2 == 0 ? "Book" : "DVD");
+            management.addItem(item);
+        }
+
+        var holders = new AtomicReferenceArray<String>(itemCount);
+        var created = new AtomicInteger();
+        var returned = new AtomicInteger();
+        var duplicates = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            var userId = "U" + t;
+            executor.execute(() -> {
+                var random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    int index = random.nextInt(itemCount);
+                    var barcode = "C" + index;
+                    try {
+                        switch (random.nextInt(3)) {
+                            case 0 -> {
+                                management.createLoan(barcode, userId);
+                                if (!holders.compareAndSet(index, null, userId)) duplicates.incrementAndGet();
+                                created.incrementAndGet();
+                            }
+                            case 1 -> management.renewLoan(barcode, userId);
+                            case 2 -> {
+                                // Only the holder can return, so release the item before it becomes available again
+                                if (userId.equals(holders.get(index))) {
+                                    holders.set(index, null);
+                                    management.returnItem(barcode, userId);
+                                    returned.incrementAndGet();
+                                } else management.returnItem(barcode, userId);
+                            }
+                        }
+                    } catch (IllegalArgumentException ignored) { }
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        Assertions.assertEquals(0, duplicates.get(), "An item was checked out twice");
+        Assertions.assertEquals(created.get() - returned.get(), management.getLoans().size(), "A loan was lost");
+        for (var loan : management.getLoans()) {
+            Assertions.assertEquals(loan.getUserId(), holders.get(Integer.parseInt(loan.getBarcode().substring(1))));
+        }
+    }
+
+    @Test
+    public void testJournalReplayAndCompaction(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        var seed = setupManagement();
+        management.addUser(seed.getUser("B00447489"));
+        management.addItem(seed.getItem("25832497"));
+        Item other = new Item();
+        other.setBarcode("1234\t5678");
+        other.setTitle("line\nbreak");
+        other.setType("DVD");
+        management.addItem(other);
+        management.createLoan("25832497", "B00447489");
+        management.renewLoan("25832497", "B00447489");
+        management.createLoan("1234\t5678", "B00447489");
+        management.returnItem("1234\t5678", "B00447489");
+        management.close(); // no save: everything must come back from the journal
+
+        var reloaded = new Management(directory);
+        Assertions.assertEquals("Gray", reloaded.getUser("B00447489").getFirstName());
+        Assertions.assertEquals("line\nbreak", reloaded.getItem("1234\t5678").getTitle());
+        Assertions.assertNull(reloaded.getItem("1234\t5678").getAuthor());
+        Assertions.assertEquals(management.getLoans(), reloaded.getLoans());
+
+        reloaded.save();
+        Assertions.assertEquals(0, Files.size(directory.resolve(Journal.FILE)));
+        Assertions.assertFalse(Files.exists(directory.resolve(Journal.ROTATED_FILE)));
+        reloaded.removeItem("1234\t5678");
+        reloaded.close();
+
+        var compacted = new Management(directory);
+        Assertions.assertNull(compacted.getItem("1234\t5678"));
+        Assertions.assertInstanceOf(Book.class, compacted.getItem("25832497"));
+        var files = compacted.getLoadReport().files();
+        Assertions.assertEquals(2, files.get(1).rows()); // ITEMS.csv, removal still in the journal
+        Assertions.assertEquals(1, files.get(3).rows());
+        Assertions.assertEquals(1, compacted.getLoans().get(0).getNumRenews());
+        compacted.close();
+    }
+
+    @Test
+    public void testJournalWithoutFlusherSyncsEveryAppend(@TempDir Path directory) throws IOException {
+        try (var journal = new Journal(directory, 64, 0)) {
+            journal.append(new Change.UserRemoved("A"));
+            journal.append(List.of(new Change.UserRemoved("B"), new Change.UserRemoved("C")));
+            var replayed = new ArrayList<Change>();
+            Assertions.assertEquals(3, Journal.replay(directory, replayed::add), "Nothing is left in the buffer");
+            Assertions.assertEquals(new Change.UserRemoved("C"), replayed.get(2));
+        }
+    }
+
+    @Test
+    public void testJournalDropsTornRecord(@TempDir Path directory) throws IOException {
+        var first = new Change.ItemAdded(Item.of("B1", "Author", "Title", "Book", "2000", null));
+        var line = new StringBuilder();
+        Journal.encode(first, line);
+        line.append('\n');
+        Journal.encode(new Change.ItemAdded(Item.of("B2", "Author", "Title", "Book", "2000", null)), line);
+        // A crash cut the second record short
+        Files.writeString(directory.resolve(Journal.FILE), line.substring(0, line.length() - 10));
+        var third = new Change.ItemAdded(Item.of("B3", "Author", "Title", "CD", "2001", null));
+        try (var journal = new Journal(directory, 64, 0)) {
+            journal.append(third);
+        }
+        var replayed = new ArrayList<Change>();
+        Assertions.assertEquals(2, Journal.replay(directory, replayed::add));
+        Assertions.assertEquals(List.of(first.item().getBarcode(), third.item().getBarcode()),
+                replayed.stream().map(it -> ((Change.ItemAdded) it).item().getBarcode()).toList());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Journal.decode("I\tB2\tAuthor\tTitle"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Journal.decode("u\tA\tB"));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        var seed = setupManagement();
+        management.addUser(seed.getUser("B00447489"));
+        management.addItem(seed.getItem("25832497"));
+        management.createLoan("25832497", "B00447489");
+        management.exportCsv();
+        management.setFormat(Management.Format.SNAPSHOT);
+        management.save();
+        management.close();
+
+        var reloaded = new Management(directory);
+        Assertions.assertEquals(Management.Format.SNAPSHOT, reloaded.getFormat());
+        Assertions.assertEquals(Snapshot.FILE, reloaded.getLoadReport().files().get(0).name());
+        Assertions.assertEquals(seed.getUser("B00447489"), reloaded.getUser("B00447489"));
+        Assertions.assertEquals(seed.getItem("25832497").getTitle(), reloaded.getItem("25832497").getTitle());
+        Assertions.assertEquals(management.getLoans(), reloaded.getLoans());
+        reloaded.close();
+
+        var snapshot = directory.resolve(Snapshot.FILE);
+        var bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(snapshot, bytes);
+        // A snapshot that cannot be read stops the load instead of falling back to the older CSV files
+        Assertions.assertThrows(IOException.class, () -> new Management(directory));
+        Assertions.assertThrows(IOException.class, () -> new Management(directory, Management.Format.SNAPSHOT));
+        Assertions.assertArrayEquals(bytes, Files.readAllBytes(snapshot));
+        try (var csv = new Management(directory, Management.Format.CSV)) {
+            Assertions.assertEquals(management.getLoans(), csv.getLoans());
+        }
+    }
+
+    @Test
+    public void testDueDateQueries() {
+        var management = setupManagement();
+        var today = LocalDate.now();
+        for (int i = 0; i < 10; i++) {
+            Item item = new Item();
+            item.setBarcode("D" + i);
+            item.setType(i % 2 == 0 ? "Book" : "DVD");
+            management.addItem(item);
+            management.createLoan("D" + i, "B00447489");
+        }
+        var loan = management.getLoans().stream().filter(it -> it.getBarcode().equals("D0")).findFirst().orElseThrow();
+        Assertions.assertEquals(today.plusWeeks(4).toEpochDay(), loan.getDueDay());
+        Assertions.assertEquals(Loan.formatDay(today.toEpochDay()), loan.getIssueDate());
+        Assertions.assertEquals(loan.getDueDay(), Loan.parseDay(loan.getDueDate()));
+        Assertions.assertEquals(LocalDate.of(2020, 1, 31).toEpochDay(), Loan.parseDay("31/01/2020"));
+        Assertions.assertThrows(DateTimeParseException.class, () -> Loan.parseDay("01/01/20x0"));
+        Assertions.assertThrows(DateTimeParseException.class, () -> Loan.parseDay("0x/01/2020"));
+
+        Assertions.assertEquals(0, management.getOverdueLoans(today.plusWeeks(1)).size());
+        Assertions.assertEquals(5, management.getOverdueLoans(today.plusWeeks(1).plusDays(1)).size());
+        Assertions.assertEquals(10, management.getOverdueLoans(today.plusYears(1)).size());
+        Assertions.assertEquals(5, management.getLoansDueWithin(today, 7).size());
+        Assertions.assertEquals(5, management.getLoansDueWithin(today.plusWeeks(4), 0).size());
+
+        management.renewLoan("D2", "B00447489"); // a book renewed today is due in two weeks
+        Assertions.assertEquals("D2", management.getLoansDueWithin(today.plusWeeks(2), 0).get(0).getBarcode());
+        management.returnItem("D0", "B00447489");
+        var dueLast = management.getLoansDueWithin(today.plusWeeks(4), 0);
+        Assertions.assertEquals(3, dueLast.size());
+        Assertions.assertTrue(dueLast.stream().noneMatch(it -> it.getBarcode().equals("D0")));
+    }
+
+    @Test
+    public void testItemCatalog() {
+        checkCatalog(new ItemCatalog(4));
+    }
+
+    @Test
+    public void testOffHeapCatalog() {
+        for (var storage : List.of(ItemCatalog.Storage.DIRECT, ItemCatalog.Storage.MAPPED, ItemCatalog.Storage.FILE)) {
+            var catalog = new ItemCatalog(4, storage);
+            try {
+                checkCatalog(catalog);
+                Assertions.assertEquals(4, catalog.borrowTime("N0"));
+                Assertions.assertEquals(1, catalog.renewTime(TestData.barcode(1)));
+                Assertions.assertEquals(-1, catalog.borrowTime(TestData.barcode(0)));
+
+                // Replacing items leaves garbage behind, until the live records are copied to a new arena
+                var items = TestData.items(1000);
+                for (int round = 0; round < 100; round++) items.forEach(catalog::put);
+                Assertions.assertTrue(catalog.offHeapBytes() < 3 << 20, "Replaced records were compacted away");
+                for (var item : items) Assertions.assertEquals(item, catalog.get(item.getBarcode()));
+            } finally {
+                catalog.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRepositories() {
+        var cache = new LruCache<String, Integer>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        Assertions.assertEquals(1, cache.get("a"));
+        cache.put("c", 3);
+        Assertions.assertNull(cache.get("b"), "Least recently used entry is evicted");
+        Assertions.assertEquals(new LruCache.Stats(1, 1, 1, 2), cache.stats());
+
+        var users = TestData.users(20_000);
+        try (var repository = new FileUserRepository(100)) {
+            users.forEach(repository::put);
+            Assertions.assertEquals(users.size(), repository.size());
+            for (int i = 0; i < users.size(); i += 7) {
+                Assertions.assertEquals(users.get(i), repository.get(users.get(i).getUserId()));
+            }
+            Assertions.assertEquals(100, repository.cacheStats().size());
+            Assertions.assertTrue(repository.cacheStats().evictions() > 0);
+
+            var renamed = TestData.users(1).get(0);
+            renamed.setFirstName("Renamed");
+            Assertions.assertEquals(users.get(0), repository.put(renamed));
+            Assertions.assertEquals(renamed, repository.get(renamed.getUserId()));
+            Assertions.assertEquals(users.get(1), repository.remove(users.get(1).getUserId()));
+            Assertions.assertNull(repository.remove(users.get(1).getUserId()));
+            Assertions.assertFalse(repository.contains(users.get(1).getUserId()));
+            Assertions.assertEquals(users.size() - 1, repository.size());
+
+            // Replacing users leaves garbage behind, until the live ones are copied to a new file
+            for (int round = 0; round < 10; round++) users.forEach(repository::put);
+            users.forEach(it -> Assertions.assertEquals(it, repository.get(it.getUserId())));
+
+            var seen = new ArrayList<User>();
+            String cursor = null;
+            do {
+                var page = repository.page(cursor, 999, null);
+                seen.addAll(page.rows());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            Assertions.assertEquals(new HashSet<>(users), new HashSet<>(seen));
+            Assertions.assertEquals(users.size(), seen.size());
+        }
+
+        var catalog = new ItemCatalog(16, ItemCatalog.Storage.FILE, 10);
+        try {
+            var items = TestData.items(5000);
+            items.forEach(catalog::put);
+            for (var item : items) Assertions.assertEquals(item, catalog.get(item.getBarcode()));
+            var stats = catalog.cacheStats();
+            Assertions.assertEquals(10, stats.size());
+            Assertions.assertTrue(stats.hits() > 0 && stats.misses() > 0 && stats.evictions() > 0, stats.toString());
+
+            // An interrupted read closes the scratch file for every thread, so it is reopened
+            Thread.currentThread().interrupt();
+            Assertions.assertEquals(items.get(0), catalog.get(items.get(0).getBarcode()));
+            Assertions.assertTrue(Thread.interrupted(), "The thread is left interrupted");
+            var other = CompletableFuture.supplyAsync(() -> catalog.get(items.get(1).getBarcode()));
+            Assertions.assertEquals(items.get(1), other.join());
+        } finally {
+            catalog.close();
+        }
+    }
+
+    @Test
+    public void testImportItems(@TempDir Path directory) throws IOException {
+        var management = setupManagement();
+        var lines = new ArrayList<String>();
+        lines.add("ISBN,Barcode,Title,Author/Artist,Type,Year,Shelf");
+        var expected = new HashMap<String, Item>();
+        var rejected = new HashMap<Integer, String>();
+        for (int i = 0; i < 5000; i++) {
+            var item = Item.of("I" + i, "Author " + i, "Title " + i, i % 3 == 0 ? "CD" : "Book",
+                    Integer.toString(1900 + i % 120), isbn13(i));
+            expected.put(item.getBarcode(), item);
+            lines.add(item.getIsbn() + "," + item.getBarcode() + "," + item.getTitle() + "," + item.getAuthor() + "," +
+                    item.getType() + "," + item.getYear() + ",A" + i % 7);
+            switch (i % 500) {
+                case 1 -> rejected.put(lines.size() + 1, "Barcode taken");
+                case 2 -> rejected.put(lines.size() + 1, "Duplicate ISBN");
+                case 3 -> rejected.put(lines.size() + 1, "Invalid year");
+                case 4 -> rejected.put(lines.size() + 1, "Invalid ISBN");
+                case 5 -> rejected.put(lines.size() + 1, "Unknown type");
+                case 6 -> rejected.put(lines.size() + 1, "Missing barcode");
+                case 7 -> rejected.put(lines.size() + 1, "Wrong number of fields");
+                case 8 -> rejected.put(lines.size() + 1, "Malformed row");
+                default -> { }
+            }
+            switch (i % 500) {
+                case 1 -> lines.add(",25832497,Taken,,Book,,");
+                case 2 -> lines.add(isbn10(i) + ",J" + i + ",Same book,,Book,,");
+                case 3 -> lines.add(",J" + i + ",Future,,Book,3000,");
+                case 4 -> lines.add("978-0-00-000000-0,J" + i + ",Bad,,Book,,");
+                case 5 -> lines.add(",J" + i + ",Scroll,,Scroll,,");
+                case 6 -> lines.add(",  ,No barcode,,Book,,");
+                case 7 -> lines.add(",J" + i + ",Short");
+                case 8 -> lines.add(",J" + i + ",\"Unclosed,,Book,,");
+                case 9 -> lines.add("");
+                default -> { }
+            }
+        }
+        var quoted = Item.of("Q", "Doe, Jane", "Say \"Hi\"", "Book", "", "");
+        expected.put(quoted.getBarcode(), quoted);
+        lines.add(",Q,\"Say \"\"Hi\"\"\",\"Doe, Jane\",Book,,\r");
+        rejected.put(lines.size() + 1, "Barcode taken");
+        lines.add(",I0,Again,,Book,,");
+        var file = directory.resolve("import.csv");
+        Files.write(file, lines);
+        var rejects = directory.resolve("REJECTS.csv");
+
+        var report = new ItemImport(Set.of("Book", "CD"), 4096, 4).run(file, rejects, management::addNewItems);
+        Assertions.assertEquals(expected.size(), report.imported());
+        Assertions.assertEquals(expected.size() + rejected.size(), report.rows());
+        Assertions.assertEquals(rejected.size(), report.rejected());
+        Assertions.assertEquals(11, report.reasons().get("Barcode taken"));
+        Assertions.assertEquals(10, report.reasons().get("Malformed row"));
+        expected.values().forEach(it -> Assertions.assertEquals(it, management.getItem(it.getBarcode())));
+        Assertions.assertEquals("Gabe Scain", management.getItem("25832497").getAuthor(), "Items are not replaced");
+        Assertions.assertEquals(1, management.search("say hi", 10).size());
+
+        var rejectLines = Files.readAllLines(rejects);
+        Assertions.assertEquals("Line,Reason,Row", rejectLines.get(0));
+        var reasons = new HashMap<Integer, String>();
+        for (var line : rejectLines.subList(1, rejectLines.size())) {
+            var fields = ItemImport.split(line);
+            reasons.put(Integer.parseInt(fields[0]), fields[1]);
+            Assertions.assertEquals(lines.get(Integer.parseInt(fields[0]) - 1), fields[2]);
+        }
+        Assertions.assertEquals(rejected, reasons);
+
+        Assertions.assertEquals(ItemImport.isbnKey("978-0-306-40615-7"), ItemImport.isbnKey("0-306-40615-2"));
+        Assertions.assertEquals(0, ItemImport.isbnKey("0-306-40615-3"));
+        Assertions.assertNotEquals(0, ItemImport.isbnKey("080442957X"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> management.importItems(directory.resolve("REJECTS.csv"), null, 1));
+    }
+
+    @Test
+    public void testImportKeepsTheIsbnOfRejectedRowsFree(@TempDir Path directory) throws IOException {
+        var management = setupManagement();
+        var file = directory.resolve("import.csv");
+        Files.write(file, List.of("ISBN,Barcode,Title,Author/Artist,Type,Year",
+                isbn13(1) + ",25832497,Taken,,Book,",
+                isbn10(1) + ",J1,First,,Book,",
+                isbn13(1) + ",J2,Second,,Book,"));
+        var rejects = directory.resolve("REJECTS.csv");
+
+        var report = new ItemImport(Set.of("Book"), 4096, 1).run(file, rejects, management::addNewItems);
+        Assertions.assertEquals(1, report.imported());
+        Assertions.assertEquals(Map.of("Barcode taken", 1L, "Duplicate ISBN", 1L), report.reasons());
+        Assertions.assertEquals("First", management.getItem("J1").getTitle());
+        Assertions.assertNull(management.getItem("J2"));
+        var rejectLines = Files.readAllLines(rejects);
+        Assertions.assertEquals(3, rejectLines.size());
+        Assertions.assertEquals("2", ItemImport.split(rejectLines.get(1))[0]);
+        Assertions.assertEquals("4", ItemImport.split(rejectLines.get(2))[0]);
+    }
+
+    /**
+     * A valid ISBN-13 for each number
+     */
+    private static String isbn13(int number) {
+        var digits = String.format("978%09d", number);
+        int sum = 0;
+        for (int i = 0; i < 12; i++) sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    /**
+     * The ISBN-10 form of {@link #isbn13(int)}
+     */
+    private static String isbn10(int number) {
+        var digits = String.format("%09d", number);
+        int sum = 0;
+        for (int i = 0; i < 9; i++) sum += (10 - i) * (digits.charAt(i) - '0');
+        int check = (11 - sum % 11) % 11;
+        return digits + (check == 10 ? "X" : Integer.toString(check));
+    }
+
+    private static void checkCatalog(ItemCatalog catalog) {
+        var expected = new HashMap<String, Item>();
+        var items = TestData.items(10_000);
+        for (var item : items) {
+            catalog.put(item);
+            expected.put(item.getBarcode(), item);
+        }
+        for (int i = 0; i < items.size(); i += 3) {
+            Assertions.assertNotNull(catalog.remove(items.get(i).getBarcode()));
+            expected.remove(items.get(i).getBarcode());
+        }
+        Assertions.assertNull(catalog.remove(items.get(0).getBarcode()));
+        var replaced = Item.of(items.get(1).getBarcode(), null, "Replaced", "DVD", null, null);
+        Assertions.assertEquals(items.get(1), catalog.put(replaced));
+        expected.put(replaced.getBarcode(), replaced);
+        for (int i = 0; i < 100; i++) {
+            var item = Item.of("N" + i, "Author " + i, "New " + i, "Book", "2020", null);
+            catalog.put(item);
+            expected.put(item.getBarcode(), item);
+        }
+
+        Assertions.assertEquals(expected.size(), catalog.size());
+        expected.values().forEach(it -> Assertions.assertEquals(it, catalog.get(it.getBarcode())));
+        Assertions.assertInstanceOf(Multimedia.class, catalog.get(replaced.getBarcode()));
+        var seen = new HashMap<String, Item>();
+        catalog.forEach(it -> seen.put(it.getBarcode(), it));
+        Assertions.assertEquals(expected, seen);
+        Assertions.assertTrue(catalog.ordinal("N99") < items.size(), "Ordinals of removed items are reused");
+    }
+
+    @Test
+    public void testSearch() {
+        var management = setupManagement();
+        management.addItem(Item.of("1", "Ursula K. Le Guin", "The Left Hand of Darkness", "Book", "1969", null));
+        management.addItem(Item.of("2", "Ursula K. Le Guin", "A Wizard of Earthsea", "Book", "1968", null));
+        management.addItem(Item.of("3", "Miles Davis", "Kind of Blue", "CD", "1959", null));
+
+        Assertions.assertEquals(2, management.search("ursula", 10).size());
+        Assertions.assertEquals("2", management.search("GUIN wiz", 10).get(0).getBarcode());
+        Assertions.assertEquals(1, management.search("le  guin, left", 10).size());
+        Assertions.assertEquals(3, management.search("of", 10).size());
+        Assertions.assertEquals(2, management.search("of", 2).size());
+        Assertions.assertEquals("25832497", management.search("gabe en", 10).get(0).getBarcode());
+        Assertions.assertTrue(management.search("blue wizard", 10).isEmpty());
+        Assertions.assertTrue(management.search("  ", 10).isEmpty());
+
+        management.addItem(Item.of("3", "Miles Davis", "Bitches Brew", "CD", "1970", null));
+        Assertions.assertTrue(management.search("blue", 10).isEmpty());
+        Assertions.assertEquals("3", management.search("brew", 10).get(0).getBarcode());
+        management.removeItem("3");
+        Assertions.assertTrue(management.search("davis", 10).isEmpty());
+        // Takes the ordinal of the removed item
+        management.addItem(Item.of("4", "Miles Davis", "Sketches of Spain", "CD", "1960", null));
+        Assertions.assertTrue(management.search("brew", 10).isEmpty());
+        Assertions.assertEquals("4", management.search("davis sketches", 10).get(0).getBarcode());
+        Assertions.assertEquals(3, management.search("of", 10).size());
+    }
+
+    @Test
+    public void testLoansPerUser() {
+        var management = setupManagement();
+        management.addItem(Item.of("1", "Ursula K. Le Guin", "The Left Hand of Darkness", "Book", "1969", null));
+        management.addItem(Item.of("2", "Miles Davis", "Kind of Blue", "CD", "1959", null));
+        management.setLoanLimit(2);
+
+        management.createLoan("25832497", "B00447489");
+        management.createLoan("1", "B00447489");
+        Assertions.assertEquals(2, management.getLoanCount("B00447489"));
+        Assertions.assertEquals(2, management.getLoansForUser("B00447489").size());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.createLoan("2", "B00447489"));
+        Assertions.assertNull(management.getLoans().stream().filter(it -> it.getBarcode().equals("2")).findAny()
+                .orElse(null));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.removeItem("1"));
+        management.removeItem("1", true);
+        Assertions.assertEquals(1, management.getLoanCount("B00447489"));
+        management.createLoan("2", "B00447489");
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.removeUser("B00447489"));
+        Assertions.assertNotNull(management.getUser("B00447489"));
+        management.removeUser("B00447489", true);
+        Assertions.assertNull(management.getUser("B00447489"));
+        Assertions.assertEquals(0, management.getLoanCount("B00447489"));
+        Assertions.assertTrue(management.getLoans().isEmpty());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.createLoan("2", "B00447489"));
+    }
+
+    @Test
+    public void testListing() {
+        var management = TestData.management(250, 1000, 300);
+        var barcodes = new HashSet<String>();
+        String cursor = null;
+        do {
+            var page = management.listItems(cursor, 64, null);
+            Assertions.assertTrue(page.rows().size() <= 64);
+            page.rows().forEach(it -> Assertions.assertTrue(barcodes.add(it.getBarcode()), "No item is listed twice"));
+            cursor = page.nextCursor();
+        } while (cursor != null);
+        Assertions.assertEquals(1000, barcodes.size());
+
+        var users = management.listUsers(null, 100, null);
+        Assertions.assertEquals(TestData.userId(0), users.rows().get(0).getUserId());
+        management.removeUser(TestData.userId(150), true);
+        var next = management.listUsers(users.nextCursor(), 100, null);
+        Assertions.assertEquals(TestData.userId(100), next.rows().get(0).getUserId());
+        Assertions.assertEquals(TestData.userId(200), next.rows().get(99).getUserId());
+        Assertions.assertEquals(49, management.listUsers(next.nextCursor(), 100, null).rows().size());
+        Assertions.assertNull(management.listUsers(next.nextCursor(), 100, null).nextCursor());
+
+        var loans = new ArrayList<Loan>();
+        cursor = null;
+        do {
+            var page = management.listLoans(cursor, 7, it -> it.getNumRenews() == 0);
+            loans.addAll(page.rows());
+            cursor = page.nextCursor();
+        } while (cursor != null);
+        Assertions.assertEquals(management.getLoans().stream().filter(it -> it.getNumRenews() == 0).count(),
+                loans.size());
+        for (int i = 1; i < loans.size(); i++) {
+            Assertions.assertTrue(Loan.BY_DUE_DATE.compare(loans.get(i - 1), loans.get(i)) < 0);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.listLoans("x", 10, null));
+    }
+
+    @Test
+    public void testBatchCirculation(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        TestData.users(10).forEach(management::addUser);
+        TestData.items(100).forEach(management::addItem);
+        var requests = new ArrayList<LoanRequest>();
+        for (int i = 0; i < 50; i++) requests.add(new LoanRequest(TestData.barcode(i), TestData.userId(i % 10)));
+
+        var result = management.createLoans(requests, true);
+        Assertions.assertTrue(result.succeeded());
+        Assertions.assertEquals(50, result.applied());
+        Assertions.assertEquals(5, management.getLoanCount(TestData.userId(3)));
+
+        var mixed = new ArrayList<>(List.of(new LoanRequest(TestData.barcode(50), TestData.userId(0)),
+                new LoanRequest(TestData.barcode(1), TestData.userId(0)),
+                new LoanRequest("missing", TestData.userId(0)),
+                new LoanRequest(TestData.barcode(51), null)));
+        result = management.createLoans(mixed, true);
+        Assertions.assertEquals(0, result.applied());
+        Assertions.assertEquals(List.of(1, 2, 3), result.failures().stream().map(BatchResult.Failure::index).toList());
+        Assertions.assertEquals(50, management.getLoans().size());
+
+        result = management.createLoans(mixed, false);
+        Assertions.assertEquals(1, result.applied());
+        Assertions.assertEquals(51, management.getLoans().size());
+
+        var renewed = management.getLoansForUser(TestData.userId(0)).stream()
+                .map(it -> new LoanRequest(it.getBarcode(), it.getUserId())).toList();
+        var returns = new ArrayList<>(renewed);
+        returns.add(new LoanRequest(TestData.barcode(99), TestData.userId(0)));
+        Assertions.assertEquals(renewed.size(), management.renewLoans(renewed, true).applied());
+        Assertions.assertFalse(management.returnItems(returns, true).succeeded());
+        Assertions.assertEquals(renewed.size(), management.getLoanCount(TestData.userId(0)));
+        management.getLoansForUser(TestData.userId(0)).forEach(it -> Assertions.assertEquals(1, it.getNumRenews()));
+        Assertions.assertEquals(renewed.size(), management.returnItems(returns, false).applied());
+        management.close();
+
+        try (var reloaded = new Management(directory)) {
+            Assertions.assertEquals(51 - renewed.size(), reloaded.getLoans().size());
+            Assertions.assertEquals(0, reloaded.getLoanCount(TestData.userId(0)));
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        var management = setupManagement();
+        management.createLoan("25832497", "B00447489");
+        for (int i = 0; i < 4; i++) {
+            try {
+                management.renewLoan("25832497", "B00447489");
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.returnItem("25832497", "nobody"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> management.createLoan("nothing", "B00447489"));
+        management.getItem("25832497");
+
+        var metrics = management.getMetrics();
+        Assertions.assertEquals(2, metrics.getCount(Metrics.Operation.CREATE_LOAN));
+        Assertions.assertEquals(1, metrics.getErrors(Metrics.Operation.CREATE_LOAN, Metrics.Cause.NO_SUCH_ITEM));
+        Assertions.assertEquals(4, metrics.getCount(Metrics.Operation.RENEW_LOAN));
+        Assertions.assertEquals(1, metrics.getErrors(Metrics.Operation.RENEW_LOAN, Metrics.Cause.RENEW_LIMIT));
+        Assertions.assertEquals(1, metrics.getErrors(Metrics.Operation.RETURN_ITEM, Metrics.Cause.NO_SUCH_USER));
+        Assertions.assertEquals(1, metrics.getGauges().get("loans"));
+        Assertions.assertTrue(metrics.getLatencyNanos(Metrics.Operation.GET_ITEM, 0.5) > 0);
+        Assertions.assertTrue(metrics.dump().contains("renewLoan count=4"));
+
+        var name = metrics.register("test");
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var counts = (TabularData) server.getAttribute(name, "Counts");
+            Assertions.assertEquals(2L, counts.get(new Object[] { "createLoan" }).get("value"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+
+        var histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+        Assertions.assertEquals(500_000, histogram.percentile(0.5), 500_000 / 8.0);
+        Assertions.assertEquals(990_000, histogram.percentile(0.99), 990_000 / 8.0);
+        Assertions.assertTrue(histogram.percentile(1) >= 1_000_000);
+        for (long value : new long[] { 0, 7, 8, 9, 1000, 123_456_789, Long.MAX_VALUE }) {
+            Assertions.assertTrue(Metrics.Histogram.upperBound(Metrics.Histogram.index(value)) >= value);
+        }
+    }
+
+    @Test
+    public void testBackgroundSaves(@TempDir Path directory) throws Exception {
+        var management = new Management(directory, Management.Format.SNAPSHOT);
+        TestData.users(100).forEach(management::addUser);
+        TestData.items(2000).forEach(management::addItem);
+        management.setSaveInterval(Duration.ofMillis(5));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                var random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    // Each thread owns the items congruent to its index, so its operations never conflict
+                    var barcode = TestData.barcode(random.nextInt(500) * 4 + thread);
+                    var userId = TestData.userId(random.nextInt(100));
+                    try {
+                        management.createLoan(barcode, userId);
+                        if (random.nextBoolean()) management.renewLoan(barcode, userId);
+                        if (random.nextBoolean()) management.returnItem(barcode, userId);
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        var metrics = management.getMetrics();
+        Assertions.assertTrue(metrics.getCount(Metrics.Operation.SAVE) > 1, "Saves ran while lending");
+        Assertions.assertTrue(metrics.getSaveStalenessMillis() < 5_000);
+        var expected = new HashMap<String, Loan>();
+        management.getLoans().forEach(it -> expected.put(it.getBarcode(), it));
+        management.setSaveInterval(Duration.ZERO);
+        management.close();
+
+        try (var reloaded = new Management(directory)) {
+            var actual = new HashMap<String, Loan>();
+            reloaded.getLoans().forEach(it -> actual.put(it.getBarcode(), it));
+            Assertions.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testIncrementalSaves(@TempDir Path directory) throws IOException {
+        Path users = directory.resolve("USERS.csv"), items = directory.resolve("ITEMS.csv"),
+                loans = directory.resolve("LOANS.csv");
+        var management = new Management(directory);
+        TestData.users(10).forEach(management::addUser);
+        TestData.items(100).forEach(management::addItem);
+        management.save();
+        Object usersKey = fileKey(users), itemsKey = fileKey(items);
+
+        // Only the loans changed, so only their file is replaced
+        management.createLoan(TestData.barcode(1), TestData.userId(1));
+        management.save();
+        Assertions.assertEquals(usersKey, fileKey(users));
+        Assertions.assertEquals(itemsKey, fileKey(items));
+        String saved = Files.readString(loans);
+        Assertions.assertTrue(saved.contains(TestData.barcode(1)));
+
+        // A save that cannot write leaves the previous file whole, and the change in the journal
+        Files.createDirectory(directory.resolve("LOANS.csv.tmp"));
+        management.returnItem(TestData.barcode(1), TestData.userId(1));
+        management.save();
+        Assertions.assertEquals(saved, Files.readString(loans));
+        management.close();
+        Files.delete(directory.resolve("LOANS.csv.tmp"));
+        try (var reloaded = new Management(directory)) {
+            Assertions.assertTrue(reloaded.getLoans().isEmpty());
+            Assertions.assertEquals(100, reloaded.listItems(null, 1000).rows().size());
+            // Still dirty, so the next save writes the return
+            reloaded.save();
+            Assertions.assertFalse(Files.readString(loans).contains(TestData.barcode(1)));
+            Assertions.assertEquals(itemsKey, fileKey(items));
+        }
+    }
+
+    @Test
+    public void testChangeDuringSave(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        TestData.users(10).forEach(management::addUser);
+        TestData.items(10).forEach(management::addItem);
+        management.save();
+
+        // Applied and journaled between the rotation and reading which collections changed
+        management.save(() -> management.createLoan(TestData.barcode(1), TestData.userId(1)), () -> { });
+        Assertions.assertTrue(Files.readString(directory.resolve("LOANS.csv")).contains(TestData.barcode(1)),
+                "The change made during the save is in the files");
+        management.save();
+        Assertions.assertTrue(Files.readString(directory.resolve("LOANS.csv")).contains(TestData.barcode(1)));
+        management.close();
+        try (var reloaded = new Management(directory)) {
+            Assertions.assertEquals(1, reloaded.getLoans().size());
+        }
+    }
+
+    @Test
+    public void testFailedSaveKeepsChangesDirty(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        TestData.users(10).forEach(management::addUser);
+        TestData.items(10).forEach(management::addItem);
+        management.save();
+        management.createLoan(TestData.barcode(1), TestData.userId(1));
+
+        // Fails once the changed collections were read, as a failing item store would
+        Assertions.assertThrows(UncheckedIOException.class, () -> management.save(() -> { }, () -> {
+            throw new UncheckedIOException(new IOException("Store gone"));
+        }));
+        Assertions.assertTrue(Files.exists(directory.resolve(Journal.ROTATED_FILE)));
+        management.save();
+        Assertions.assertFalse(Files.exists(directory.resolve(Journal.ROTATED_FILE)));
+        Assertions.assertTrue(Files.readString(directory.resolve("LOANS.csv")).contains(TestData.barcode(1)),
+                "The next save writes what the failed one did not");
+        management.close();
+        Files.delete(directory.resolve(Journal.FILE));
+        try (var reloaded = new Management(directory)) {
+            Assertions.assertEquals(1, reloaded.getLoans().size());
+        }
+    }
+
+    private static Object fileKey(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    }
+
+    @Test
+    public void testAvailability() {
+        var management = TestData.management(10, 1000, 100);
+        var books = TestData.items(1000).stream().filter(Item::isBook).count();
+        Assertions.assertEquals(900, management.countAvailable(null));
+        Assertions.assertEquals(100, management.countOnLoan(null));
+        Assertions.assertEquals(books, management.countAvailable("Book") + management.countOnLoan("Book"));
+        Assertions.assertEquals(0, management.countAvailable("Scroll"));
+        Assertions.assertFalse(management.isAvailable(TestData.barcode(5)));
+        Assertions.assertTrue(management.isAvailable(TestData.barcode(500)));
+
+        var error = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> management.createLoan(TestData.barcode(5), TestData.userId(1)));
+        Assertions.assertEquals("Item already on loan!", error.getMessage());
+        var loan = management.getLoans().stream().filter(it -> it.getBarcode().equals(TestData.barcode(5))).findAny();
+        management.returnItem(TestData.barcode(5), loan.orElseThrow().getUserId());
+        Assertions.assertTrue(management.isAvailable(TestData.barcode(5)));
+        Assertions.assertEquals(99, management.countOnLoan(null));
+
+        // A removed item on loan frees its ordinal, which a new item reuses as available
+        management.removeItem(TestData.barcode(6), true);
+        management.addItem(Item.of("NEW", "Author", "Title", "Scroll", "2000", "0"));
+        Assertions.assertTrue(management.isAvailable("NEW"));
+        Assertions.assertEquals(1, management.countAvailable("Scroll"));
+        Assertions.assertEquals(98, management.countOnLoan(null));
+
+        var seen = new HashSet<String>();
+        String cursor = null;
+        do {
+            var page = management.listAvailableItems("Book", cursor, 64);
+            for (Item item : page.rows()) {
+                Assertions.assertTrue(item.isBook());
+                Assertions.assertTrue(management.isAvailable(item.getBarcode()));
+                Assertions.assertTrue(seen.add(item.getBarcode()));
+            }
+            cursor = page.nextCursor();
+        } while (cursor != null);
+        Assertions.assertEquals(management.countAvailable("Book"), seen.size());
+    }
+
+    @Test
+    public void testChangeStream() throws Exception {
+        var management = TestData.management(10, 100, 0);
+        var subscribers = List.of(new Collector(Long.MAX_VALUE), new Collector(Long.MAX_VALUE),
+                new Collector(Long.MAX_VALUE));
+        subscribers.forEach(management.getChanges()::subscribe);
+
+        management.createLoan(TestData.barcode(1), TestData.userId(1));
+        management.renewLoan(TestData.barcode(1), TestData.userId(1));
+        management.returnItem(TestData.barcode(1), TestData.userId(1));
+        management.createLoans(List.of(new LoanRequest(TestData.barcode(2), TestData.userId(2)),
+                new LoanRequest(TestData.barcode(3), TestData.userId(2))), true);
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> management.createLoan(TestData.barcode(2), TestData.userId(3)));
+        management.removeItem(TestData.barcode(50));
+        management.removeUser(TestData.userId(2), true);
+        management.close();
+
+        var expected = List.of(Change.LoanCreated.class, Change.LoanRenewed.class, Change.ItemReturned.class,
+                Change.LoanCreated.class, Change.LoanCreated.class, Change.ItemRemoved.class,
+                Change.ItemReturned.class, Change.ItemReturned.class, Change.UserRemoved.class);
+        for (var subscriber : subscribers) {
+            Assertions.assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(expected, subscriber.changes.stream().map(Object::getClass).toList());
+        }
+        Assertions.assertEquals(new Change.ItemRemoved(TestData.barcode(50)), subscribers.get(0).changes.get(5));
+        Assertions.assertEquals(0, management.getChanges().getDropped());
+    }
+
+    @Test
+    public void testChangeStreamDropsForSlowSubscribers() throws Exception {
+        var stream = new ChangeStream(1024, 4, 1, 8);
+        var fast = new Collector(Long.MAX_VALUE);
+        var stalled = new Collector(1);
+        stream.subscribe(fast);
+        stream.subscribe(stalled);
+        for (int i = 0; i < 100; i++) {
+            stream.publish(new Change.ItemRemoved(TestData.barcode(i)));
+            // Let the fast subscriber keep up, while the stalled one overflows its buffer of 8 batches
+            if (i % 4 == 3) while (fast.changes.size() <= i) Thread.sleep(1);
+        }
+        Assertions.assertTrue(stalled.changes.size() <= 4, "A stalled subscriber gets what it requested");
+        // Catching up, the stalled subscriber gets what was buffered before the gap, then is told it missed changes
+        stalled.subscription.request(Long.MAX_VALUE);
+        stream.close();
+
+        Assertions.assertTrue(fast.completed.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(100, fast.changes.size());
+        Assertions.assertEquals(TestData.barcode(99), ((Change.ItemRemoved) fast.changes.get(99)).barcode());
+        Assertions.assertNull(fast.error);
+        Assertions.assertTrue(stream.getDropped() > 0);
+        Assertions.assertEquals(100, stream.getPublished());
+        Assertions.assertTrue(stalled.failed.await(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(IllegalStateException.class, stalled.error);
+        Assertions.assertEquals(1, stalled.completed.getCount());
+        Assertions.assertTrue(stalled.changes.size() < 100);
+        for (int i = 0; i < stalled.changes.size(); i++) {
+            Assertions.assertEquals(new Change.ItemRemoved(TestData.barcode(i)), stalled.changes.get(i));
+        }
+    }
+
+    @Test
+    public void testChangeStreamFailsSubscribersWhenTheQueueOverflows() throws Exception {
+        var stream = new ChangeStream(4, 4, 60_000, 8);
+        var subscriber = new Collector(Long.MAX_VALUE);
+        stream.subscribe(subscriber);
+        // Nothing is drained for a minute, so all but the first 4 changes are dropped from the queue
+        for (int i = 0; i < 10; i++) stream.publish(new Change.ItemRemoved(TestData.barcode(i)));
+        stream.close();
+
+        Assertions.assertTrue(subscriber.failed.await(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(IllegalStateException.class, subscriber.error);
+        Assertions.assertEquals(6, stream.getDropped());
+    }
+
+    @Test
+    public void testChangeStreamCancel() throws Exception {
+        var stream = new ChangeStream(1024, 4, 1, 8);
+        var cancelled = new Collector(Long.MAX_VALUE);
+        var kept = new Collector(Long.MAX_VALUE);
+        stream.subscribe(cancelled);
+        stream.subscribe(kept);
+        while (cancelled.subscription == null) Thread.sleep(1);
+        Assertions.assertEquals(2, stream.getSubscriberCount());
+        cancelled.subscription.cancel();
+        Assertions.assertEquals(1, stream.getSubscriberCount(), "A cancelled subscriber is no longer followed");
+        stream.publish(new Change.ItemRemoved(TestData.barcode(1)));
+        stream.close();
+
+        Assertions.assertTrue(kept.completed.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, kept.changes.size());
+        Assertions.assertTrue(cancelled.changes.isEmpty());
+        Assertions.assertEquals(0, stream.getSubscriberCount());
+    }
+
+    @Test
+    public void testFines(@TempDir Path directory) throws IOException {
+        var management = TestData.management(50, 100_000, 60_000);
+        var asOf = LocalDate.now().plusDays(10);
+        var expected = new HashMap<String, Long>();
+        long days = 0;
+        for (var loan : management.getOverdueLoans(asOf)) {
+            long overdue = asOf.toEpochDay() - loan.getDueDay();
+            days += overdue;
+            long fine = overdue * management.getItem(loan.getBarcode()).getFinePerDay();
+            expected.merge(loan.getUserId(), fine, Long::sum);
+        }
+
+        var report = management.assessFines(asOf, 4);
+        Assertions.assertEquals(management.getOverdueLoans(asOf).size(), report.overdueLoans());
+        Assertions.assertEquals(days, report.overdueDays());
+        var fines = new HashMap<String, Long>();
+        report.users().forEach(it -> fines.put(it.userId(), it.fineCents()));
+        Assertions.assertEquals(expected, fines);
+        Assertions.assertEquals(report.users(), management.assessFines(asOf, 1).users(),
+                "The result does not depend on the number of threads");
+
+        var file = directory.resolve("FINES.csv");
+        report.write(file);
+        var lines = Files.readAllLines(file);
+        Assertions.assertEquals("User_id,Overdue_Loans,Overdue_Days,Fine", lines.get(0));
+        Assertions.assertEquals(report.users().size() + 1, lines.size());
+        var first = report.users().get(0);
+        Assertions.assertEquals(first.userId() + "," + first.overdueLoans() + "," + first.overdueDays() + "," +
+                FinesReport.formatCents(first.fineCents()), lines.get(1));
+        Assertions.assertEquals("12.05", FinesReport.formatCents(1205));
+    }
+
+    @Test
+    public void testLoanHistory(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        TestData.users(10).forEach(management::addUser);
+        TestData.items(20).forEach(management::addItem);
+        var requests = new ArrayList<LoanRequest>();
+        for (int i = 0; i < 10; i++) requests.add(new LoanRequest(TestData.barcode(i), TestData.userId(i % 5)));
+        Assertions.assertTrue(management.createLoans(requests, true).succeeded());
+        management.renewLoan(TestData.barcode(0), TestData.userId(0));
+        management.returnItem(TestData.barcode(0), TestData.userId(0));
+        var today = LocalDate.now();
+        var history = management.getLoanHistory(null, null, null, null);
+        Assertions.assertEquals(1, history.size());
+        var returned = history.get(0);
+        Assertions.assertEquals(TestData.barcode(0), returned.barcode());
+        Assertions.assertEquals(TestData.userId(0), returned.userId());
+        Assertions.assertEquals(today.toEpochDay(), returned.issueDay());
+        Assertions.assertEquals(today.toEpochDay(), returned.returnDay());
+        Assertions.assertEquals(1, returned.numRenews());
+
+        var returns = new ArrayList<>(requests.subList(1, 5));
+        returns.add(new LoanRequest(TestData.barcode(19), TestData.userId(0)));
+        Assertions.assertFalse(management.returnItems(returns, true).succeeded());
+        Assertions.assertEquals(1, management.getLoanHistory(null, null, null, null).size(),
+                "A rolled back batch archives nothing");
+        Assertions.assertEquals(4, management.returnItems(returns, false).applied());
+        management.removeItem(TestData.barcode(5), true);
+        Assertions.assertEquals(6, management.getLoanHistory(null, null, null, null).size());
+        Assertions.assertEquals(4, management.getLoans().size());
+
+        Assertions.assertEquals(List.of(TestData.barcode(0), TestData.barcode(5)), management
+                .getLoanHistory(null, TestData.userId(0), today, today).stream().map(ReturnedLoan::barcode).toList());
+        Assertions.assertEquals(1, management.getLoanHistory(TestData.barcode(3), null, null, null).size());
+        Assertions.assertTrue(management.getLoanHistory(TestData.barcode(6), null, null, null).isEmpty());
+        Assertions.assertTrue(management.getLoanHistory(null, null, today.plusDays(1), null).isEmpty());
+        Assertions.assertTrue(management.getLoanHistory(null, null, null, today.minusDays(1)).isEmpty());
+        Assertions.assertEquals(6, management.getMetrics().getGauges().get("historyLoans"));
+        management.close();
+
+        try (var reloaded = new Management(directory)) {
+            Assertions.assertEquals(history.get(0), reloaded.getLoanHistory(null, null, null, null).get(0));
+            Assertions.assertEquals(6, reloaded.getLoanHistory(null, null, null, null).size());
+            Assertions.assertEquals(4, reloaded.getLoans().size());
+        }
+    }
+
+    @Test
+    public void testLoanHistorySegments(@TempDir Path directory) throws IOException {
+        var first = LocalDate.of(2020, 1, 1).toEpochDay();
+        var loans = new ArrayList<ReturnedLoan>();
+        // 100 loans a day for 90 days: segments of at most 1000 loans, cut at the end of each month
+        for (int day = 0; day < 90; day++) {
+            for (int i = 0; i < 100; i++) {
+                loans.add(new ReturnedLoan(TestData.barcode(day * 100 + i), TestData.userId(i), first + day - 14,
+                        first + day - 7, first + day, i % 4));
+            }
+        }
+        var dir = directory.resolve(LoanHistory.DIRECTORY);
+        var history = openHistory(dir, 1000, new Analytics());
+        for (int i = 0; i < loans.size(); i += 250) history.archive(loans.subList(i, i + 250));
+        Assertions.assertEquals(9000, history.size());
+        Assertions.assertEquals(9, history.segmentCount(), "The last 1000 loans of March are not sealed yet");
+        Assertions.assertEquals(loans.subList(3100, 3200), history.find(null, null, first + 31, first + 31)
+                .stream().filter(it -> it.returnDay() == first + 31).toList());
+        Assertions.assertEquals(List.of(loans.get(4242)), history.find(TestData.barcode(4242), null, Long.MIN_VALUE,
+                Long.MAX_VALUE));
+        Assertions.assertEquals(90, history.find(null, TestData.userId(7), Long.MIN_VALUE, Long.MAX_VALUE).size());
+        history.close();
+
+        // A loan cut short by a crash is dropped from the log
+        try (var files = Files.list(dir)) {
+            var log = files.filter(it -> it.toString().endsWith(".log")).findFirst().orElseThrow();
+            Files.write(log, new byte[] {0, 8, 'x'}, StandardOpenOption.APPEND);
+        }
+        var counted = new Analytics();
+        var reopened = openHistory(dir, 1000, counted);
+        Assertions.assertEquals(9000, reopened.size());
+        Assertions.assertEquals(9000, counted.getLoans(null), "Counted from the segments and the active log");
+        Assertions.assertEquals(3100, counted.getReturns(null, YearMonth.of(2020, 1)));
+        Assertions.assertEquals(0.75, counted.getRenewalRate(null));
+        Assertions.assertEquals(loans.subList(6000, 9000), reopened.find(null, null, first + 60, Long.MAX_VALUE));
+
+        // Queries that cannot match January do not read its segments
+        try (var files = Files.list(dir)) {
+            for (var file : files.filter(it -> it.getFileName().toString().startsWith("2020-01")).toList()) {
+                Files.delete(file);
+            }
+        }
+        Assertions.assertEquals(loans.subList(6000, 9000), reopened.find(null, null, first + 60, Long.MAX_VALUE));
+        Assertions.assertEquals(List.of(loans.get(4242)), reopened.find(TestData.barcode(4242), null, Long.MIN_VALUE,
+                Long.MAX_VALUE));
+        Assertions.assertThrows(UncheckedIOException.class, () -> reopened.find(null, null, first, first));
+        // The reopened log is full, so this starts another one for March
+        reopened.archive(List.of(new ReturnedLoan("M", "N", first + 80, first + 87, first + 88, 0)));
+        reopened.archive(List.of(new ReturnedLoan("A", "B", first + 80, first + 87, first + 91, 0)));
+        Assertions.assertEquals(11, reopened.segmentCount(), "A return in April seals March");
+        Assertions.assertEquals(1, reopened.find(null, "N", first + 88, first + 88).size(), "Seen while sealed");
+        reopened.close();
+
+        try (var sealed = openHistory(dir, 1000, new Analytics())) {
+            Assertions.assertEquals(7, sealed.segmentCount());
+            Assertions.assertEquals(5902, sealed.size());
+            Assertions.assertEquals("A", sealed.find(null, "B", first + 91, first + 91).get(0).barcode());
+            Assertions.assertEquals("M", sealed.find(null, "N", first + 88, first + 88).get(0).barcode());
+        }
+
+        // The active log is appended to when reopened, after its last complete loan
+        var small = directory.resolve("small");
+        try (var appended = openHistory(small, 1000, new Analytics())) {
+            appended.archive(loans.subList(0, 10));
+        }
+        Path log;
+        try (var files = Files.list(small)) {
+            log = files.filter(it -> it.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+        Files.write(log, new byte[] {0, 8, 'x'}, StandardOpenOption.APPEND);
+        try (var appended = openHistory(small, 1000, new Analytics())) {
+            appended.archive(loans.subList(10, 11));
+        }
+        try (var appended = openHistory(small, 1000, new Analytics()); var files = Files.list(small)) {
+            Assertions.assertEquals(List.of(log), files.toList());
+            Assertions.assertEquals(loans.subList(0, 11), appended.find(null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Open a history that counts every loan as a book
+     */
+    private static LoanHistory openHistory(Path directory, int segmentRecords, Analytics counted) throws IOException {
+        return new LoanHistory(directory, segmentRecords, (counts, loan) -> counts.seed("Book", null,
+                loan.issueDay(), loan.numRenews(), loan.returnDay()), counted);
+    }
+
+    @Test
+    public void testLoanHistorySealingFailure(@TempDir Path directory) throws IOException {
+        var first = LocalDate.of(2020, 1, 1).toEpochDay();
+        var loans = new ArrayList<ReturnedLoan>();
+        for (int i = 0; i < 35; i++) {
+            loans.add(new ReturnedLoan(TestData.barcode(i), TestData.userId(i), first, first + 7, first + 10, 0));
+        }
+        // The temporary file of the first segment cannot be created
+        var blocker = Files.createDirectories(directory.resolve("2020-01-000000.seg.tmp"));
+        Files.writeString(blocker.resolve("file"), "");
+        var history = openHistory(directory, 10, new Analytics());
+        for (var loan : loans) history.archive(List.of(loan));
+        Assertions.assertThrows(IOException.class, history::close);
+        Assertions.assertEquals(1, history.failures());
+        Assertions.assertEquals(35, history.size());
+        Assertions.assertEquals(loans, history.find(null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        // Its log was kept, and is sealed when the history is opened again
+        Files.delete(blocker.resolve("file"));
+        Files.delete(blocker);
+        try (var reopened = openHistory(directory, 10, new Analytics())) {
+            Assertions.assertEquals(35, reopened.size());
+            Assertions.assertEquals(loans, reopened.find(null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+            Assertions.assertEquals(0, reopened.failures());
+        }
+    }
+
+    @Test
+    public void testAnalytics(@TempDir Path directory) throws IOException {
+        var management = new Management(directory);
+        var items = TestData.items(200);
+        TestData.users(10).forEach(management::addUser);
+        items.forEach(management::addItem);
+        var lent = new ArrayList<LoanRequest>();
+        for (int i = 0; i < 100; i++) lent.add(new LoanRequest(TestData.barcode(i), TestData.userId(i % 10)));
+        Assertions.assertTrue(management.createLoans(lent, true).succeeded());
+        Assertions.assertFalse(management.createLoans(List.of(new LoanRequest(TestData.barcode(100),
+                TestData.userId(0)), new LoanRequest("missing", TestData.userId(0))), true).succeeded());
+        Assertions.assertEquals(30, management.renewLoans(lent.subList(0, 30), false).applied());
+        for (int i = 0; i < 10; i++) management.renewLoan(TestData.barcode(i), TestData.userId(i));
+        Assertions.assertEquals(48, management.returnItems(lent.subList(0, 48), false).applied());
+        management.returnItem(TestData.barcode(48), TestData.userId(8));
+        management.removeItem(TestData.barcode(49), true);
+
+        var month = YearMonth.now();
+        // Loans of removed items are loaded back without their type and author
+        BiConsumer<Analytics, List<Item>> check = (analytics, known) -> {
+            var loansByType = new HashMap<String, Long>();
+            var loansByAuthor = new HashMap<String, Long>();
+            for (var item : known) {
+                loansByType.merge(item.getType(), 1L, Long::sum);
+                loansByAuthor.merge(item.getAuthor(), 1L, Long::sum);
+            }
+            var topAuthors = loansByAuthor.entrySet().stream().sorted(Map.Entry.<String, Long>comparingByValue()
+                            .reversed().thenComparing(Map.Entry.comparingByKey())).limit(5)
+                    .map(it -> new Analytics.AuthorCount(it.getKey(), it.getValue())).toList();
+            Assertions.assertEquals(100, analytics.getLoans(null));
+            Assertions.assertEquals(100, analytics.getLoans(null, month));
+            Assertions.assertEquals(0, analytics.getLoans(null, month.minusMonths(1)));
+            Assertions.assertEquals(Map.of(month, 100L), analytics.getLoansByMonth(null));
+            Assertions.assertEquals(50, analytics.getReturns(null, month));
+            loansByType.forEach((type, loans) -> Assertions.assertEquals(loans, analytics.getLoans(type, month)));
+            Assertions.assertEquals(loansByType.keySet().stream().sorted().toList(), analytics.getTypes());
+            Assertions.assertEquals(0.3, analytics.getRenewalRate(null), 1e-9);
+            Assertions.assertEquals(0.4, analytics.getRenewalsPerLoan(null), 1e-9);
+            Assertions.assertEquals(0, analytics.getRenewalRate("Magazine"));
+            Assertions.assertEquals(topAuthors, analytics.getTopAuthors(5));
+        };
+        check.accept(management.getAnalytics(), items.subList(0, 100));
+        management.close();
+
+        try (var reloaded = new Management(directory)) {
+            var known = new ArrayList<>(items.subList(0, 100));
+            known.remove(49);
+            check.accept(reloaded.getAnalytics(), known);
+        }
+    }
+
+    @Test
+    public void testAnalyticsCounters() {
+        var analytics = new Analytics();
+        var january = LocalDate.of(2020, 1, 15).toEpochDay();
+        analytics.seed("Book", "B", january, 1, january + 60);
+        analytics.seed("Book", "A", january, 0, Loan.NO_DATE);
+        analytics.loaned("CD", "A", january + 366);
+        analytics.loaned(null, null, Loan.NO_DATE);
+        Assertions.assertEquals(4, analytics.getLoans(null));
+        Assertions.assertEquals(2, analytics.getLoans("Book", YearMonth.of(2020, 1)));
+        Assertions.assertEquals(1, analytics.getReturns("Book", YearMonth.of(2020, 3)));
+        var byMonth = analytics.getLoansByMonth(null);
+        Assertions.assertEquals(13, byMonth.size(), "Months without loans in between are listed");
+        Assertions.assertEquals(2, byMonth.get(YearMonth.of(2020, 1)));
+        Assertions.assertEquals(0, byMonth.get(YearMonth.of(2020, 6)));
+        Assertions.assertEquals(1, byMonth.get(YearMonth.of(2021, 1)));
+        Assertions.assertEquals(List.of(new Analytics.AuthorCount("A", 2), new Analytics.AuthorCount("B", 1)),
+                analytics.getTopAuthors(5));
+        Assertions.assertEquals(List.of(new Analytics.AuthorCount("A", 2)), analytics.getTopAuthors(1));
+        Assertions.assertTrue(analytics.getTopAuthors(0).isEmpty());
+        Assertions.assertEquals(0.5, analytics.getRenewalRate("Book"));
+    }
+
+    @Test
+    public void testColumnarExport(@TempDir Path directory) throws IOException {
+        var management = TestData.management(10, 200, 50);
+        var loan = management.getLoans().stream().filter(it -> it.getBarcode().equals(TestData.barcode(0)))
+                .findFirst().orElseThrow();
+        management.returnItem(loan.getBarcode(), loan.getUserId());
+        var file = directory.resolve("LIBRARY.columns");
+        management.exportColumns(file);
+        Assertions.assertEquals(TestData.items(200).stream().map(Item::getTitle).toList(),
+                ColumnarExport.readColumn(file, ColumnarExport.ITEMS, "Title"));
+        Assertions.assertEquals(49, ColumnarExport.readColumn(file, ColumnarExport.LOANS, "Barcode").size());
+        Assertions.assertEquals(List.of(LocalDate.now().toEpochDay()),
+                ColumnarExport.readColumn(file, ColumnarExport.HISTORY, "Return_Day"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> ColumnarExport.readColumn(file, ColumnarExport.LOANS, "Title"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ColumnarExport.readColumn(file, "fines", "Fine"));
+
+        // Groups of 7 rows, and a missing author
+        var items = new ArrayList<>(TestData.items(50));
+        items.get(3).setAuthor(null);
+        try (var export = new ColumnarExport(file, 7)) {
+            export.items(items);
+            export.loans(List.of());
+            export.history(List.of());
+            export.commit();
+        }
+        Assertions.assertEquals(items.stream().map(Item::getAuthor).toList(),
+                ColumnarExport.readColumn(file, ColumnarExport.ITEMS, "Author/Artist"));
+        Assertions.assertTrue(ColumnarExport.readColumn(file, ColumnarExport.HISTORY, "Barcode").isEmpty());
+        Assertions.assertFalse(Files.exists(directory.resolve("LIBRARY.columns.tmp")));
+
+        // An export failing mid-stream leaves the previous one in place
+        Iterable<Item> failing = () -> TestData.items(100).stream().map(it -> {
+            if (it.getBarcode().equals(TestData.barcode(30))) throw new UncheckedIOException(new IOException("Gone"));
+            return it;
+        }).iterator();
+        Assertions.assertThrows(UncheckedIOException.class, () -> {
+            try (var export = new ColumnarExport(file, 7)) {
+                export.items(failing);
+                export.commit();
+            }
+        });
+        Assertions.assertEquals(items.stream().map(Item::getAuthor).toList(),
+                ColumnarExport.readColumn(file, ColumnarExport.ITEMS, "Author/Artist"));
+        Assertions.assertFalse(Files.exists(directory.resolve("LIBRARY.columns.tmp")));
+    }
+
+    /**
+     * Subscriber collecting the changes it receives, requesting {@code demand} batches up front
+     */
+    static final class Collector implements Flow.Subscriber<List<Change>> {
+        final List<Change> changes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch completed = new CountDownLatch(1), failed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        private final long demand;
+
+        Collector(long demand) {
+            this.demand = demand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(demand);
+        }
+
+        @Override
+        public void onNext(List<Change> batch) {
+            changes.addAll(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            failed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
 }
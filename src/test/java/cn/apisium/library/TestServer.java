@@ -0,0 +1,64 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+public class TestServer {
+    @Test
+    public void testApi() throws IOException, InterruptedException {
+        var management = TestData.management(10, 100, 0);
+        try (var server = new Server(management, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            server.start();
+            var base = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+            var client = HttpClient.newHttpClient();
+            var loan = "{\"Barcode\": \"" + TestData.barcode(3) + "\", \"User_id\": \"" + TestData.userId(4) + "\"}";
+
+            Assertions.assertEquals(200, send(client, base, "GET", "/items/" + TestData.barcode(3), null).statusCode());
+            Assertions.assertEquals(404, send(client, base, "GET", "/items/nothing", null).statusCode());
+            Assertions.assertEquals(404, send(client, base, "GET", "/nowhere", null).statusCode());
+            Assertions.assertEquals(200, send(client, base, "POST", "/loans", loan).statusCode());
+            var conflict = send(client, base, "POST", "/loans", loan);
+            Assertions.assertEquals(400, conflict.statusCode());
+            Assertions.assertTrue(conflict.body().contains("Item already on loan!"));
+            Assertions.assertEquals(200, send(client, base, "POST", "/loans/renew", loan).statusCode());
+            Assertions.assertFalse(send(client, base, "GET", "/items/available?limit=10", null).body()
+                    .contains(TestData.barcode(3)));
+            Assertions.assertEquals(1, management.getLoansForUser(TestData.userId(4)).get(0).getNumRenews());
+            Assertions.assertTrue(send(client, base, "GET", "/users/" + TestData.userId(4) + "/loans", null).body()
+                    .contains(TestData.barcode(3)));
+            Assertions.assertTrue(send(client, base, "GET", "/loans?limit=5", null).body().contains("\"nextCursor\":null"));
+            Assertions.assertEquals(200, send(client, base, "POST", "/loans/return", loan).statusCode());
+            Assertions.assertEquals(400, send(client, base, "POST", "/loans", "{").statusCode());
+
+            var page = send(client, base, "GET", "/items?limit=10", null).body();
+            Assertions.assertTrue(page.contains("\"nextCursor\":\"10\""));
+            Assertions.assertEquals(200, send(client, base, "POST", "/items",
+                    "{\"Barcode\": \"X1\", \"Title\": \"Kind of Blue\", \"Type\": \"CD\"}").statusCode());
+            Assertions.assertTrue(send(client, base, "GET", "/items/search?q=blue", null).body().contains("X1"));
+            Assertions.assertEquals(200, send(client, base, "DELETE", "/items/X1", null).statusCode());
+            Assertions.assertNull(management.getItem("X1"));
+
+            var report = new LoadGenerator(base).run(2, Duration.ofMillis(300));
+            Assertions.assertTrue(report.requests() > 0);
+            Assertions.assertEquals(0, report.errors());
+            Assertions.assertTrue(report.p50Nanos() <= report.p99Nanos());
+            Assertions.assertTrue(management.getLoans().isEmpty(), "The load generator returns what it lends");
+        }
+    }
+
+    private static HttpResponse<String> send(HttpClient client, URI base, String method, String path, String body)
+            throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(base.resolve(path)).method(method,
+                body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
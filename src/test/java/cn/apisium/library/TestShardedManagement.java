@@ -0,0 +1,143 @@
+package cn.apisium.library;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class TestShardedManagement {
+    private static ShardedManagement open(Path directory) throws IOException {
+        var library = new ShardedManagement(directory, 4, null);
+        TestData.users(20).forEach(library::addUser);
+        TestData.items(1000).forEach(library::addItem);
+        return library;
+    }
+
+    @Test
+    public void testPersistence(@TempDir Path directory) throws IOException {
+        try (var library = open(directory)) {
+            for (int i = 0; i < 100; i++) library.createLoan(TestData.barcode(i), TestData.userId(i % 20));
+            library.returnItem(TestData.barcode(0), TestData.userId(0));
+            library.save();
+        }
+        Assertions.assertTrue(Files.exists(directory.resolve("shard-0/USERS.csv")));
+        Assertions.assertFalse(Files.exists(directory.resolve("shard-1/USERS.csv")));
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(Files.size(directory.resolve("shard-" + i + "/ITEMS.csv")) > 1000,
+                    "Every shard holds a share of the items");
+        }
+        Assertions.assertThrows(IOException.class, () -> new ShardedManagement(directory, 2, null));
+
+        try (var library = Library.open(directory, null)) {
+            Assertions.assertInstanceOf(ShardedManagement.class, library);
+            Assertions.assertEquals(99, library.getLoans().size());
+            Assertions.assertEquals(901, library.countAvailable(null));
+            Assertions.assertEquals(5, library.getLoanCount(TestData.userId(1)));
+            Assertions.assertNotNull(library.getUser(TestData.userId(19)));
+            Assertions.assertEquals(TestData.barcode(500), library.getItem(TestData.barcode(500)).getBarcode());
+        }
+    }
+
+    @Test
+    public void testUsersAcrossShards(@TempDir Path directory) throws IOException {
+        try (var library = open(directory)) {
+            library.setLoanLimit(3);
+            for (int i = 0; i < 3; i++) library.createLoan(TestData.barcode(i), TestData.userId(1));
+            var error = Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> library.createLoan(TestData.barcode(3), TestData.userId(1)));
+            Assertions.assertEquals("Cannot borrow more than 3 items!", error.getMessage());
+
+            error = Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> library.removeUser(TestData.userId(1)));
+            Assertions.assertEquals("User still has loans!", error.getMessage());
+            library.removeUser(TestData.userId(1), true);
+            Assertions.assertNull(library.getUser(TestData.userId(1)));
+            Assertions.assertTrue(library.getLoans().isEmpty());
+            Assertions.assertEquals(List.of(TestData.barcode(0), TestData.barcode(1), TestData.barcode(2)),
+                    library.getLoanHistory(null, TestData.userId(1), null, null).stream()
+                            .map(ReturnedLoan::barcode).toList(), "The history of every shard is merged");
+            Assertions.assertEquals(1, library.getLoanHistory(TestData.barcode(2), null, null, null).size());
+        }
+    }
+
+    @Test
+    public void testBatchesAcrossShards(@TempDir Path directory) throws IOException {
+        try (var library = open(directory)) {
+            var requests = new ArrayList<LoanRequest>();
+            for (int i = 0; i < 50; i++) requests.add(new LoanRequest(TestData.barcode(i), TestData.userId(i % 20)));
+            requests.add(new LoanRequest("nothing", TestData.userId(0)));
+
+            var result = library.createLoans(requests, true);
+            Assertions.assertEquals(0, result.applied());
+            Assertions.assertEquals(List.of(50), result.failures().stream().map(BatchResult.Failure::index).toList());
+            Assertions.assertTrue(library.getLoans().isEmpty(), "No shard kept its part of a failed atomic batch");
+
+            result = library.createLoans(requests, false);
+            Assertions.assertEquals(50, result.applied());
+            Assertions.assertEquals(50, library.countOnLoan(null));
+            Assertions.assertEquals(50, library.getAnalytics().getLoans(null),
+                    "Every shard counts in the same analytics");
+            var file = directory.resolve("LIBRARY.columns");
+            library.exportColumns(file);
+            Assertions.assertEquals(1000, ColumnarExport.readColumn(file, ColumnarExport.ITEMS, "Barcode").size());
+            Assertions.assertEquals(50, ColumnarExport.readColumn(file, ColumnarExport.LOANS, "Barcode").size());
+
+            var fines = library.assessFines(LocalDate.now().plusWeeks(10), 2);
+            Assertions.assertEquals(50, fines.overdueLoans());
+            Assertions.assertEquals(20, fines.users().size());
+        }
+    }
+
+    @Test
+    public void testImportAcrossShards(@TempDir Path directory) throws IOException {
+        var file = directory.resolve("import.csv");
+        var lines = new ArrayList<String>();
+        lines.add("Barcode,Type");
+        for (int i = 900; i < 1100; i++) lines.add(TestData.barcode(i) + ",Book");
+        Files.write(file, lines);
+        try (var library = open(directory.resolve("library"))) {
+            var report = library.importItems(file, null, 2);
+            Assertions.assertEquals(100, report.imported());
+            Assertions.assertEquals(Map.of("Barcode taken", 100L), report.reasons());
+        }
+        try (var library = Library.open(directory.resolve("library"), null)) {
+            Assertions.assertEquals(1100, library.countAvailable(null), "Imported items are journaled");
+            Assertions.assertTrue(library.getItem(TestData.barcode(1099)).isBook());
+        }
+    }
+
+    @Test
+    public void testListingAcrossShards(@TempDir Path directory) throws IOException {
+        try (var library = open(directory)) {
+            for (int i = 0; i < 300; i += 3) library.createLoan(TestData.barcode(i), TestData.userId(i % 20));
+            var seen = new HashSet<String>();
+            String cursor = null;
+            do {
+                var page = library.listItems(cursor, 64);
+                page.rows().forEach(it -> Assertions.assertTrue(seen.add(it.getBarcode())));
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            Assertions.assertEquals(1000, seen.size());
+
+            var loans = new ArrayList<Loan>();
+            cursor = null;
+            do {
+                var page = library.listLoans(cursor, 7);
+                loans.addAll(page.rows());
+                cursor = page.nextCursor();
+            } while (cursor != null);
+            var expected = new ArrayList<>(library.getLoans());
+            expected.sort(Loan.BY_DUE_DATE);
+            Assertions.assertEquals(expected, loans);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> library.listItems("9:0", 10));
+        }
+    }
+}